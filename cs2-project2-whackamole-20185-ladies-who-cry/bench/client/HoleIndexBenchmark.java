@@ -0,0 +1,130 @@
+package client;
+
+import common.WAMLayout;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looks up clicks in a {@link HoleIndex} the way the GUI does, on a grid, a hex grid and a sparse
+ * scatter of holes, and decodes a layout the way the client does at WELCOME.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class HoleIndexBenchmark {
+
+    /** The shape of the board */
+    @Param({"grid", "hex", "sparse"})
+    public String shape;
+
+    /** The number of holes */
+    @Param({"10000", "1000000"})
+    public int holes;
+
+    /** The clicks, in layout units, taken in turn */
+    private static final int CLICKS = 4096;
+
+    private WAMLayout layout;
+    private HoleIndex index;
+    private String encoded;
+    private final double[] x = new double[CLICKS];
+    private final double[] y = new double[CLICKS];
+    private int click;
+
+    @Setup
+    public void setUp() {
+        int side = (int) Math.sqrt(holes);
+        switch(shape) {
+            case "grid":
+                layout = WAMLayout.grid(side, side);
+                break;
+            case "hex":
+                layout = WAMLayout.hex(side, side);
+                break;
+            default:
+                layout = sparse(holes, new SplittableRandom(42));
+        }
+        index = new HoleIndex(layout);
+        encoded = layout.encode();
+        SplittableRandom random = new SplittableRandom(7);
+        for(int i = 0; i < CLICKS; i++) {
+            x[i] = random.nextDouble() * layout.getWidth();
+            y[i] = random.nextDouble() * layout.getHeight();
+        }
+    }
+
+    /**
+     * Scatters holes over a board with about five times as much empty space as holes, in the order of
+     * a scan down the board the way a layout file would list them.
+     * @param holes the number of holes
+     * @param random where the positions come from
+     * @return the layout
+     */
+    static WAMLayout sparse(int holes, SplittableRandom random) {
+        int size = 8;
+        int side = (int) Math.sqrt(holes * 6.0) * size;
+        int[] x = new int[holes];
+        int[] y = new int[holes];
+        long[] packed = new long[holes];
+        for(int i = 0; i < holes; i++) {
+            packed[i] = (long) random.nextInt(side - size) << 32 | random.nextInt(side - size);
+        }
+        Arrays.sort(packed);
+        for(int i = 0; i < holes; i++) {
+            y[i] = (int) (packed[i] >>> 32);
+            x[i] = (int) packed[i];
+        }
+        return new WAMLayout(side, side, size, x, y);
+    }
+
+    /**
+     * Finds the hole under a click, or that there is none.
+     * @return the mole number, or -1
+     */
+    @Benchmark
+    public int holeAt() {
+        int i = click++ & (CLICKS - 1);
+        return index.holeAt(x[i], y[i]);
+    }
+
+    /**
+     * Reads a LAYOUT the way a client does once, at WELCOME.
+     * @return the layout
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5)
+    public WAMLayout decode() {
+        return WAMLayout.decode(encoded);
+    }
+
+    /**
+     * Builds the index the way the GUI does once, at start.
+     * @return the index
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5)
+    public HoleIndex build() {
+        return new HoleIndex(layout);
+    }
+}
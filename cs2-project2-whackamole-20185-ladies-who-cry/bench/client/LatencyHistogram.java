@@ -0,0 +1,98 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of latencies in microseconds.
+ *
+ * Values below 64 microseconds get a bucket each; above that every power of two is split into 32 buckets, so a
+ * recorded value is off by at most about 3% and every possible latency fits in under two thousand
+ * counters. Recording is a single atomic increment and never allocates.
+ */
+public class LatencyHistogram {
+
+    /** The number of buckets each power of two is split into, as a power of two */
+    private static final int SUB_BITS = 5;
+
+    /** The values below this have a bucket of their own */
+    private static final int LINEAR = 1 << (SUB_BITS + 1);
+
+    /** The count of every bucket */
+    private final AtomicLongArray counts = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+
+    /**
+     * Records one latency.
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+    }
+
+    /**
+     * Clears every count.
+     */
+    public void reset() {
+        for(int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long count() {
+        long total = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Finds the latency a given fraction of the recorded ones are at or below.
+     * @param fraction the fraction, from 0 to 1
+     * @return the latency in microseconds, or 0 if nothing has been recorded
+     */
+    public long percentile(double fraction) {
+        long total = count();
+        if(total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= rank) {
+                return highest(i);
+            }
+        }
+        return highest(counts.length() - 1);
+    }
+
+    /**
+     * @param micros a latency in microseconds
+     * @return the bucket it is counted in
+     */
+    private static int bucket(long micros) {
+        if(micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + ((exponent - SUB_BITS - 1) << SUB_BITS) + sub;
+    }
+
+    /**
+     * @param bucket a bucket
+     * @return the highest latency in microseconds counted in it
+     */
+    private static long highest(int bucket) {
+        if(bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = ((bucket - LINEAR) >>> SUB_BITS) + SUB_BITS + 1;
+        long sub = (bucket - LINEAR) & ((1 << SUB_BITS) - 1);
+        long lowest = (1L << exponent) + (sub << (exponent - SUB_BITS));
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
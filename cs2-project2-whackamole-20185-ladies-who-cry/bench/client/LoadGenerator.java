@@ -0,0 +1,323 @@
+package client;
+
+import common.WAMException;
+import server.ConnectionConfig;
+import server.GameConfig;
+import server.Leaderboard;
+import server.SlowConsumerPolicy;
+import server.ThreadMode;
+import server.WAMGame;
+import server.WAMLobby;
+import server.WAMMetrics;
+import server.WAMServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Plays many headless bots against a server and reports how it holds up.
+ *
+ * Each bot is a {@link WAMNetworkClient} whose board is watched instead of drawn. Bots whack a set
+ * number of times a second; with the given accuracy they aim at a mole that is up, otherwise at any
+ * hole. For every step of bot counts the generator reports how long the connections took, the
+ * whack-to-SCORE latency percentiles (from a whack to the first SCORE that shows the bot's score
+ * changed), and the number of messages a second the bots got from the server.
+ *
+ * Usage: java client.LoadGenerator [options]
+ *
+ * Without --host a server is started in this process with the given --rows, --columns, --players,
+ * --seconds, --io, --threads, --moles and --codec, so a run only depends on its options and --seed. The
+ * bots' choices are seeded, and so are the server's moles with --moles=ticks. Every bot has a listener thread of its own, as the GUI does.
+ */
+public class LoadGenerator {
+
+    /** The settings of a run */
+    private final String host;
+    private final int port;
+    private final int players;
+    private final int seconds;
+    private final double rate;
+    private final double accuracy;
+    private final long seed;
+    private final boolean binary;
+
+    /** The latencies of the step being run */
+    private final LatencyHistogram latency = new LatencyHistogram();
+    /** The whacks sent in the step being run */
+    private final LongAdder whacks = new LongAdder();
+    /** The messages the bots got in the step being run */
+    private final LongAdder messages = new LongAdder();
+    /** The results the bots got in the step being run */
+    private final LongAdder results = new LongAdder();
+
+    /** Sends the bots' whacks */
+    private final ScheduledExecutorService whacker;
+
+    /**
+     * Creates a new generator.
+     * @param host the server's host
+     * @param port the server's port
+     * @param players the number of players in a match
+     * @param seconds how long a match lasts
+     * @param rate the whacks a second each bot sends
+     * @param accuracy the fraction of whacks aimed at a mole that is up
+     * @param seed the seed of the bots' choices
+     * @param binary whether the bots ask for the binary framing
+     */
+    public LoadGenerator(String host, int port, int players, int seconds, double rate, double accuracy,
+                         long seed, boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.players = players;
+        this.seconds = seconds;
+        this.rate = rate;
+        this.accuracy = accuracy;
+        this.seed = seed;
+        this.binary = binary;
+        this.whacker = Executors.newScheduledThreadPool(4, r -> {
+            Thread t = new Thread(r, "bot-whacker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Runs the generator.
+     * @param args the options
+     * @throws WAMException if the in-process server can't be started
+     * @throws InterruptedException if interrupted while waiting for the bots
+     */
+    public static void main(String[] args) throws WAMException, InterruptedException {
+        String host = option(args, "host", null);
+        int port = Integer.parseInt(option(args, "port", "25123"));
+        int rows = Integer.parseInt(option(args, "rows", "10"));
+        int columns = Integer.parseInt(option(args, "columns", "10"));
+        int players = Integer.parseInt(option(args, "players", "2"));
+        int seconds = Integer.parseInt(option(args, "seconds", "10"));
+        double rate = Double.parseDouble(option(args, "rate", "5"));
+        double accuracy = Double.parseDouble(option(args, "accuracy", "0.8"));
+        long seed = Long.parseLong(option(args, "seed", "1"));
+        boolean binary = option(args, "codec", "binary").equals("binary");
+        String[] steps = option(args, "bots", "100,500,1000").split(",");
+
+        Leaderboard leaderboard = null;
+        if(host == null) {
+            boolean nio = option(args, "io", "nio").equals("nio");
+            ThreadMode threads = ThreadMode.valueOf(option(args, "threads", "platform").toUpperCase());
+            WAMGame.MoleMode moles = WAMGame.MoleMode.valueOf(option(args, "moles", "wheel").toUpperCase());
+            GameConfig config = new GameConfig(rows, columns, players, seconds, moles, threads, seed);
+            leaderboard = new Leaderboard();
+            WAMLobby lobby = new WAMLobby(config, Integer.MAX_VALUE, new WAMMetrics(), null, leaderboard);
+            WAMServer server = new WAMServer(port, lobby, nio, Math.min(4, Runtime.getRuntime().availableProcessors()),
+                    new ConnectionConfig(binary, SlowConsumerPolicy.COALESCE, 4096, threads));
+            Thread t = new Thread(server, "server");
+            t.setDaemon(true);
+            t.start();
+            host = "localhost";
+            System.out.println("Server: " + config + (nio ? ", nio" : ", blocking on " + threads + " threads"));
+        }
+        System.out.printf("Bots: %.1f whacks/s, %.0f%% aimed, seed %d, %s%n", rate, accuracy * 100, seed,
+                binary ? "binary" : "text");
+
+        LoadGenerator generator = new LoadGenerator(host, port, players, seconds, rate, accuracy, seed, binary);
+        System.out.printf("%6s %10s %9s %9s %8s %8s %8s %9s %9s %11s %8s%n", "bots", "connect(ms)", "whacks",
+                "whacks/s", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)", "messages/s", "results");
+        for(String step: steps) {
+            generator.step(Integer.parseInt(step.trim()));
+        }
+        if(leaderboard != null) {
+            System.out.println("Leaderboard of " + leaderboard.getPlayers() + " bots after " + leaderboard.getResults()
+                    + " results: " + leaderboard.top(5));
+        }
+        // the in-process server's loops never stop by themselves
+        System.exit(0);
+    }
+
+    /**
+     * Looks up a "--name=value" option.
+     * @param args the command line arguments
+     * @param name the name of the option
+     * @param otherwise the value to use if the option is not given
+     * @return the value of the option
+     */
+    static String option(String[] args, String name, String otherwise) {
+        String prefix = "--" + name + "=";
+        for(String arg: args) {
+            if(arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return otherwise;
+    }
+
+    /**
+     * Plays one set of matches with a number of bots and prints a row of results.
+     * @param bots the number of bots, rounded down to whole matches
+     * @throws InterruptedException if interrupted while waiting for the bots
+     */
+    void step(int bots) throws InterruptedException {
+        bots -= bots % players;
+        latency.reset();
+        whacks.reset();
+        messages.reset();
+        results.reset();
+        CountDownLatch done = new CountDownLatch(bots);
+        List<Future<Bot>> connecting = new ArrayList<>();
+        ExecutorService connector = Executors.newFixedThreadPool(Math.min(bots, 256));
+
+        long start = System.nanoTime();
+        for(int i = 0; i < bots; i++) {
+            long botSeed = seed * 1_000_003L + i;
+            String name = "bot-" + i;
+            connecting.add(connector.submit(() -> new Bot(name, botSeed, done)));
+        }
+        List<Bot> connected = new ArrayList<>();
+        for(Future<Bot> f: connecting) {
+            try {
+                connected.add(f.get());
+            } catch (Exception e) {
+                done.countDown();
+                System.err.println("Bot failed to connect: " + e.getCause());
+            }
+        }
+        long connectNanos = System.nanoTime() - start;
+        connector.shutdown();
+
+        long playing = System.nanoTime();
+        done.await(seconds + 30, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - playing) / 1e9;
+        for(Bot bot: connected) {
+            bot.stop();
+        }
+
+        System.out.printf("%6d %10d %9d %9.0f %8.2f %8.2f %8.2f %9.2f %9.2f %11.0f %8d%n", bots,
+                connectNanos / 1_000_000, whacks.sum(), whacks.sum() / elapsed,
+                latency.percentile(0.5) / 1000.0, latency.percentile(0.9) / 1000.0,
+                latency.percentile(0.99) / 1000.0, latency.percentile(0.999) / 1000.0,
+                latency.percentile(1) / 1000.0, messages.sum() / elapsed, results.sum());
+    }
+
+    /**
+     * One headless player.
+     */
+    private class Bot implements BoardObserver {
+
+        private final WAMNetworkClient client;
+        private final WAMBoard board;
+        private final int me;
+        private final int holes;
+        /** The bot's choices, only touched by its whack task */
+        private final SplittableRandom random;
+        private final CountDownLatch done;
+        private final ScheduledFuture<?> whacking;
+
+        /** When the oldest whack not yet answered by a SCORE was sent, 0 if there is none; guarded by this */
+        private long sentNanos;
+        /** The bot's score as of the last SCORE, only touched by the listener thread */
+        private int lastScore;
+        /** Whether the bot has its result, guarded by this */
+        private boolean finished;
+
+        /**
+         * Connects a bot and sets it whacking. Returns once the bot is in a match.
+         * @param name the name its results go on the leaderboard under
+         * @param seed the seed of its choices
+         * @param done counted down when the bot has its result
+         * @throws WAMException if the bot can't connect
+         */
+        Bot(String name, long seed, CountDownLatch done) throws WAMException {
+            this.client = new WAMNetworkClient(host, port, binary);
+            client.sendName(name);
+            this.board = client.getBoard();
+            this.me = client.getPlayerNumber();
+            this.holes = board.getRows() * board.getColumns();
+            this.random = new SplittableRandom(seed);
+            this.done = done;
+            board.addObserver(this);
+            client.startListener();
+            long period = (long) (1_000_000_000L / rate);
+            this.whacking = whacker.scheduleAtFixedRate(this::whack,
+                    ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Sends one whack.
+         */
+        private void whack() {
+            int mole = random.nextInt(holes);
+            if(random.nextDouble() < accuracy) {
+                int up = board.nextUp(mole);
+                if(up < 0) {
+                    up = board.nextUp(0);
+                }
+                if(up >= 0) {
+                    mole = up;
+                }
+            }
+            synchronized(this) {
+                if(finished) {
+                    return;
+                }
+                if(sentNanos == 0) {
+                    sentNanos = System.nanoTime();
+                }
+            }
+            client.sendWhack(mole % board.getColumns(), mole / board.getColumns());
+            whacks.increment();
+        }
+
+        @Override
+        public void moleChanged(WAMBoard wamboard, int mole, boolean up) {
+            messages.increment();
+        }
+
+        @Override
+        public void update(WAMBoard wamboard) {
+            messages.increment();
+            if(board.getStatus() != WAMBoard.Status.NOT_OVER) {
+                if(stop()) {
+                    results.increment();
+                }
+                return;
+            }
+            int score = board.getPlayerScores()[me];
+            if(score == lastScore) {
+                return;
+            }
+            lastScore = score;
+            long now = System.nanoTime();
+            synchronized(this) {
+                if(sentNanos != 0) {
+                    latency.record(now - sentNanos);
+                    sentNanos = 0;
+                }
+            }
+        }
+
+        /**
+         * Stops the bot whacking, counting it as done the first time.
+         * @return whether this was the first time
+         */
+        boolean stop() {
+            synchronized(this) {
+                if(finished) {
+                    return false;
+                }
+                finished = true;
+            }
+            whacking.cancel(false);
+            done.countDown();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package client;
+
+import common.WAMBinaryCodec;
+import common.WAMException;
+import common.WAMProtocol;
+import server.ConnectionConfig;
+import server.GameConfig;
+import server.SlowConsumerPolicy;
+import server.ThreadMode;
+import server.WAMGame;
+import server.WAMLobby;
+import server.WAMMetrics;
+import server.WAMServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Watches one match with many spectators at once and reports what they were sent.
+ *
+ * Every spectator is a non-blocking channel on a single selector in this process, so thousands of them
+ * cost a few buffers rather than a thread each. Each sends a WATCH, then its messages are counted as
+ * they arrive. The generator reports how long the spectators took to connect, then the messages and
+ * bytes a second they got between them, how many were still watching at the end and, for a server in
+ * this process, how many had to be sent a fresh snapshot because they fell behind.
+ *
+ * Usage: java client.SpectatorLoad [options]
+ *
+ * Without --host a server is started in this process with a spectator port and the given --rows and
+ * --columns, and two players that whack at random are connected to start a match that outlasts the
+ * run. With --host the match has to be running already, and last until the spectators have connected
+ * and been measured for --seconds. A server in this process needs two file descriptors per spectator.
+ */
+public class SpectatorLoad {
+
+    /** The size of each spectator's read buffer */
+    private static final int READ_BUFFER = 16 * 1024;
+
+    /**
+     * What one spectator has read.
+     */
+    private static class Watcher {
+        /** Bytes read that don't yet form a whole message */
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        /** Whether the WATCHING line has been read */
+        boolean watching;
+    }
+
+    /** Whether spectators ask for the binary framing */
+    private final boolean binary;
+
+    /** What the spectators got while being measured */
+    private long messages;
+    private long bytes;
+
+    /** Whether messages are being counted */
+    private boolean measuring;
+
+    /**
+     * Creates a new load generator.
+     * @param binary whether spectators ask for the binary framing
+     */
+    private SpectatorLoad(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Runs the generator.
+     * @param args the options
+     * @throws WAMException if the server can't be started
+     * @throws IOException if the spectators can't connect
+     * @throws InterruptedException if interrupted while waiting for the match
+     */
+    public static void main(String[] args) throws WAMException, IOException, InterruptedException {
+        String host = LoadGenerator.option(args, "host", null);
+        int port = Integer.parseInt(LoadGenerator.option(args, "port", "25123"));
+        int spectatePort = Integer.parseInt(LoadGenerator.option(args, "spectate", "25124"));
+        int rows = Integer.parseInt(LoadGenerator.option(args, "rows", "10"));
+        int columns = Integer.parseInt(LoadGenerator.option(args, "columns", "10"));
+        int seconds = Integer.parseInt(LoadGenerator.option(args, "seconds", "10"));
+        int count = Integer.parseInt(LoadGenerator.option(args, "spectators", "10000"));
+        boolean binary = LoadGenerator.option(args, "codec", "binary").equals("binary");
+        WAMMetrics metrics = null;
+        if(host == null) {
+            GameConfig config = new GameConfig(rows, columns, 2, 3600, WAMGame.MoleMode.WHEEL,
+                    ThreadMode.PLATFORM, 1);
+            metrics = new WAMMetrics();
+            WAMLobby lobby = new WAMLobby(config, Integer.MAX_VALUE, metrics, null, null);
+            int loops = Math.min(4, Runtime.getRuntime().availableProcessors());
+            WAMServer server = new WAMServer(port, lobby, true, loops,
+                    new ConnectionConfig(binary, SlowConsumerPolicy.COALESCE, 4096, ThreadMode.PLATFORM));
+            server.acceptSpectators(spectatePort, loops);
+            Thread t = new Thread(server, "server");
+            t.setDaemon(true);
+            t.start();
+            host = "localhost";
+            for(int i = 0; i < 2; i++) {
+                player(host, port);
+            }
+            Thread.sleep(500);
+            System.out.println("Server: " + config + ", " + loops + " spectator loops");
+        }
+        new SpectatorLoad(binary).run(host, spectatePort, count, seconds, metrics);
+        System.exit(0);
+    }
+
+    /**
+     * Connects a player that whacks a random hole every 50ms until its match is over.
+     * @param host the server
+     * @param port its player port
+     */
+    private static void player(String host, int port) {
+        Thread t = new Thread(() -> {
+            try (Socket socket = new Socket(host, port);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                         StandardCharsets.US_ASCII));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                String[] welcome = in.readLine().split(" ");
+                int holes = Integer.parseInt(welcome[1]) * Integer.parseInt(welcome[2]);
+                int player = Integer.parseInt(welcome[4]);
+                Thread reader = new Thread(() -> {
+                    try {
+                        while(in.readLine() != null) {
+                            // thrown away
+                        }
+                    } catch (IOException e) {
+                        // over
+                    }
+                });
+                reader.setDaemon(true);
+                reader.start();
+                while(reader.isAlive() && !out.checkError()) {
+                    out.println(WAMProtocol.WHACK + " " + ThreadLocalRandom.current().nextInt(holes) + " " + player);
+                    Thread.sleep(50);
+                }
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                // the match is over
+            }
+        }, "player");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Connects the spectators, then counts what they get for a while.
+     * @param host the server
+     * @param port its spectator port
+     * @param count the number of spectators
+     * @param seconds how long to measure for
+     * @param metrics the metrics of a server in this process, or null
+     * @throws IOException if the spectators can't connect
+     */
+    private void run(String host, int port, int count, int seconds, WAMMetrics metrics) throws IOException {
+        byte[] watch = (WAMProtocol.WATCH + (binary ? " " + WAMProtocol.BINARY : "") + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        Selector selector = Selector.open();
+        long start = System.nanoTime();
+        for(int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.write(ByteBuffer.wrap(watch));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Watcher());
+            if(i % 1000 == 999) {
+                // keep the first ones read so the server doesn't have to hold their snapshots
+                poll(selector, 0);
+            }
+        }
+        System.out.printf("%d spectators connected in %d ms, %s%n", count, (System.nanoTime() - start) / 1_000_000,
+                binary ? "binary" : "text");
+        measuring = true;
+        start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        while(System.nanoTime() < end && !selector.keys().isEmpty()) {
+            poll(selector, 100);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%.0f messages/s, %.1f MB/s, %.1f messages/s per spectator, %d still watching%n",
+                messages / elapsed, bytes / elapsed / 1e6, messages / elapsed / count, selector.keys().size());
+        if(metrics != null) {
+            System.out.println(metrics.getSpectatorResyncs() + " snapshots sent to spectators that fell behind");
+        }
+        for(SelectionKey key: selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Reads from every spectator with something to read.
+     * @param selector the spectators' selector
+     * @param timeout how long to wait for one, in milliseconds, or 0 not to wait
+     * @throws IOException if the selector fails
+     */
+    private void poll(Selector selector, long timeout) throws IOException {
+        if(timeout == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeout);
+        }
+        for(SelectionKey key: selector.selectedKeys()) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Watcher watcher = (Watcher) key.attachment();
+            int n;
+            try {
+                n = channel.read(watcher.in);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if(n < 0) {
+                key.cancel();
+                channel.close();
+                continue;
+            }
+            if(measuring) {
+                bytes += n;
+            }
+            count(watcher);
+        }
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Counts the whole messages a spectator has read and drops them.
+     * @param watcher the spectator
+     */
+    private void count(Watcher watcher) {
+        ByteBuffer in = watcher.in.flip();
+        int n = 0;
+        while(in.hasRemaining()) {
+            if(binary && watcher.watching) {
+                int length = WAMBinaryCodec.frameLength(in);
+                if(length < 0) {
+                    break;
+                }
+                in.position(in.position() + length);
+            } else {
+                int end = -1;
+                for(int i = in.position(); i < in.limit() && end < 0; i++) {
+                    if(in.get(i) == '\n') {
+                        end = i;
+                    }
+                }
+                if(end < 0) {
+                    break;
+                }
+                in.position(end + 1);
+                watcher.watching = true;
+            }
+            n++;
+        }
+        in.compact();
+        if(measuring) {
+            messages += n;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Pops moles up and down on a {@link WAMBoard} with observers attached, the way the client does for
+ * every mole message, and walks the moles that are up the way a bot picks one to whack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WAMBoardBenchmark {
+
+    /** The length of a side of the square board */
+    @Param({"10", "1000"})
+    public int side;
+
+    /** The number of observers on the board */
+    @Param({"0", "1", "4"})
+    public int observers;
+
+    private WAMBoard board;
+    private int holes;
+    private int mole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        board = new WAMBoard(side, side);
+        holes = side * side;
+        for(int i = 0; i < observers; i++) {
+            board.addObserver(new BoardObserver() {
+                @Override
+                public void moleChanged(WAMBoard b, int number, boolean up) {
+                    blackhole.consume(number);
+                }
+
+                @Override
+                public void update(WAMBoard b) {
+                    blackhole.consume(b);
+                }
+            });
+        }
+        for(int i = 0; i < holes; i += 7) {
+            board.moleUp(i);
+        }
+    }
+
+    /**
+     * Pops one mole up and drops another, as two mole messages would.
+     */
+    @Benchmark
+    public void upAndDown() {
+        mole = (mole + 13) % holes;
+        board.moleUp(mole);
+        board.moleDown((mole + holes / 2) % holes);
+    }
+
+    /**
+     * Counts the moles that are up by walking only the set bits.
+     * @return the count
+     */
+    @Benchmark
+    public int walkUp() {
+        int count = 0;
+        for(int m = board.nextUp(0); m >= 0; m = board.nextUp(m + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,149 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the text framing of the {@link WAMProtocol} with the binary framing of
+ * {@link WAMBinaryProtocol}, encoding the way the server does and decoding the way the client does.
+ *
+ * Each invocation handles a whole stream of {@link #MESSAGES} messages, mostly mole events with a
+ * SCORE after every tenth, which is roughly what a client sees during a game.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    /** The number of messages in a stream */
+    private static final int MESSAGES = 1000;
+
+    /** The number of players in the SCORE messages */
+    @Param({"2", "16"})
+    public int players;
+
+    /** The number of holes on the board, which sets how long mole numbers get */
+    @Param({"100", "100000"})
+    public int holes;
+
+    private int[] moles;
+    private int[] scores;
+    private ByteBuffer out;
+    private byte[] textStream;
+    private ByteBuffer binaryStream;
+    private int[] decodedScores;
+
+    @Setup
+    public void setUp() {
+        moles = new int[MESSAGES];
+        scores = new int[players];
+        for(int i = 0; i < MESSAGES; i++) {
+            moles[i] = (int) ((i * 2654435761L) % holes);
+        }
+        for(int i = 0; i < players; i++) {
+            scores[i] = i * 7 - 5;
+        }
+        decodedScores = new int[players];
+        out = ByteBuffer.allocate(MESSAGES * (WAMBinaryCodec.maxScoresLength(players) + 32));
+        textEncode();
+        textStream = Arrays.copyOf(out.array(), out.position());
+        binaryEncode();
+        binaryStream = ByteBuffer.wrap(Arrays.copyOf(out.array(), out.position()));
+    }
+
+    /**
+     * Encodes the stream as text lines the way the server always has: by concatenating strings.
+     */
+    @Benchmark
+    public ByteBuffer textEncode() {
+        out.clear();
+        for(int i = 0; i < MESSAGES; i++) {
+            String line;
+            if(i % 10 == 9) {
+                StringBuilder s = new StringBuilder(WAMProtocol.SCORE);
+                for(int score: scores) {
+                    s.append(' ').append(score);
+                }
+                line = s.toString();
+            } else {
+                line = ((i & 1) == 0 ? WAMProtocol.MOLE_UP : WAMProtocol.MOLE_DOWN) + " " + moles[i];
+            }
+            out.put((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        return out;
+    }
+
+    /**
+     * Encodes the stream as binary frames.
+     */
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        out.clear();
+        for(int i = 0; i < MESSAGES; i++) {
+            if(i % 10 == 9) {
+                WAMBinaryCodec.putScores(out, scores);
+            } else {
+                WAMBinaryCodec.putMole(out, (i & 1) == 0 ? WAMBinaryProtocol.MOLE_UP : WAMBinaryProtocol.MOLE_DOWN,
+                        moles[i]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Decodes the text stream the way the client used to: Scanner.next(), nextLine(), split and parseInt.
+     */
+    @Benchmark
+    public void textDecode(Blackhole bh) {
+        Scanner in = new Scanner(new ByteArrayInputStream(textStream));
+        for(int i = 0; i < MESSAGES; i++) {
+            String request = in.next();
+            String[] arguments = in.nextLine().trim().split(" ");
+            if(request.equals(WAMProtocol.SCORE)) {
+                for(int k = 0; k < arguments.length; k++) {
+                    decodedScores[k] = Integer.parseInt(arguments[k]);
+                }
+                bh.consume(decodedScores);
+            } else {
+                bh.consume(Integer.parseInt(arguments[0]));
+            }
+        }
+    }
+
+    /**
+     * Decodes the binary stream the way the client does now.
+     */
+    @Benchmark
+    public void binaryDecode(Blackhole bh) {
+        ByteBuffer in = binaryStream;
+        in.clear();
+        while(WAMBinaryCodec.frameLength(in) > 0) {
+            if(in.get() == WAMBinaryProtocol.SCORE) {
+                WAMBinaryCodec.getScores(in, decodedScores);
+                bh.consume(decodedScores);
+            } else {
+                bh.consume(WAMBinaryCodec.getVarint(in));
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes one SCORE for a match of N players, the way the server first did, building the line with
+ * {@code +=} on a String for every player, and the way it does now, straight into a buffer with
+ * {@link WAMTextCodec#putScores} or {@link WAMBinaryCodec#putScores}. Run with {@code -prof gc}: the
+ * String path allocates a new String for every player, so it grows with the square of the players.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoreBenchmark {
+
+    /** The number of players in the SCORE */
+    @Param({"2", "16", "1000"})
+    public int players;
+
+    private int[] scores;
+    private ByteBuffer text;
+    private ByteBuffer binary;
+    private int round;
+
+    @Setup
+    public void setUp() {
+        scores = new int[players];
+        for(int i = 0; i < players; i++) {
+            scores[i] = (i * 37) % 200 - 50;
+        }
+        text = ByteBuffer.allocate(WAMTextCodec.maxScoresLength(players));
+        binary = ByteBuffer.allocate(WAMBinaryCodec.maxScoresLength(players));
+    }
+
+    /**
+     * Changes one score, so no two SCOREs in a row are the same.
+     */
+    private void score() {
+        scores[round++ % players] += 2;
+    }
+
+    /**
+     * Builds the line as the first WAMPlayer.getScore did, and encodes it into the buffer as its
+     * PrintWriter did.
+     * @return the buffer
+     */
+    @Benchmark
+    public ByteBuffer stringConcat() {
+        score();
+        String s = "SCORE";
+        for(int i = 0; i < scores.length; i++) {
+            s += " " + scores[i];
+        }
+        text.clear();
+        return text.put((s + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Encodes the line straight into the buffer.
+     * @return the buffer
+     */
+    @Benchmark
+    public ByteBuffer textCodec() {
+        score();
+        text.clear();
+        WAMTextCodec.putScores(text, scores);
+        return text;
+    }
+
+    /**
+     * Encodes the binary frame straight into the buffer.
+     * @return the buffer
+     */
+    @Benchmark
+    public ByteBuffer binaryCodec() {
+        score();
+        binary.clear();
+        WAMBinaryCodec.putScores(binary, scores);
+        return binary;
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Broadcasts one mole event to many players' outbound buffers, as {@link WAMGame} does on every
+ * mole transition. Run with {@code -prof gc}: encoding straight into each buffer should show no
+ * allocation per operation however many players there are, while the string path allocates for
+ * each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /** The number of players the event goes to */
+    @Param({"10", "1000"})
+    public int players;
+
+    private OutboundBuffer[] buffers;
+    private int mole;
+
+    @Setup
+    public void setUp() {
+        buffers = new OutboundBuffer[players];
+        for(int i = 0; i < players; i++) {
+            buffers[i] = new OutboundBuffer(1024);
+        }
+    }
+
+    /**
+     * Empties a buffer once it has some messages in it, standing in for the writer.
+     * @param buffer the buffer
+     */
+    private static void drain(OutboundBuffer buffer) {
+        buffer.flip().position(0).limit(0);
+        buffer.written();
+    }
+
+    /**
+     * Encodes the event straight into every player's buffer, the way a player's writer does.
+     */
+    @Benchmark
+    public void encodePerPlayer() {
+        int m = mole++ & 0xffff;
+        for(OutboundBuffer b: buffers) {
+            b.mole(true, m);
+            drain(b);
+        }
+    }
+
+    /**
+     * Builds and encodes the line for each player, the way players used to.
+     */
+    @Benchmark
+    public void stringPerPlayer() {
+        int m = mole++ & 0xffff;
+        for(OutboundBuffer b: buffers) {
+            b.line("MOLE_UP " + m);
+            drain(b);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import common.WAMLayout;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What judging whacks by when they were clicked costs: a mole drops down by itself, then a whack stamped
+ * with when it came up arrives, and the mole comes back up. Without a tolerance that whack is a miss;
+ * with one the game looks back through the hole's {@link HoleHistory} and gives the player the mole,
+ * and every transition is noted in the history as well.
+ *
+ * The clock whacks are stamped with counts milliseconds, so the board is big enough that a mole is
+ * visited again a few milliseconds after it came up rather than within the same one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LateWhackBenchmark {
+
+    /** The number of holes on the board */
+    private static final int HOLES = 1 << 16;
+
+    /** How late a whack may be judged, in milliseconds; 0 judges it when it arrives */
+    @Param({"0", "150"})
+    public int tolerance;
+
+    private WAMGame game;
+
+    private int next;
+
+    /** The time each mole last came up */
+    private final long[] upAt = new long[HOLES];
+
+    @Setup(Level.Iteration)
+    public void setUp() throws InterruptedException {
+        GameConfig config = new GameConfig(1, HOLES, 1, 0, WAMGame.MoleMode.WHEEL, ThreadMode.PLATFORM, 0)
+                .withTolerance(tolerance);
+        game = new WAMGame(0, new WAMConnection[] {new Sink()}, config, null, new MoleScheduler(),
+                new WAMMetrics());
+        for(int mole = 0; mole < HOLES; mole++) {
+            game.moleUp(mole, System.nanoTime());
+            upAt[mole] = GameClock.millis();
+        }
+        Thread.sleep(2);
+    }
+
+    /**
+     * Drops the next mole, whacks it as of when it came up, and puts it back up.
+     * @return whether the mole is up again
+     */
+    @Benchmark
+    public boolean lateWhack() {
+        int mole = next;
+        next = (next + 1) & (HOLES - 1);
+        game.moleDown(mole, System.nanoTime());
+        game.whackAt(mole, 0, upAt[mole]);
+        game.moleUp(mole, System.nanoTime());
+        upAt[mole] = GameClock.millis();
+        return game.getStatus(mole);
+    }
+
+    /**
+     * A player that throws every message away.
+     */
+    private static class Sink implements WAMConnection {
+        @Override public void MoleDown(int moleNumber) { }
+        @Override public void MoleUp(int moleNumber) { }
+        @Override public void getScore(int[] scores) { }
+        @Override public void gameWon() { }
+        @Override public void gameLost() { }
+        @Override public void gameTied() { }
+        @Override public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) { }
+        @Override public void flush() { }
+        @Override public void setGame(WAMGame game) { }
+        @Override public void start() { }
+        @Override public void close() { }
+    }
+}
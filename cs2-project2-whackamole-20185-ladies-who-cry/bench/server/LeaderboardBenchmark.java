@@ -0,0 +1,84 @@
+package server;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long a {@link Leaderboard} takes to rank a player, list the top ten and take a new result once it
+ * holds millions of results, with scores spread the way a long run of 2-player matches spreads them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeaderboardBenchmark {
+
+    /** The number of players */
+    @Param({"100000"})
+    public int players;
+
+    /** The number of results recorded before measuring */
+    @Param({"5000000"})
+    public int results;
+
+    private Leaderboard leaderboard;
+
+    private String[] names;
+
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        leaderboard = new Leaderboard();
+        names = new String[players];
+        for(int i = 0; i < players; i++) {
+            names[i] = "player-" + i;
+        }
+        random = new SplittableRandom(1);
+        for(int i = 0; i < results; i++) {
+            leaderboard.record(names[random.nextInt(players)], score(), random.nextBoolean());
+        }
+    }
+
+    /**
+     * @return a score: mostly bunched around 30, with a long tail of the odd great game
+     */
+    private int score() {
+        return (int) (30 + 12 * random.nextGaussian() + (random.nextInt(1000) == 0 ? random.nextInt(500) : 0));
+    }
+
+    @Benchmark
+    public int rank() {
+        return leaderboard.rank(names[random.nextInt(players)]);
+    }
+
+    @Benchmark
+    public String standing() {
+        return leaderboard.standing(names[random.nextInt(players)]);
+    }
+
+    @Benchmark
+    public String top() {
+        return leaderboard.top(10);
+    }
+
+    @Benchmark
+    public void record() {
+        leaderboard.record(names[random.nextInt(players)], score(), random.nextBoolean());
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Compares the ways of driving moles on boards of 1k, 10k and 100k holes.
+ *
+ * For each board size and {@link WAMGame.MoleMode} it starts a game with no players, lets the moles run,
+ * and then reports the live thread count, the resident set size of the process and how late the mole
+ * transitions (and, for the wheel, its ticks) fired compared to when they were scheduled.
+ *
+ * Usage: java server.MoleSchedulerBenchmark [seconds] [holes...]
+ *
+ * Thread mode is skipped above 10k holes, since that is exactly the thread count the wheel is there to avoid.
+ * RSS only ever grows inside one JVM, so for clean memory numbers run one board size per invocation.
+ */
+public class MoleSchedulerBenchmark {
+
+    /** The most holes thread mode is run with */
+    private static final int MAX_THREAD_HOLES = 10_000;
+
+    /**
+     * Runs the benchmark.
+     * @param args the measuring time in seconds, then the board sizes
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int[] sizes = {1_000, 10_000, 100_000};
+        if(args.length > 1) {
+            sizes = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%-8s %8s %8s %10s %12s %12s %12s %12s%n", "mode", "holes", "threads", "rss(MB)",
+                "lag avg(ms)", "lag max(ms)", "tick avg(ms)", "tick max(ms)");
+        for(int holes: sizes) {
+            for(WAMGame.MoleMode mode: WAMGame.MoleMode.values()) {
+                if(mode == WAMGame.MoleMode.THREADS && holes > MAX_THREAD_HOLES) {
+                    continue;
+                }
+                run(mode, holes, seconds);
+            }
+        }
+    }
+
+    /**
+     * Runs one board size in one mode and prints a row of results.
+     * @param mode how the moles are driven
+     * @param holes the number of holes on the board
+     * @param seconds how long to measure for
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    private static void run(WAMGame.MoleMode mode, int holes, int seconds) throws InterruptedException {
+        MoleScheduler scheduler = new MoleScheduler();
+        scheduler.start();
+        int columns = 100;
+        GameConfig config = new GameConfig(holes / columns, columns, 0, seconds, mode, ThreadMode.PLATFORM, 0);
+        WAMGame game = new WAMGame(0, new WAMConnection[0], config, null, scheduler, new WAMMetrics());
+        game.startMoles();
+
+        // let every mole get through its first hidden period before measuring
+        Thread.sleep(WAMGame.MAX_HIDDEN);
+        game.resetLag();
+        scheduler.resetStats();
+        Thread.sleep(seconds * 1000L);
+
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rss = residentSetSize();
+        System.out.printf("%-8s %8d %8d %10.1f %12.2f %12.2f %12.2f %12.2f%n", mode, holes, threads,
+                rss / 1048576.0, game.getMeanLag() / 1e6, game.getMaxLag() / 1e6,
+                scheduler.getMeanTickLag() / 1e6, scheduler.getMaxTickLag() / 1e6);
+
+        game.stopMoles();
+        scheduler.stop();
+        Thread.sleep(1000);
+        System.gc();
+    }
+
+    /**
+     * @return the resident set size of this process in bytes, or -1 if it can't be read
+     */
+    private static long residentSetSize() {
+        try {
+            for(String line: Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if(line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import common.WAMException;
+import common.WAMLayout;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What recording a match to a {@link ReplayLog} adds to {@link WAMGame#whack(int, int)}: a million
+ * whacks, every one of them a hit on a mole that is put straight back up, with and without the game
+ * being recorded. That is two records per whack when recorded (the hit and the mole coming back up),
+ * so each iteration writes about 40 MB of log.
+ *
+ * Each iteration gets a fresh game and log directory, which is deleted afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = ReplayLogBenchmark.WHACKS)
+@Measurement(iterations = 10, batchSize = ReplayLogBenchmark.WHACKS)
+@Fork(1)
+public class ReplayLogBenchmark {
+
+    /** The whacks in one iteration */
+    static final int WHACKS = 1_000_000;
+
+    /** The number of holes on the board */
+    private static final int HOLES = 1024;
+
+    /** Whether the game is recorded */
+    @Param({"false", "true"})
+    public boolean recorded;
+
+    private WAMGame game;
+
+    private Path dir;
+
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, WAMException {
+        GameConfig config = new GameConfig(1, HOLES, 1, 0, WAMGame.MoleMode.WHEEL, ThreadMode.PLATFORM, 0);
+        game = new WAMGame(0, new WAMConnection[] {new Sink()}, config, null, new MoleScheduler(),
+                new WAMMetrics());
+        if(recorded) {
+            dir = Files.createTempDirectory("wam-replay");
+            game.record(new ReplayLog(dir).startMatch(config));
+        }
+        for(int i = 0; i < HOLES; i++) {
+            game.moleUp(i, System.nanoTime());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        if(dir == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        dir = null;
+    }
+
+    /**
+     * Hits the next hole and puts its mole back up.
+     * @return whether the mole is up again
+     */
+    @Benchmark
+    public boolean whack() {
+        int mole = next;
+        next = (next + 1) & (HOLES - 1);
+        game.whack(mole, 0);
+        game.moleUp(mole, System.nanoTime());
+        return game.getStatus(mole);
+    }
+
+    /**
+     * A player that throws every message away.
+     */
+    private static class Sink implements WAMConnection {
+        @Override public void MoleDown(int moleNumber) { }
+        @Override public void MoleUp(int moleNumber) { }
+        @Override public void getScore(int[] scores) { }
+        @Override public void gameWon() { }
+        @Override public void gameLost() { }
+        @Override public void gameTied() { }
+        @Override public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) { }
+        @Override public void flush() { }
+        @Override public void setGame(WAMGame game) { }
+        @Override public void start() { }
+        @Override public void close() { }
+    }
+}
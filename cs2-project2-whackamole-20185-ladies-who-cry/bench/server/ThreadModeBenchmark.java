@@ -0,0 +1,110 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Compares platform and virtual threads for moles in {@link WAMGame.MoleMode#THREADS} mode.
+ *
+ * For each board size and {@link ThreadMode} it starts a game with no players and reports how long the
+ * mole threads took to start, the live platform thread count, the resident set size of the process, how
+ * late the mole transitions fired, and how long stopping the game took (every mole thread interrupted
+ * and waited for).
+ *
+ * Usage: java server.ThreadModeBenchmark [seconds] [holes...]
+ *
+ * Virtual threads are skipped on a JVM without them. Platform threads are skipped above 10k holes, as in
+ * {@link MoleSchedulerBenchmark}. For blocking players on either kind of thread, run the load generator
+ * with --io=blocking --threads=platform|virtual.
+ */
+public class ThreadModeBenchmark {
+
+    /** The most holes platform threads are run with */
+    private static final int MAX_PLATFORM_HOLES = 10_000;
+
+    /**
+     * Runs the benchmark.
+     * @param args the measuring time in seconds, then the board sizes
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int[] sizes = {1_000, 10_000, 100_000};
+        if(args.length > 1) {
+            sizes = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        if(!ThreadMode.VIRTUAL.isSupported()) {
+            System.out.println("This JVM has no virtual threads (Java " + Runtime.version().feature()
+                    + "); only platform threads are measured");
+        }
+
+        System.out.printf("%-9s %8s %10s %8s %10s %12s %12s %10s%n", "threads", "holes", "start(ms)", "os thr",
+                "rss(MB)", "lag avg(ms)", "lag max(ms)", "stop(ms)");
+        for(int holes: sizes) {
+            for(ThreadMode mode: ThreadMode.values()) {
+                if(!mode.isSupported() || (mode == ThreadMode.PLATFORM && holes > MAX_PLATFORM_HOLES)) {
+                    continue;
+                }
+                run(mode, holes, seconds);
+            }
+        }
+    }
+
+    /**
+     * Runs one board size on one kind of thread and prints a row of results.
+     * @param mode the kind of thread every mole gets
+     * @param holes the number of holes on the board
+     * @param seconds how long to measure for
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    private static void run(ThreadMode mode, int holes, int seconds) throws InterruptedException {
+        MoleScheduler scheduler = new MoleScheduler();
+        scheduler.start();
+        int columns = 100;
+        GameConfig config = new GameConfig(holes / columns, columns, 0, seconds, WAMGame.MoleMode.THREADS, mode,
+                0);
+        WAMGame game = new WAMGame(0, new WAMConnection[0], config, null, scheduler, new WAMMetrics());
+
+        long start = System.nanoTime();
+        game.startMoles();
+        long started = System.nanoTime() - start;
+
+        // let every mole get through its first hidden period before measuring
+        Thread.sleep(WAMGame.MAX_HIDDEN);
+        game.resetLag();
+        Thread.sleep(seconds * 1000L);
+
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rss = residentSetSize();
+        long stop = System.nanoTime();
+        game.stopMoles();
+        long stopped = System.nanoTime() - stop;
+        System.out.printf("%-9s %8d %10.1f %8d %10.1f %12.2f %12.2f %10.1f%n", mode, holes, started / 1e6,
+                threads, rss / 1048576.0, game.getMeanLag() / 1e6, game.getMaxLag() / 1e6, stopped / 1e6);
+
+        scheduler.stop();
+        Thread.sleep(1000);
+        System.gc();
+    }
+
+    /**
+     * @return the resident set size of this process in bytes, or -1 if it can't be read
+     */
+    private static long residentSetSize() {
+        try {
+            for(String line: Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if(line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,92 @@
+package server;
+
+import common.WAMLayout;
+
+/**
+ * Plays games in {@link WAMGame.MoleMode#TICKS} mode faster than real time and reports how fast they go.
+ *
+ * For each board size it simulates the given number of game seconds three times, twice with one seed
+ * and once with another, with a player that folds every message it gets into a checksum. It prints the
+ * ticks run a second, how many times faster than real time that is, the mole changes, and the checksum,
+ * which is the same for both runs of a seed when the engine is deterministic.
+ *
+ * Usage: java server.TickEngineBenchmark [game seconds] [holes...]
+ */
+public class TickEngineBenchmark {
+
+    /**
+     * Runs the benchmark.
+     * @param args the game time to simulate in seconds, then the board sizes
+     */
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        int[] sizes = {1_000, 10_000, 100_000};
+        if(args.length > 1) {
+            sizes = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%8s %6s %12s %10s %12s %18s%n", "holes", "seed", "ticks/s", "realtime", "changes",
+                "checksum");
+        for(int holes: sizes) {
+            for(long seed: new long[] {1, 1, 2}) {
+                run(holes, seed, seconds);
+            }
+        }
+    }
+
+    /**
+     * Simulates one game and prints a row of results.
+     * @param holes the number of holes on the board
+     * @param seed the seed of the moles
+     * @param seconds the game time to simulate
+     */
+    private static void run(int holes, long seed, int seconds) {
+        int columns = 100;
+        GameConfig config = new GameConfig(holes / columns, columns, 1, seconds, WAMGame.MoleMode.TICKS,
+                ThreadMode.PLATFORM, seed);
+        Recorder player = new Recorder();
+        // the scheduler is never started, so only simulate() ticks the game
+        WAMGame game = new WAMGame(0, new WAMConnection[] {player}, config, null, new MoleScheduler(),
+                new WAMMetrics());
+        game.startMoles();
+        int ticks = seconds * 1000 / MoleScheduler.TICK_MS;
+
+        long start = System.nanoTime();
+        game.simulate(ticks);
+        long elapsed = System.nanoTime() - start;
+        game.stopMoles();
+
+        double ticksPerSecond = ticks / (elapsed / 1e9);
+        System.out.printf("%8d %6d %12.0f %9.0fx %12d %18x%n", holes, seed, ticksPerSecond,
+                ticksPerSecond * MoleScheduler.TICK_MS / 1000, player.changes, player.checksum);
+    }
+
+    /**
+     * A player that keeps a checksum of the order and tick of every mole change it is sent.
+     */
+    private static class Recorder implements WAMConnection {
+        private long checksum = 17;
+        private long changes;
+        private long flushes;
+
+        private void add(long value) {
+            checksum = checksum * 31 + value;
+            changes++;
+        }
+
+        @Override public void MoleDown(int moleNumber) { add(-1 - moleNumber); }
+        @Override public void MoleUp(int moleNumber) { add(moleNumber); }
+        @Override public void getScore(int[] scores) { }
+        @Override public void gameWon() { }
+        @Override public void gameLost() { }
+        @Override public void gameTied() { }
+        @Override public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) { }
+        @Override public void flush() { checksum = checksum * 31 + (++flushes); }
+        @Override public void setGame(WAMGame game) { }
+        @Override public void start() { }
+        @Override public void close() { }
+    }
+}
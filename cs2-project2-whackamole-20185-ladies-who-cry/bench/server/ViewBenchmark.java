@@ -0,0 +1,131 @@
+package server;
+
+import common.WAMLayout;
+
+import java.util.SplittableRandom;
+
+/**
+ * Plays a big board in {@link WAMGame.MoleMode#TICKS} mode faster than real time, once with every player
+ * sent the whole board and once with each player looking at a small part of it through a VIEW, and
+ * reports how many mole messages the players were sent and how long the game took to play.
+ *
+ * Every player's view is a square somewhere on the board. The players count the messages they get and
+ * the ones for holes further from their view than a tile's slack, which should be none.
+ *
+ * Usage: java server.ViewBenchmark [game seconds] [rows and columns] [players] [view side]
+ */
+public class ViewBenchmark {
+
+    /**
+     * Runs the benchmark.
+     * @param args the game time in seconds, the rows and columns of the board, the players, and the
+     *             side of each player's view
+     */
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        int side = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int players = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int view = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        System.out.printf("%10s %8s %8s %14s %16s %10s %10s%n", "holes", "players", "view", "messages",
+                "per player/s", "outside", "ms");
+        for(int i = 0; i < 2; i++) {
+            run(side, players, 0, seconds);
+            run(side, players, view, seconds);
+        }
+    }
+
+    /**
+     * Plays one game and prints a row of results.
+     * @param side the rows and columns of the board
+     * @param players the number of players
+     * @param view the side of every player's view, or 0 for the whole board
+     * @param seconds the game time to play
+     */
+    private static void run(int side, int players, int view, int seconds) {
+        GameConfig config = new GameConfig(side, side, players, seconds, WAMGame.MoleMode.TICKS,
+                ThreadMode.PLATFORM, 1);
+        Counter[] counters = new Counter[players];
+        SplittableRandom random = new SplittableRandom(7);
+        for(int p = 0; p < players; p++) {
+            // a view is widened to whole tiles, about eight holes a side on a grid, so sixteen is plenty
+            counters[p] = new Counter(side, random.nextInt(side - Math.max(view, 1) + 1),
+                    random.nextInt(side - Math.max(view, 1) + 1), view, 16);
+        }
+        // the scheduler is never started, so only simulate() ticks the game
+        WAMGame game = new WAMGame(0, counters, config, null, new MoleScheduler(), new WAMMetrics());
+        game.startMoles();
+        if(view > 0) {
+            for(int p = 0; p < players; p++) {
+                game.view(p, counters[p].x, counters[p].y, view, view);
+            }
+        }
+        int ticks = seconds * 1000 / MoleScheduler.TICK_MS;
+
+        long start = System.nanoTime();
+        game.simulate(ticks);
+        long elapsed = System.nanoTime() - start;
+        game.stopMoles();
+
+        long messages = 0;
+        long outside = 0;
+        for(Counter c: counters) {
+            messages += c.messages;
+            outside += c.outside;
+        }
+        System.out.printf("%10d %8d %8s %14d %16.0f %10d %10.0f%n", (long) side * side, players,
+                view > 0 ? view + "x" + view : "all", messages, (double) messages / players / seconds, outside,
+                elapsed / 1e6);
+    }
+
+    /**
+     * A player that counts the mole messages it is sent, and those for holes it shouldn't see.
+     */
+    private static class Counter implements WAMConnection {
+        private final int columns;
+        private final int x;
+        private final int y;
+        private final int view;
+        private final int slack;
+        private long messages;
+        private long outside;
+
+        /**
+         * @param columns the columns of the board
+         * @param x the left of the player's view
+         * @param y the top of the player's view
+         * @param view the side of the player's view, or 0 for the whole board
+         * @param slack how far from the view a hole may be and still be sent
+         */
+        Counter(int columns, int x, int y, int view, int slack) {
+            this.columns = columns;
+            this.x = x;
+            this.y = y;
+            this.view = view;
+            this.slack = slack;
+        }
+
+        private void count(int mole) {
+            messages++;
+            int column = mole % columns;
+            int row = mole / columns;
+            if(view > 0 && (column < x - slack || column >= x + view + slack || row < y - slack
+                    || row >= y + view + slack)) {
+                outside++;
+            }
+        }
+
+        @Override public void MoleDown(int moleNumber) { count(moleNumber); }
+        @Override public void MoleUp(int moleNumber) { count(moleNumber); }
+        @Override public void refresh(int moleNumber) { count(moleNumber); }
+        @Override public void getScore(int[] scores) { }
+        @Override public void gameWon() { }
+        @Override public void gameLost() { }
+        @Override public void gameTied() { }
+        @Override public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) { }
+        @Override public void flush() { }
+        @Override public void setGame(WAMGame game) { }
+        @Override public void start() { }
+        @Override public void close() { }
+    }
+}
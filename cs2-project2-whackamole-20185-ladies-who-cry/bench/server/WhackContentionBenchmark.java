@@ -0,0 +1,142 @@
+package server;
+
+import common.WAMLayout;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Many players whacking one game at once. Every benchmark thread is a player hitting random holes;
+ * a mole it knocks down is put straight back up so there is always something to hit. The lock-free
+ * {@link WAMGame#whack(int, int)} is compared with the same call made under the game's lock, which
+ * is how the game used to take whacks.
+ *
+ * Run {@link #main(String[])} to sweep 2 to 64 whacking threads; running it through the JMH main
+ * class uses whatever {@code -t} is given instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WhackContentionBenchmark {
+
+    /** The number of holes on the board; fewer holes means more whacks on the same mole */
+    @Param({"16", "1024"})
+    public int holes;
+
+    /** The most players a game is made for; threads beyond this share player numbers */
+    private static final int PLAYERS = 64;
+
+    private WAMGame game;
+
+    /** Hands out player numbers to the benchmark threads */
+    private final AtomicInteger nextPlayer = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        WAMConnection[] players = new WAMConnection[PLAYERS];
+        for(int i = 0; i < PLAYERS; i++) {
+            players[i] = new Sink();
+        }
+        GameConfig config = new GameConfig(1, holes, PLAYERS, 0, WAMGame.MoleMode.WHEEL, ThreadMode.PLATFORM,
+                0);
+        game = new WAMGame(0, players, config, null, new MoleScheduler(), new WAMMetrics());
+        for(int i = 0; i < holes; i++) {
+            game.moleUp(i, System.nanoTime());
+        }
+    }
+
+    /**
+     * The state of one whacking thread.
+     */
+    @State(Scope.Thread)
+    public static class Player {
+        int number;
+        SplittableRandom random;
+
+        @Setup
+        public void setUp(WhackContentionBenchmark bench) {
+            number = bench.nextPlayer.getAndIncrement() % PLAYERS;
+            random = new SplittableRandom(number);
+        }
+    }
+
+    /**
+     * Whacks a random hole and puts the mole back up if it was knocked down.
+     * @param player the whacking thread
+     * @return whether the mole was up afterwards
+     */
+    @Benchmark
+    public boolean lockFree(Player player) {
+        int mole = player.random.nextInt(holes);
+        game.whack(mole, player.number);
+        game.moleUp(mole, System.nanoTime());
+        return game.getStatus(mole);
+    }
+
+    /**
+     * The same as {@link #lockFree(Player)} with every whack made holding the game's lock.
+     * @param player the whacking thread
+     * @return whether the mole was up afterwards
+     */
+    @Benchmark
+    public boolean locked(Player player) {
+        int mole = player.random.nextInt(holes);
+        synchronized(game) {
+            game.whack(mole, player.number);
+        }
+        game.moleUp(mole, System.nanoTime());
+        return game.getStatus(mole);
+    }
+
+    /**
+     * A player that throws every message away.
+     */
+    private static class Sink implements WAMConnection {
+        @Override public void MoleDown(int moleNumber) { }
+        @Override public void MoleUp(int moleNumber) { }
+        @Override public void getScore(int[] scores) { }
+        @Override public void gameWon() { }
+        @Override public void gameLost() { }
+        @Override public void gameTied() { }
+        @Override public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) { }
+        @Override public void flush() { }
+        @Override public void setGame(WAMGame game) { }
+        @Override public void start() { }
+        @Override public void close() { }
+    }
+
+    /**
+     * Runs both benchmarks with 2, 4, 8, 16, 32 and 64 whacking threads.
+     * @param args not used
+     * @throws RunnerException if JMH fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        for(int threads = 2; threads <= 64; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(WhackContentionBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Asks a {@link WhackLimiter} about whacks the way a player does for every whack it reads: once for a
+ * client well within its rate, where every whack takes a token, and once for a client flooding it,
+ * where nearly every whack is refused. The refused path is what a flood costs the server, so it should
+ * be no dearer than the allowed one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WhackLimiterBenchmark {
+
+    /** A limiter that lets everything through: a billion whacks a second in bursts of a million */
+    private WhackLimiter open;
+
+    /** A limiter that lets almost nothing through: one whack a second, one at a time */
+    private WhackLimiter flooded;
+
+    @Setup
+    public void setUp() {
+        open = new WhackLimiter(1_000_000_000, 1_000_000);
+        flooded = new WhackLimiter(1, 1);
+        // take its only token and get it shed, so it only refuses from here on
+        while(flooded.check(System.nanoTime()) != WhackLimiter.SHED) {
+            // keep flooding
+        }
+    }
+
+    /**
+     * A whack from a client within its rate.
+     * @return the verdict
+     */
+    @Benchmark
+    public int allowed() {
+        return open.check(System.nanoTime());
+    }
+
+    /**
+     * A whack from a client that has been shed for flooding.
+     * @return the verdict
+     */
+    @Benchmark
+    public int refused() {
+        return flooded.check(System.nanoTime());
+    }
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.WAMProtocol;
+
+/**
+ * Parses a stream of text WHACK lines the two ways the server does: {@link WAMPlayer} splits each
+ * line into strings and calls {@link Integer#parseInt(String)}, while {@link NioPlayer} reads the
+ * digits straight out of the byte buffer. Run with {@code -prof gc} to see the allocation per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WhackParsingBenchmark {
+
+    /** The number of lines in a stream */
+    private static final int LINES = 1000;
+
+    /** The number of holes on the board, which sets how long mole numbers get */
+    @Param({"100", "100000"})
+    public int holes;
+
+    private String[] lines;
+    private ByteBuffer stream;
+
+    @Setup
+    public void setUp() {
+        lines = new String[LINES];
+        StringBuilder all = new StringBuilder();
+        for(int i = 0; i < LINES; i++) {
+            lines[i] = WAMProtocol.WHACK + " " + (int) ((i * 2654435761L) % holes) + " " + (i % 2);
+            all.append(lines[i]).append('\n');
+        }
+        stream = ByteBuffer.wrap(all.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses every line the way {@link WAMPlayer#run()} does, from lines already read.
+     * @return the sum of the mole numbers, so nothing is optimised away
+     */
+    @Benchmark
+    public long splitAndParseInt() {
+        long sum = 0;
+        for(String line: lines) {
+            String[] s = line.split(" ");
+            if(s[0].equals(WAMProtocol.WHACK)) {
+                sum += Integer.parseInt(s[1]);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Parses every line the way {@link NioPlayer} does, from the bytes as they came off the socket.
+     * @return the sum of the mole numbers, so nothing is optimised away
+     */
+    @Benchmark
+    public long scanBytes() {
+        ByteBuffer in = stream;
+        long sum = 0;
+        int i = 0;
+        int end = in.limit();
+        while(i < end) {
+            int k = 0;
+            while(k < WAMProtocol.WHACK.length() && in.get(i + k) == WAMProtocol.WHACK.charAt(k)) {
+                k++;
+            }
+            i += k;
+            while(in.get(i) == ' ') {
+                i++;
+            }
+            int mole = 0;
+            byte b;
+            while((b = in.get(i)) >= '0' && b <= '9') {
+                mole = mole * 10 + (b - '0');
+                i++;
+            }
+            sum += mole;
+            while(in.get(i) != '\n') {
+                i++;
+            }
+            i++;
+        }
+        return sum;
+    }
+}
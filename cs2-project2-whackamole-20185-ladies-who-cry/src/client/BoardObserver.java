@@ -0,0 +1,17 @@
+package client;
+
+/**
+ * An observer of a {@link WAMBoard} that is told which mole changed, so it can redraw just that hole
+ * instead of the whole board. Changes other than moles still come through {@link #update(Object)}.
+ */
+public interface BoardObserver extends Observer<WAMBoard> {
+
+    /**
+     * Called by the board whenever a mole pops up or drops down.
+     *
+     * @param board the board the mole is on
+     * @param mole the mole number
+     * @param up whether the mole is now up
+     */
+    void moleChanged(WAMBoard board, int mole, boolean up);
+}
@@ -0,0 +1,119 @@
+package client;
+
+import common.WAMLayout;
+
+/**
+ * Finds the hole under a point of a {@link WAMLayout} in constant time, however many holes the layout
+ * has and however they are scattered.
+ *
+ * The board is cut into a uniform grid of cells, no smaller than a hole and sized so there are about as
+ * many cells as holes, and every hole is listed in each cell it overlaps, which is at most four. A point
+ * only has to be checked against the few holes of its own cell. The lists are kept in two int arrays
+ * rather than an object per cell, so the index of a million holes is a few tens of megabytes at most.
+ */
+public final class HoleIndex {
+
+    private final WAMLayout layout;
+
+    /** The width and height of a cell, in layout units */
+    private final int cell;
+
+    /** The number of cells across and down */
+    private final int columns;
+    private final int rows;
+
+    /** Where each cell's holes start in {@link #holes}, and one past the last cell's */
+    private final int[] start;
+
+    /** The holes of every cell, cell after cell */
+    private final int[] holes;
+
+    /**
+     * Builds the index of a layout.
+     * @param layout the layout
+     */
+    public HoleIndex(WAMLayout layout) {
+        this.layout = layout;
+        int size = layout.getSize();
+        long area = (long) layout.getWidth() * layout.getHeight();
+        this.cell = (int) Math.max(size, Math.ceil(Math.sqrt((double) area / layout.getHoles())));
+        this.columns = (layout.getWidth() + cell - 1) / cell;
+        this.rows = (layout.getHeight() + cell - 1) / cell;
+        this.start = new int[columns * rows + 1];
+        // count the holes of every cell, then lay the cells out one after another and fill them in
+        for(int mole = 0; mole < layout.getHoles(); mole++) {
+            for(int c = firstCell(mole); c >= 0; c = nextCell(mole, c)) {
+                start[c + 1]++;
+            }
+        }
+        for(int c = 0; c < columns * rows; c++) {
+            start[c + 1] += start[c];
+        }
+        this.holes = new int[start[columns * rows]];
+        int[] filled = new int[columns * rows];
+        for(int mole = 0; mole < layout.getHoles(); mole++) {
+            for(int c = firstCell(mole); c >= 0; c = nextCell(mole, c)) {
+                holes[start[c] + filled[c]++] = mole;
+            }
+        }
+    }
+
+    /**
+     * @param mole a mole number
+     * @return the top left cell its hole overlaps
+     */
+    private int firstCell(int mole) {
+        return layout.getY(mole) / cell * columns + layout.getX(mole) / cell;
+    }
+
+    /**
+     * Steps through the cells a hole overlaps, along each row of them and then down.
+     * @param mole a mole number
+     * @param c the cell it has got to
+     * @return the next cell it overlaps, or -1 if there are no more
+     */
+    private int nextCell(int mole, int c) {
+        int left = layout.getX(mole) / cell;
+        int right = (layout.getX(mole) + layout.getSize() - 1) / cell;
+        int bottom = (layout.getY(mole) + layout.getSize() - 1) / cell;
+        int column = c % columns;
+        int row = c / columns;
+        if(column < right) {
+            return c + 1;
+        }
+        return row < bottom ? (row + 1) * columns + left : -1;
+    }
+
+    /**
+     * Finds the hole under a point. Where holes overlap, the one whose centre is nearest wins.
+     * @param x the distance from the left of the board, in layout units
+     * @param y the distance from the top of the board, in layout units
+     * @return the mole number of the hole, or -1 if there is none there
+     */
+    public int holeAt(double x, double y) {
+        if(x < 0 || y < 0 || x >= layout.getWidth() || y >= layout.getHeight()) {
+            return -1;
+        }
+        int c = (int) y / cell * columns + (int) x / cell;
+        double half = layout.getSize() / 2.0;
+        int found = -1;
+        double nearest = Double.MAX_VALUE;
+        for(int i = start[c]; i < start[c + 1]; i++) {
+            int mole = holes[i];
+            double dx = x - layout.getX(mole) - half;
+            double dy = y - layout.getY(mole) - half;
+            if(Math.abs(dx) <= half && Math.abs(dy) <= half && dx * dx + dy * dy < nearest) {
+                nearest = dx * dx + dy * dy;
+                found = mole;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the layout the index is of
+     */
+    public WAMLayout getLayout() {
+        return layout;
+    }
+}
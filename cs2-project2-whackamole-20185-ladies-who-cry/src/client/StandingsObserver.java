@@ -0,0 +1,30 @@
+package client;
+
+/**
+ * Told the server's answers about the leaderboard, which a client asks for with
+ * {@link WAMNetworkClient#requestRank(String)} and {@link WAMNetworkClient#requestTop(int)}.
+ * Called on the client's listener thread.
+ */
+public interface StandingsObserver {
+
+    /**
+     * Called with a player's standing.
+     *
+     * @param name the player's name
+     * @param rank their rank, 1 for the best, or 0 if they have no results
+     * @param players the number of players ranked
+     * @param best their best score
+     * @param games the games they have played
+     * @param wins the games they have won
+     * @param recent the rolling average of their recent scores
+     */
+    void rank(String name, int rank, int players, int best, int games, int wins, int recent);
+
+    /**
+     * Called with the best players.
+     *
+     * @param names their names, best first
+     * @param best their best scores
+     */
+    void top(String[] names, int[] best);
+}
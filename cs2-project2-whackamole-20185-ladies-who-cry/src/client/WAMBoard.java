@@ -41,8 +41,11 @@ public class WAMBoard {
         NONE
     }
 
-    /** the board */
-    private Move[][] board;
+    /**
+     * the board: one bit per hole, indexed by mole number and set while the mole is up,
+     * so even a 1000x1000 board takes about 125 KB
+     */
+    private long[] board;
 
     /** the observers of this model */
     private List<Observer<WAMBoard>> observers;
@@ -54,12 +57,7 @@ public class WAMBoard {
         this.rows = rows;
         this.columns = columns;
 
-        this.board = new Move[columns][rows];
-        for(int i = 0; i < columns; i++) {
-            for(int j = 0; j < rows; j++) {
-                board[i][j] = Move.NONE;
-            }
-        }
+        this.board = new long[(rows * columns + 63) >>> 6];
     }
 
     /**
@@ -77,6 +75,20 @@ public class WAMBoard {
         }
     }
 
+    /**
+     * when a mole changes, observers that care which one it was are told just that;
+     * the rest are notified via their update() method
+     */
+    private void alertObservers(int mole, boolean up) {
+        for (Observer<WAMBoard> obs : this.observers) {
+            if (obs instanceof BoardObserver) {
+                ((BoardObserver) obs).moleChanged(this, mole, up);
+            } else {
+                obs.update(this);
+            }
+        }
+    }
+
     /** Set the score for player */
     public void setPlayerScores(int players) {
         this.playerScores = new int[players];
@@ -87,6 +99,12 @@ public class WAMBoard {
         return this.playerScores;
     }
 
+    /** Called when the server sends every player's score */
+    public void scoresChanged(int[] scores) {
+        System.arraycopy(scores, 0, this.playerScores, 0, this.playerScores.length);
+        alertObservers();
+    }
+
 
     /**
      * What is at this square?
@@ -95,23 +113,62 @@ public class WAMBoard {
      * @return the player at the given location
      */
     public Move getContents(int col, int row) {
-        return this.board[col][row];
+        return isUp(row * columns + col) ? Move.MOLE_SYMBOL : Move.NONE;
+    }
+
+    /**
+     * Is this mole up?
+     * @param mole the mole number
+     * @return whether the mole is up
+     */
+    public boolean isUp(int mole) {
+        return (board[mole >>> 6] & (1L << mole)) != 0;
+    }
+
+    /**
+     * Finds the next mole that is up, so the moles that are up can be gone through with
+     * {@code for(int m = nextUp(0); m >= 0; m = nextUp(m + 1))} without looking at every hole.
+     * @param from the mole number to start looking at
+     * @return the number of the first mole from there on that is up, or -1 if there are none
+     */
+    public int nextUp(int from) {
+        int holes = rows * columns;
+        if(from >= holes) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long bits = board[word] & (-1L << from);
+        while(bits == 0) {
+            if(++word == board.length) {
+                return -1;
+            }
+            bits = board[word];
+        }
+        int mole = (word << 6) + Long.numberOfTrailingZeros(bits);
+        return mole < holes ? mole : -1;
+    }
+
+    /**
+     * @return the number of moles that are up
+     */
+    public int countUp() {
+        int count = 0;
+        for(long bits: board) {
+            count += Long.bitCount(bits);
+        }
+        return count;
     }
 
     /**What will happen if the mole is up; the necessary steps for it */
     public void moleUp(int mole) {
-        int col = mole % columns;
-        int row = mole / columns;
-        this.board[col][row] = Move.MOLE_SYMBOL;
-        alertObservers();
+        this.board[mole >>> 6] |= 1L << mole;
+        alertObservers(mole, true);
 
     }
     /** What will happen if the mole is down; the necessary steps for it */
     public void moleDown(int mole) {
-        int col = mole % columns;
-        int row = mole / columns;
-        this.board[col][row] = Move.NONE;
-        alertObservers();
+        this.board[mole >>> 6] &= ~(1L << mole);
+        alertObservers(mole, false);
     }
 
     /** This gets the row */
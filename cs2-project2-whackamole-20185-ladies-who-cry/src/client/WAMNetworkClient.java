@@ -1,14 +1,19 @@
 package client;
 
+import common.FrameReader;
+import common.WAMBinaryCodec;
+import common.WAMBinaryProtocol;
 import common.WAMException;
+import common.WAMLayout;
 import common.WAMProtocol;
+import common.WAMTextCodec;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.NoSuchElementException;
-import java.util.Scanner;
 import static common.WAMProtocol.*;
 
 
@@ -21,6 +26,18 @@ public class WAMNetworkClient {
      */
     private static final boolean DEBUG = false;
 
+    /** The number of TIME round trips the clock offset is taken from */
+    private static final int CLOCK_SAMPLES = 5;
+
+    /** The most REDIRECTs followed before giving up on a server */
+    private static final int MAX_REDIRECTS = 3;
+
+    /** The most times a lost connection is made again to pick the match back up */
+    private static final int MAX_RESUMES = 3;
+
+    /** The wait before the first attempt to pick the match back up, doubled for each after it, in ms */
+    private static final int RESUME_BACKOFF = 250;
+
     /**
      * Print method that does something only if DEBUG is true
      *
@@ -39,7 +56,7 @@ public class WAMNetworkClient {
     /**
      * used to read requests from the server
      */
-    private Scanner networkIn;
+    private FrameReader networkIn;
     /**
      * Used to write responses to the server.
      */
@@ -51,10 +68,43 @@ public class WAMNetworkClient {
 
     /** sentinel loop used to control the main loop */
     private boolean go;
+    /** The server the match is on, after any REDIRECT */
+    private String host;
+    private int port;
+    /** Whether to ask for the binary framing if the server offers it */
+    private final boolean binary;
+    /** The token the match can be picked back up with, or null if the server doesn't let players resume */
+    private volatile String session;
+    /** The name last sent, given again when the match is picked back up, or null */
+    private volatile String name;
+    /** The VIEW last sent, given again when the match is picked back up, or null */
+    private volatile String view;
+    /** Whether {@link #close()} has been called, so a lost connection is not made again */
+    private volatile boolean closed;
+    /** Where the holes are: the server's layout, or a grid of the board's rows and columns */
+    private WAMLayout layout;
     /** The number of plauer */
     private int playerNumber;
     /** The player score */
     private int playerScore;
+    /** Every player's score, as last decoded from a SCORE */
+    private int[] scores;
+    /** Whether whacks are sent binary, guarded by networkOut */
+    private boolean binaryOut;
+    /** Where binary whacks are encoded, guarded by networkOut */
+    private final ByteBuffer scratch = ByteBuffer.allocate(3 * WAMBinaryCodec.MAX_VARINT + 1);
+    /** Whether the server's messages are binary, only touched by the listener thread */
+    private boolean binaryIn;
+    /** Told the answers about the leaderboard, or null */
+    private volatile StandingsObserver standings;
+    /** The server's clock less this one's, in milliseconds */
+    private volatile long clockOffset;
+    /** Whether clockOffset has been measured, so whacks can be stamped */
+    private volatile boolean clockSynced;
+    /** The shortest TIME round trip so far, only touched by the listener thread */
+    private long bestRoundTrip = Long.MAX_VALUE;
+    /** The TIME round trips so far, only touched by the listener thread */
+    private int clockSamples;
 
     /**
      * Accessor that takes multithreaded access into account
@@ -70,22 +120,45 @@ public class WAMNetworkClient {
 
     /**
      * Hook up with a game server already running and waiting for
-     * players to connect.
+     * players to connect, using the binary framing if the server offers it.
      * @param host  the name of the host running the server program
      * @param port  the port of the server socket on which the server is listening
      * @throws WAMException If there is a problem opening the connection
      */
     public WAMNetworkClient(String host, int port) throws WAMException {
+        this(host, port, true);
+    }
+
+    /**
+     * Hook up with a game server already running and waiting for
+     * players to connect. A cluster's router may send the client on to
+     * one of its servers with a REDIRECT, which is followed.
+     * @param host  the name of the host running the server program
+     * @param port  the port of the server socket on which the server is listening
+     * @param binary whether to ask for the binary framing if the server offers it
+     * @throws WAMException If there is a problem opening the connection
+     */
+    public WAMNetworkClient(String host, int port, boolean binary) throws WAMException {
+        this.binary = binary;
         try {
-            this.clientSocket = new Socket(host, port);
-            this.networkIn = new Scanner(clientSocket.getInputStream());
-            this.networkOut = new PrintStream(clientSocket.getOutputStream());
-            String[] welcome = networkIn.nextLine().split(" ");
+            String[] welcome = connect(host, port, null);
+            for(int redirects = 0; welcome[0].equals(REDIRECT) && welcome.length == 3; redirects++) {
+                this.clientSocket.close();
+                if(redirects == MAX_REDIRECTS) {
+                    throw new WAMException("Redirected more than " + MAX_REDIRECTS + " times");
+                }
+                welcome = connect(welcome[1], Integer.parseInt(welcome[2]), null);
+            }
 
             if(welcome[0].equals(WELCOME)) {
                 this.board = new WAMBoard(Integer.parseInt(welcome[1]), Integer.parseInt(welcome[2]));
                 this.board.setPlayerScores(Integer.parseInt(welcome[3]));
                 this.playerNumber = Integer.parseInt(welcome[4]);
+                this.scores = new int[Integer.parseInt(welcome[3])];
+                WAMLayout sent = this.readLayout(welcome);
+                this.layout = sent != null ? sent : WAMLayout.grid(this.board.getRows(), this.board.getColumns());
+                this.negotiate(welcome);
+                this.sendText(TIME + " " + clock());
 
             } else {
                 throw new WAMException("Expected CONNECT from server");
@@ -96,6 +169,145 @@ public class WAMNetworkClient {
         }
     }
 
+    /**
+     * Connects to a server and reads the first line it sends.
+     * @param host the name of the host
+     * @param port the port
+     * @param hello a line to send first, or null to send nothing
+     * @return the words of the line
+     * @throws IOException if the connection fails
+     */
+    private String[] connect(String host, int port, String hello) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.clientSocket = new Socket(host, port);
+        this.networkIn = new FrameReader(clientSocket.getInputStream());
+        PrintStream out = new PrintStream(clientSocket.getOutputStream());
+        synchronized(out) {
+            this.binaryOut = false;
+            this.networkOut = out;
+            if(hello != null) {
+                out.println(hello);
+            }
+        }
+        String line = networkIn.readLine();
+        return line == null ? new String[] {""} : line.split(" ");
+    }
+
+    /**
+     * @param welcome the words of a WELCOME
+     * @param word an optional argument, BINARY or LAYOUT
+     * @return whether the WELCOME has it
+     */
+    private static boolean offers(String[] welcome, String word) {
+        for(int i = 5; i < welcome.length; i++) {
+            if(welcome[i].equals(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the LAYOUT line that follows a WELCOME ending in LAYOUT.
+     * @param welcome the words of the WELCOME
+     * @return the layout, or null if the board is a grid
+     * @throws IOException if the line can't be read or isn't a layout
+     */
+    private WAMLayout readLayout(String[] welcome) throws IOException {
+        if(!offers(welcome, LAYOUT)) {
+            return null;
+        }
+        String line = this.networkIn.readLine();
+        if(line == null || !line.startsWith(LAYOUT + " ")) {
+            throw new IOException("Expected " + LAYOUT + " after " + WELCOME);
+        }
+        try {
+            return WAMLayout.decode(line.substring(LAYOUT.length() + 1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad " + LAYOUT, e);
+        }
+    }
+
+    /**
+     * Asks for the binary framing if the WELCOME offers it and it is wanted.
+     * @param welcome the words of the WELCOME
+     */
+    private void negotiate(String[] welcome) {
+        this.binaryIn = false;
+        if(this.binary && offers(welcome, BINARY)) {
+            synchronized(networkOut) {
+                networkOut.println(CODEC + " " + BINARY);
+                binaryOut = true;
+            }
+        }
+    }
+
+    /**
+     * Connects to the server again after losing the connection and picks the match back up, waiting a
+     * little longer before each attempt. The server answers with the WELCOME again and then a SNAPSHOT,
+     * so nothing missed while away has to be sent.
+     * @return whether the match was picked back up
+     */
+    private boolean resume() {
+        String token = this.session;
+        if(token == null || this.closed) {
+            return false;
+        }
+        for(int attempt = 0; attempt < MAX_RESUMES; attempt++) {
+            try {
+                Thread.sleep((long) RESUME_BACKOFF << attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            try {
+                this.clientSocket.close();
+                String[] welcome = connect(this.host, this.port, RESUME + " " + token);
+                if(!welcome[0].equals(WELCOME)) {
+                    // the match is over, or the server has forgotten the player
+                    return false;
+                }
+                // the same layout as before
+                this.readLayout(welcome);
+                this.negotiate(welcome);
+                if(this.name != null) {
+                    this.sendText(NAME + " " + this.name);
+                }
+                if(this.view != null) {
+                    this.sendText(this.view);
+                }
+                return true;
+            } catch (IOException e) {
+                // the server may not be reachable yet; try again
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts the board into the state of a SNAPSHOT, telling the observers about every hole that changed.
+     * @param up one bit per hole, set if its mole is up
+     */
+    private void snapshot(long[] up) {
+        int holes = this.board.getRows() * this.board.getColumns();
+        for(int mole = 0; mole < holes; mole++) {
+            boolean isUp = (up[mole >>> 6] & (1L << mole)) != 0;
+            if(isUp && !this.board.isUp(mole)) {
+                this.board.moleUp(mole);
+            } else if(!isUp && this.board.isUp(mole)) {
+                this.board.moleDown(mole);
+            }
+        }
+    }
+
+    /**
+     * @return a bitset with one bit for every hole on the board
+     */
+    private long[] holeBits() {
+        return new long[(this.board.getRows() * this.board.getColumns() + 63) >>> 6];
+    }
+
     /** Get the board for Whack A Mole */
     public WAMBoard getBoard() {
         return this.board;
@@ -105,11 +317,160 @@ public class WAMNetworkClient {
         return this.playerNumber;
     }
 
-    /** This sends the message Whack to the server */
+    /**
+     * @return where the holes are: the server's layout, or a grid of the board's rows and columns
+     */
+    public WAMLayout getLayout() {
+        return this.layout;
+    }
+
+    /**
+     * This sends the message Whack to the server for the hole in a column and row of a grid board.
+     */
     public void sendWhack(int col, int row) {
-        int mole_number;
-        mole_number =(row * (this.board.getColumns())) + col;
-        this.networkOut.println(WHACK + " " + mole_number + " " + this.playerNumber);
+        sendWhack((row * (this.board.getColumns())) + col);
+    }
+
+    /**
+     * This sends the message Whack to the server, stamped with when on the server's clock once the
+     * clocks have been compared, so a mole that drops down on the way still counts.
+     * @param mole_number the mole whacked
+     */
+    public void sendWhack(int mole_number) {
+        boolean stamped = this.clockSynced;
+        long clickedAt = clock() + this.clockOffset;
+        synchronized(networkOut) {
+            if(binaryOut) {
+                scratch.clear();
+                if(stamped) {
+                    WAMBinaryCodec.putWhackAt(scratch, mole_number, this.playerNumber, clickedAt);
+                } else {
+                    WAMBinaryCodec.putWhack(scratch, mole_number, this.playerNumber);
+                }
+                this.networkOut.write(scratch.array(), 0, scratch.position());
+            } else if(stamped) {
+                this.networkOut.println(WHACK + " " + mole_number + " " + this.playerNumber + " " + clickedAt);
+            } else {
+                this.networkOut.println(WHACK + " " + mole_number + " " + this.playerNumber);
+            }
+        }
+    }
+
+    /**
+     * @return this client's clock in milliseconds
+     */
+    private static long clock() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    /**
+     * Takes the server's answer to a TIME: keeps the offset of the shortest round trip so far, which is
+     * the one least skewed by the network, and asks again until there are enough.
+     * @param arguments the client's clock the TIME was sent at, then the server's when it answered
+     */
+    private void clockReading(String[] arguments) {
+        long now = clock();
+        long sent = Long.parseLong(arguments[0]);
+        long server = Long.parseLong(arguments[1]);
+        if(now - sent < this.bestRoundTrip) {
+            this.bestRoundTrip = now - sent;
+            this.clockOffset = server - (sent + now) / 2;
+            this.clockSynced = true;
+        }
+        if(++this.clockSamples < CLOCK_SAMPLES) {
+            this.sendText(TIME + " " + clock());
+        }
+    }
+
+    /**
+     * Sends a text request, as a TEXT frame once whacks go binary.
+     * @param line the request
+     */
+    private void sendText(String line) {
+        synchronized(networkOut) {
+            if(binaryOut) {
+                ByteBuffer buf = ByteBuffer.allocate(line.length() + WAMBinaryCodec.MAX_VARINT + 1);
+                WAMBinaryCodec.putText(buf, line);
+                this.networkOut.write(buf.array(), 0, buf.position());
+            } else {
+                this.networkOut.println(line);
+            }
+        }
+    }
+
+    /**
+     * Gives the name this player's results go on the leaderboard under.
+     * @param name 1 to 32 letters, digits, '-' or '_'
+     */
+    public void sendName(String name) {
+        this.name = name;
+        sendText(NAME + " " + name);
+    }
+
+    /**
+     * Asks to be told only about the holes in or near a rectangle of the board, for a board too big to
+     * look at all at once. Holes that come into view are sent straight away; the board may be out of
+     * date everywhere else. Sending the same view again does nothing.
+     * @param x the left of the rectangle, in the units of the layout
+     * @param y the top of the rectangle, in the units of the layout
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     */
+    public void sendView(int x, int y, int width, int height) {
+        String line = VIEW + " " + x + " " + y + " " + width + " " + height;
+        if(!line.equals(this.view)) {
+            this.view = line;
+            sendText(line);
+        }
+    }
+
+    /**
+     * Asks the server for a player's standing, which goes to the {@link StandingsObserver}.
+     * @param name the player's name, or null for this player's own
+     */
+    public void requestRank(String name) {
+        sendText(name == null ? RANK : RANK + " " + name);
+    }
+
+    /**
+     * Asks the server for the best players, which go to the {@link StandingsObserver}.
+     * @param k how many, at most 100
+     */
+    public void requestTop(int k) {
+        sendText(TOP + " " + k);
+    }
+
+    /**
+     * Sets who is told the server's answers about the leaderboard.
+     * @param observer the observer, or null for nobody
+     */
+    public void setStandingsObserver(StandingsObserver observer) {
+        this.standings = observer;
+    }
+
+    /**
+     * Passes an answer about the leaderboard on to the observer.
+     * @param request RANK or TOP
+     * @param arguments the rest of the answer
+     */
+    private void standings(String request, String[] arguments) {
+        StandingsObserver observer = this.standings;
+        if(observer == null) {
+            return;
+        }
+        if(request.equals(RANK)) {
+            observer.rank(arguments[0], Integer.parseInt(arguments[1]), Integer.parseInt(arguments[2]),
+                    Integer.parseInt(arguments[3]), Integer.parseInt(arguments[4]), Integer.parseInt(arguments[5]),
+                    Integer.parseInt(arguments[6]));
+        } else {
+            String[] names = new String[Integer.parseInt(arguments[0])];
+            int[] best = new int[names.length];
+            for(int i = 0; i < names.length; i++) {
+                names[i] = arguments[1 + 2 * i];
+                best[i] = Integer.parseInt(arguments[2 + 2 * i]);
+            }
+            observer.top(names, best);
+        }
     }
 
     /**
@@ -117,6 +478,7 @@ public class WAMNetworkClient {
      * close the client connection.
      */
     public void close() {
+        this.closed = true;
         try {
             this.clientSocket.close();
 
@@ -134,6 +496,69 @@ public class WAMNetworkClient {
         new Thread(() -> this.run()).start();
     }
 
+    /**
+     * Reads and handles one binary message from the server, without allocating.
+     * @return whether to keep listening
+     * @throws IOException if the connection can't be read
+     */
+    private boolean frame() throws IOException {
+        ByteBuffer frame = this.networkIn.nextFrame();
+        if(frame == null) {
+            throw new NoSuchElementException();
+        }
+        byte op = frame.get();
+        switch (op) {
+            case WAMBinaryProtocol.MOLE_UP:
+                board.moleUp(WAMBinaryCodec.getVarint(frame));
+                break;
+            case WAMBinaryProtocol.MOLE_DOWN:
+                board.moleDown(WAMBinaryCodec.getVarint(frame));
+                break;
+            case WAMBinaryProtocol.SCORE:
+                WAMBinaryCodec.getScores(frame, this.scores);
+                this.playerScore = this.scores[playerNumber];
+                this.board.scoresChanged(this.scores);
+                break;
+            case WAMBinaryProtocol.GAME_WON:
+                this.board.gameWon();
+                this.stop();
+                break;
+            case WAMBinaryProtocol.GAME_LOST:
+                this.board.gameLost();
+                this.stop();
+                break;
+            case WAMBinaryProtocol.GAME_TIED:
+                this.board.gameTied();
+                this.stop();
+                break;
+            case WAMBinaryProtocol.SNAPSHOT: {
+                long[] up = this.holeBits();
+                WAMBinaryCodec.getSnapshot(frame, up);
+                this.snapshot(up);
+                break;
+            }
+            case WAMBinaryProtocol.ERROR:
+                frame.position(frame.position() + WAMBinaryCodec.getVarint(frame));
+                break;
+            case WAMBinaryProtocol.TEXT: {
+                String[] words = WAMBinaryCodec.getText(frame).split(" ");
+                String[] arguments = Arrays.copyOfRange(words, 1, words.length);
+                if(words[0].equals(TIME)) {
+                    this.clockReading(arguments);
+                } else if(words[0].equals(SESSION)) {
+                    this.session = arguments[0];
+                } else if(words[0].equals(RANK) || words[0].equals(TOP)) {
+                    this.standings(words[0], arguments);
+                }
+                break;
+            }
+            default:
+                System.err.println("Unrecognized request: " + op);
+                return false;
+        }
+        return true;
+    }
+
     /** Get the player score */
     public int getPlayerScore() {
         return this.playerScore;
@@ -148,10 +573,19 @@ public class WAMNetworkClient {
         boolean decision = true;
         while (decision) {
             try {
-                String request = this.networkIn.next();
-                String[] arguments = this.networkIn.nextLine().trim().split(" ");
+                if(binaryIn) {
+                    decision = this.frame();
+                    continue;
+                }
+                String line = this.networkIn.readLine();
+                if(line == null) {
+                    throw new NoSuchElementException();
+                }
+                line = line.trim();
+                int space = line.indexOf(' ');
+                String request = space < 0 ? line : line.substring(0, space);
+                String[] arguments = space < 0 ? new String[0] : line.substring(space + 1).trim().split(" ");
                 WAMNetworkClient.dPrint("Net message in = \"" + request + '"');
-                System.out.println("Net message in = \"" + request + '"');
 
                 switch (request) {
                     case WAMProtocol.MOLE_UP:
@@ -175,16 +609,46 @@ public class WAMNetworkClient {
                     case WAMProtocol.ERROR:
                         break;
                     case WAMProtocol.SCORE:
-                        this.playerScore = Integer.parseInt(arguments[playerNumber]);
+                        for (int i = 0; i < this.scores.length; i++) {
+                            this.scores[i] = Integer.parseInt(arguments[i]);
+                        }
+                        this.playerScore = this.scores[playerNumber];
+                        this.board.scoresChanged(this.scores);
+                        break;
+                    case WAMProtocol.TIME:
+                        this.clockReading(arguments);
+                        break;
+                    case WAMProtocol.SESSION:
+                        this.session = arguments[0];
+                        break;
+                    case WAMProtocol.SNAPSHOT: {
+                        long[] up = this.holeBits();
+                        WAMTextCodec.getSnapshot(arguments[1], up);
+                        this.snapshot(up);
+                        break;
+                    }
+                    case WAMProtocol.RANK:
+                    case WAMProtocol.TOP:
+                        this.standings(request, arguments);
+                        break;
+                    case WAMProtocol.CODEC:
+                        // the server's answer; everything after it is binary
+                        this.binaryIn = true;
                         break;
                     default:
                         System.err.println("Unrecognized request: " + request);
                         decision = false;
                         break;
                 }
-            } catch (NoSuchElementException nse) {
-                // Looks like the connection shut down.
-                System.out.println("Lost connection to server.");
+            } catch (NoSuchElementException | IOException nse) {
+                // Looks like the connection shut down; after the result that is just the end of the game.
+                if (this.board.getStatus() == WAMBoard.Status.NOT_OVER) {
+                    if(this.resume()) {
+                        System.out.println("Picked the match back up after losing the connection.");
+                        continue;
+                    }
+                    System.out.println("Lost connection to server.");
+                }
                 decision = false;
             } catch (Exception e) {
                 System.out.println(e.getMessage());
@@ -0,0 +1,120 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a blocking stream that starts out as text lines of the {@link WAMProtocol}
+ * and may switch to frames of the {@link WAMBinaryProtocol} part way through.
+ *
+ * A {@link java.util.Scanner} can't be used for this, since it reads ahead and
+ * swallows the bytes after the switch. This reader keeps its own buffer and
+ * hands binary frames out in place, so reading them allocates nothing. The
+ * buffer grows to fit a long line or frame, but never past a limit, so a peer
+ * can't make it take all the memory there is by declaring a huge frame.
+ */
+public class FrameReader {
+
+    /** The longest line or frame read unless told otherwise: room for a LAYOUT of millions of holes */
+    public static final int DEFAULT_LIMIT = 64 * 1024 * 1024;
+
+    /** The size the buffer starts at */
+    private static final int INITIAL = 4096;
+
+    /** Where the bytes come from */
+    private final InputStream in;
+
+    /** Bytes read but not yet used, between position and limit */
+    private ByteBuffer buf;
+
+    /** The longest line or frame the buffer grows to hold, in bytes */
+    private final int limit;
+
+    /**
+     * Creates a new reader that takes lines and frames up to {@link #DEFAULT_LIMIT} long
+     * @param in where the bytes come from
+     */
+    public FrameReader(InputStream in) {
+        this(in, DEFAULT_LIMIT);
+    }
+
+    /**
+     * Creates a new reader
+     * @param in where the bytes come from
+     * @param limit the longest line or frame it takes, in bytes
+     */
+    public FrameReader(InputStream in, int limit) {
+        this.in = in;
+        this.limit = limit;
+        this.buf = ByteBuffer.allocate(Math.min(INITIAL, limit));
+        this.buf.flip();
+    }
+
+    /**
+     * Reads the next text line.
+     * @return the line without its line ending, or null at the end of the stream
+     * @throws IOException if the stream can't be read
+     * @throws IllegalArgumentException if the line is longer than the limit
+     */
+    public String readLine() throws IOException {
+        int from = buf.position();
+        while(true) {
+            for(int i = from; i < buf.limit(); i++) {
+                if(buf.get(i) == '\n') {
+                    int end = i > buf.position() && buf.get(i - 1) == '\r' ? i - 1 : i;
+                    String line = new String(buf.array(), buf.position(), end - buf.position(),
+                            StandardCharsets.US_ASCII);
+                    buf.position(i + 1);
+                    return line;
+                }
+            }
+            from = buf.limit() - buf.position();
+            if(!fill()) {
+                return null;
+            }
+            from += buf.position();
+        }
+    }
+
+    /**
+     * Waits until a whole binary frame is in the buffer.
+     * @return the buffer, positioned at the start of the frame, or null at the end of the stream
+     * @throws IOException if the stream can't be read
+     * @throws IllegalArgumentException if the frame starts with an unknown opcode or is longer than the limit
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        while(WAMBinaryCodec.frameLength(buf) < 0) {
+            if(!fill()) {
+                return null;
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Reads more bytes from the stream, moving what is left to the front and growing the buffer if it is full.
+     * @return false at the end of the stream
+     * @throws IOException if the stream can't be read
+     * @throws IllegalArgumentException if the buffer is full and already as big as the limit
+     */
+    private boolean fill() throws IOException {
+        buf.compact();
+        if(!buf.hasRemaining()) {
+            if(buf.capacity() >= limit) {
+                throw new IllegalArgumentException("A line or frame longer than " + limit + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(limit, buf.capacity() * 2L));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+        int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        if(n > 0) {
+            buf.position(buf.position() + n);
+        }
+        buf.flip();
+        return n >= 0;
+    }
+}
@@ -0,0 +1,320 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the messages of the {@link WAMBinaryProtocol}.
+ *
+ * Everything works in place on a {@link ByteBuffer} the caller owns, so encoding
+ * and decoding a message allocates nothing. Writers put a whole message at the
+ * buffer's position; readers check with {@link #frameLength(ByteBuffer)} that a
+ * whole message has arrived and then read it from the buffer's position.
+ */
+public final class WAMBinaryCodec {
+
+    /** The most bytes a varint of an int can take */
+    public static final int MAX_VARINT = 5;
+
+    /** Not to be made */
+    private WAMBinaryCodec() {
+    }
+
+    /**
+     * Writes an unsigned varint.
+     * @param buf where to write it
+     * @param value the value, treated as unsigned
+     */
+    public static void putVarint(ByteBuffer buf, int value) {
+        while((value & ~0x7f) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     * @param buf where to read it from
+     * @return the value
+     */
+    public static int getVarint(ByteBuffer buf) {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Writes a signed value as a zig-zag varint, so small negative numbers stay small.
+     * @param buf where to write it
+     * @param value the value
+     */
+    public static void putZigZag(ByteBuffer buf, int value) {
+        putVarint(buf, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Reads a zig-zag varint.
+     * @param buf where to read it from
+     * @return the value
+     */
+    public static int getZigZag(ByteBuffer buf) {
+        int v = getVarint(buf);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Writes a MOLE_UP or MOLE_DOWN.
+     * @param buf where to write it
+     * @param op {@link WAMBinaryProtocol#MOLE_UP} or {@link WAMBinaryProtocol#MOLE_DOWN}
+     * @param mole the mole number
+     */
+    public static void putMole(ByteBuffer buf, byte op, int mole) {
+        buf.put(op);
+        putVarint(buf, mole);
+    }
+
+    /**
+     * Writes a WHACK.
+     * @param buf where to write it
+     * @param mole the mole number
+     * @param player the player number
+     */
+    public static void putWhack(ByteBuffer buf, int mole, int player) {
+        buf.put(WAMBinaryProtocol.WHACK);
+        putVarint(buf, mole);
+        putVarint(buf, player);
+    }
+
+    /**
+     * Writes a WHACK_AT.
+     * @param buf where to write it
+     * @param mole the mole number
+     * @param player the player number
+     * @param clickedAt the time the player clicked on the server's clock, in milliseconds
+     */
+    public static void putWhackAt(ByteBuffer buf, int mole, int player, long clickedAt) {
+        buf.put(WAMBinaryProtocol.WHACK_AT);
+        putVarint(buf, mole);
+        putVarint(buf, player);
+        putVarint(buf, (int) clickedAt);
+    }
+
+    /**
+     * Writes a SCORE.
+     * @param buf where to write it
+     * @param scores every player's score
+     */
+    public static void putScores(ByteBuffer buf, int[] scores) {
+        buf.put(WAMBinaryProtocol.SCORE);
+        putVarint(buf, scores.length);
+        for(int score: scores) {
+            putZigZag(buf, score);
+        }
+    }
+
+    /**
+     * Reads the scores of a SCORE whose opcode has already been read.
+     * @param buf where to read them from
+     * @param scores where to put them; scores past its end are skipped
+     * @return the number of scores in the message
+     */
+    public static int getScores(ByteBuffer buf, int[] scores) {
+        int n = getVarint(buf);
+        for(int i = 0; i < n; i++) {
+            int score = getZigZag(buf);
+            if(i < scores.length) {
+                scores[i] = score;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Writes a SNAPSHOT.
+     * @param buf where to write it
+     * @param up one bit per hole, set if its mole is up
+     * @param holes the number of holes
+     */
+    public static void putSnapshot(ByteBuffer buf, long[] up, int holes) {
+        buf.put(WAMBinaryProtocol.SNAPSHOT);
+        putVarint(buf, holes);
+        for(int i = 0; i < (holes + 7) >>> 3; i++) {
+            buf.put((byte) (up[i >>> 3] >>> ((i & 7) << 3)));
+        }
+    }
+
+    /**
+     * Reads a SNAPSHOT whose opcode has already been read.
+     * @param buf where to read it from
+     * @param up where to put one bit per hole, set if its mole is up; holes past its end are skipped
+     * @return the number of holes in the message
+     */
+    public static int getSnapshot(ByteBuffer buf, long[] up) {
+        int holes = getVarint(buf);
+        Arrays.fill(up, 0);
+        for(int i = 0; i < (holes + 7) >>> 3; i++) {
+            long b = buf.get() & 0xffL;
+            if((i >>> 3) < up.length) {
+                up[i >>> 3] |= b << ((i & 7) << 3);
+            }
+        }
+        return holes;
+    }
+
+    /**
+     * The most bytes a SNAPSHOT of a board can take.
+     * @param holes the number of holes
+     * @return the size in bytes
+     */
+    public static int maxSnapshotLength(int holes) {
+        return 1 + MAX_VARINT + ((holes + 7) >>> 3);
+    }
+
+    /**
+     * Writes a TEXT.
+     * @param buf where to write it
+     * @param line the text line, ASCII and without its line ending
+     */
+    public static void putText(ByteBuffer buf, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        buf.put(WAMBinaryProtocol.TEXT);
+        putVarint(buf, bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * Reads the line of a TEXT whose opcode has already been read.
+     * @param buf where to read it from
+     * @return the line
+     * @throws IllegalArgumentException if the length is negative or runs past the buffer
+     */
+    public static String getText(ByteBuffer buf) {
+        int length = getVarint(buf);
+        if(length < 0 || length > buf.remaining()) {
+            throw new IllegalArgumentException("Bad text length " + length);
+        }
+        String line = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.US_ASCII);
+        buf.position(buf.position() + length);
+        return line;
+    }
+
+    /**
+     * The most bytes a SCORE for a number of players can take.
+     * @param players the number of players
+     * @return the size in bytes
+     */
+    public static int maxScoresLength(int players) {
+        return 1 + MAX_VARINT * (players + 1);
+    }
+
+    /**
+     * Works out whether a whole message is waiting at the buffer's position,
+     * without moving the position.
+     * @param buf the buffer
+     * @return the length of the message in bytes, or -1 if not all of it is there yet
+     * @throws IllegalArgumentException if the opcode is not one this codec knows, or a length in the
+     *         message is negative
+     */
+    public static int frameLength(ByteBuffer buf) {
+        int start = buf.position();
+        if(start >= buf.limit()) {
+            return -1;
+        }
+        int i = start + 1;
+        switch(buf.get(start)) {
+            case WAMBinaryProtocol.GAME_WON:
+            case WAMBinaryProtocol.GAME_LOST:
+            case WAMBinaryProtocol.GAME_TIED:
+                return 1;
+            case WAMBinaryProtocol.MOLE_UP:
+            case WAMBinaryProtocol.MOLE_DOWN:
+                i = skipVarint(buf, i);
+                break;
+            case WAMBinaryProtocol.WHACK:
+                i = skipVarint(buf, skipVarint(buf, i));
+                break;
+            case WAMBinaryProtocol.WHACK_AT:
+                i = skipVarint(buf, skipVarint(buf, skipVarint(buf, i)));
+                break;
+            case WAMBinaryProtocol.SCORE: {
+                int count = peekVarint(buf, i);
+                i = skipVarint(buf, i);
+                for(int k = 0; k < count && i >= 0; k++) {
+                    i = skipVarint(buf, i);
+                }
+                break;
+            }
+            case WAMBinaryProtocol.SNAPSHOT: {
+                int holes = peekVarint(buf, i);
+                if(holes < 0) {
+                    throw new IllegalArgumentException("Bad snapshot size " + holes);
+                }
+                i = skipVarint(buf, i);
+                if(i >= 0) {
+                    i += (holes + 7) >>> 3;
+                }
+                break;
+            }
+            case WAMBinaryProtocol.ERROR:
+            case WAMBinaryProtocol.TEXT: {
+                int length = peekVarint(buf, i);
+                if(length < 0) {
+                    throw new IllegalArgumentException("Bad text length " + length);
+                }
+                i = skipVarint(buf, i);
+                if(i >= 0) {
+                    // a length past the end of any buffer is never all there
+                    i = (int) Math.min(Integer.MAX_VALUE, (long) i + length);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + buf.get(start));
+        }
+        return i < 0 || i > buf.limit() ? -1 : i - start;
+    }
+
+    /**
+     * Finds the end of a varint without reading it.
+     * @param buf the buffer
+     * @param i where the varint starts, or -1
+     * @return the index just past the varint, or -1 if it isn't all there
+     */
+    private static int skipVarint(ByteBuffer buf, int i) {
+        if(i < 0) {
+            return -1;
+        }
+        while(i < buf.limit()) {
+            if(buf.get(i++) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a varint at an index without moving the position.
+     * @param buf the buffer
+     * @param i where the varint starts
+     * @return the value, or 0 if it isn't all there
+     */
+    private static int peekVarint(ByteBuffer buf, int i) {
+        int value = 0;
+        for(int shift = 0; shift < 35 && i < buf.limit(); shift += 7) {
+            byte b = buf.get(i++);
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        return 0;
+    }
+}
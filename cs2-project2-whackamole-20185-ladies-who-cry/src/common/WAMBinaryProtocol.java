@@ -0,0 +1,87 @@
+package common;
+
+/**
+ * The opcodes of the binary framing of the {@link WAMProtocol}, used once a
+ * client and server have agreed on it with {@link WAMProtocol#CODEC}.<br>
+ *
+ * Every message is a single opcode byte followed by its arguments. Numbers
+ * are unsigned LEB128 varints: seven bits per byte, low bits first, with the
+ * top bit set on every byte but the last. Scores can be negative, so they are
+ * zig-zag encoded before being written as varints. Mole numbers below 128
+ * therefore take one byte and a MOLE_UP a total of two.
+ *
+ * {@link WAMBinaryCodec} reads and writes these messages.
+ *
+ * @see WAMProtocol for what each message means
+ */
+public interface WAMBinaryProtocol {
+    /**
+     * From server: a mole has popped up.<br>
+     *     Arguments: varint mole number
+     */
+    public static final byte MOLE_UP = 1;
+
+    /**
+     * From server: a mole has dropped down.<br>
+     *     Arguments: varint mole number
+     */
+    public static final byte MOLE_DOWN = 2;
+
+    /**
+     * From client: a mole has been whacked.<br>
+     *     Arguments: varint mole number, varint player number
+     */
+    public static final byte WHACK = 3;
+
+    /**
+     * From server: every player's score.<br>
+     *     Arguments: varint number of players, then one zig-zag varint
+     *     score per player in order of the players' numbers
+     */
+    public static final byte SCORE = 4;
+
+    /**
+     * From server: the client has won the game. No arguments.
+     */
+    public static final byte GAME_WON = 5;
+
+    /**
+     * From server: the client has lost the game. No arguments.
+     */
+    public static final byte GAME_LOST = 6;
+
+    /**
+     * From server: the client has tied with others in the game to win. No arguments.
+     */
+    public static final byte GAME_TIED = 7;
+
+    /**
+     * From server: something has gone wrong.<br>
+     *     Arguments: varint length, then that many ASCII bytes of message
+     */
+    public static final byte ERROR = 8;
+
+    /**
+     * Either way: a text message that has no binary form of its own, such as
+     * {@link WAMProtocol#NAME}, {@link WAMProtocol#RANK} and {@link WAMProtocol#TOP},
+     * which are too rare to be worth one.<br>
+     *     Arguments: varint length, then that many ASCII bytes of the line
+     *     without its line ending
+     */
+    public static final byte TEXT = 9;
+
+    /**
+     * From client: a mole has been whacked, stamped with when.<br>
+     *     Arguments: varint mole number, varint player number, varint low
+     *     32 bits of the time the player clicked on the server's clock, as
+     *     learned with {@link WAMProtocol#TIME}
+     */
+    public static final byte WHACK_AT = 10;
+
+    /**
+     * From server: which moles are up, all at once, for a spectator.<br>
+     *     Arguments: varint number of holes, then a byte for every eight
+     *     holes: hole 8k+j is up if bit j of byte k is set
+     */
+    public static final byte SNAPSHOT = 11;
+}
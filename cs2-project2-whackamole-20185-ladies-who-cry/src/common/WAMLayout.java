@@ -0,0 +1,236 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Where the holes of a board are, for boards that aren't a plain grid: a hex grid, a sparse scatter
+ * of holes, or any shape at all.
+ *
+ * Positions are whole units on a board of some width and height. Every hole is a square of the same
+ * size, given by its top left corner, and mole numbers are the order the holes are listed in. A layout
+ * goes to the clients once, at WELCOME, as a LAYOUT line: the differences between one hole and the
+ * next as zigzag varints, in base 64. Holes listed in order along rows take about two bytes each, so
+ * even a million of them is under three megabytes, sent once per player.
+ *
+ * A layout file is text. The first line that isn't blank or a '#' comment is the width, the height
+ * and the size of a hole; every line after it is the x and y of a hole.
+ */
+public final class WAMLayout {
+
+    /** The size of the board, in units */
+    private final int width;
+    private final int height;
+
+    /** The width and height of every hole, in units */
+    private final int size;
+
+    /** The top left corner of every hole, by mole number */
+    private final int[] x;
+    private final int[] y;
+
+    /** The layout as it goes in a LAYOUT line, made the first time it is asked for */
+    private volatile String encoded;
+
+    /**
+     * Creates a layout.
+     * @param width the width of the board, in units
+     * @param height the height of the board, in units
+     * @param size the width and height of every hole, in units
+     * @param x the left edge of every hole, by mole number
+     * @param y the top edge of every hole, by mole number
+     * @throws IllegalArgumentException if a hole is off the board or there are none
+     */
+    public WAMLayout(int width, int height, int size, int[] x, int[] y) {
+        if(size <= 0 || x.length != y.length || x.length == 0) {
+            throw new IllegalArgumentException("A layout needs holes of a positive size");
+        }
+        for(int i = 0; i < x.length; i++) {
+            if(x[i] < 0 || y[i] < 0 || x[i] + size > width || y[i] + size > height) {
+                throw new IllegalArgumentException("Hole " + i + " at " + x[i] + "," + y[i] + " is off the board");
+            }
+        }
+        this.width = width;
+        this.height = height;
+        this.size = size;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Lays holes out in rows and columns, numbered along each row, the way a board without a layout is.
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @return the layout
+     */
+    public static WAMLayout grid(int rows, int columns) {
+        int[] x = new int[rows * columns];
+        int[] y = new int[rows * columns];
+        for(int i = 0; i < x.length; i++) {
+            x[i] = i % columns;
+            y[i] = i / columns;
+        }
+        return new WAMLayout(columns, rows, 1, x, y);
+    }
+
+    /**
+     * Lays holes out in a hex grid: every other row is shifted half a hole to the right, and rows are
+     * packed as close as they would be for round holes.
+     * @param rows the number of rows
+     * @param columns the number of holes in each row
+     * @return the layout
+     */
+    public static WAMLayout hex(int rows, int columns) {
+        // 8 units a hole, so half a hole and the 7 units between rows (8 * sqrt(3) / 2) are whole
+        int[] x = new int[rows * columns];
+        int[] y = new int[rows * columns];
+        for(int i = 0; i < x.length; i++) {
+            int row = i / columns;
+            x[i] = (i % columns) * 8 + (row & 1) * 4;
+            y[i] = row * 7;
+        }
+        return new WAMLayout(columns * 8 + 4, (rows - 1) * 7 + 8, 8, x, y);
+    }
+
+    /**
+     * Reads a layout file.
+     * @param path the file
+     * @return the layout
+     * @throws WAMException if the file can't be read or isn't a layout
+     */
+    public static WAMLayout read(Path path) throws WAMException {
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+            int[] header = null;
+            int[] x = new int[1024];
+            int[] y = new int[1024];
+            int holes = 0;
+            int number = 0;
+            String line;
+            while((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] words = line.split("\\s+");
+                if(header == null) {
+                    if(words.length != 3) {
+                        throw new WAMException(path + ":" + number + ": expected the width, height and hole size");
+                    }
+                    header = new int[] {Integer.parseInt(words[0]), Integer.parseInt(words[1]),
+                            Integer.parseInt(words[2])};
+                    continue;
+                }
+                if(words.length != 2) {
+                    throw new WAMException(path + ":" + number + ": expected the x and y of a hole");
+                }
+                if(holes == x.length) {
+                    x = Arrays.copyOf(x, holes * 2);
+                    y = Arrays.copyOf(y, holes * 2);
+                }
+                x[holes] = Integer.parseInt(words[0]);
+                y[holes] = Integer.parseInt(words[1]);
+                holes++;
+            }
+            if(header == null) {
+                throw new WAMException(path + ": no layout in the file");
+            }
+            return new WAMLayout(header[0], header[1], header[2], Arrays.copyOf(x, holes), Arrays.copyOf(y, holes));
+        } catch (IOException e) {
+            throw new WAMException("Can't read the layout " + path, e);
+        } catch (IllegalArgumentException e) {
+            throw new WAMException(path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the layout as it goes in a LAYOUT line, after the message name
+     */
+    public String encode() {
+        String e = encoded;
+        if(e == null) {
+            ByteBuffer buf = ByteBuffer.allocate(4 * WAMBinaryCodec.MAX_VARINT + 2 * WAMBinaryCodec.MAX_VARINT * x.length);
+            WAMBinaryCodec.putVarint(buf, width);
+            WAMBinaryCodec.putVarint(buf, height);
+            WAMBinaryCodec.putVarint(buf, size);
+            WAMBinaryCodec.putVarint(buf, x.length);
+            int px = 0;
+            int py = 0;
+            for(int i = 0; i < x.length; i++) {
+                WAMBinaryCodec.putZigZag(buf, x[i] - px);
+                WAMBinaryCodec.putZigZag(buf, y[i] - py);
+                px = x[i];
+                py = y[i];
+            }
+            e = Base64.getEncoder().withoutPadding().encodeToString(Arrays.copyOf(buf.array(), buf.position()));
+            encoded = e;
+        }
+        return e;
+    }
+
+    /**
+     * Reads the layout of a LAYOUT line.
+     * @param encoded the line after the message name
+     * @return the layout
+     * @throws IllegalArgumentException if it isn't a layout
+     */
+    public static WAMLayout decode(String encoded) {
+        ByteBuffer buf = ByteBuffer.wrap(Base64.getDecoder().decode(encoded.trim()));
+        try {
+            int width = WAMBinaryCodec.getVarint(buf);
+            int height = WAMBinaryCodec.getVarint(buf);
+            int size = WAMBinaryCodec.getVarint(buf);
+            int holes = WAMBinaryCodec.getVarint(buf);
+            if(holes < 0 || holes > buf.remaining()) {
+                throw new IllegalArgumentException("Bad number of holes: " + holes);
+            }
+            int[] x = new int[holes];
+            int[] y = new int[holes];
+            int px = 0;
+            int py = 0;
+            for(int i = 0; i < holes; i++) {
+                x[i] = px += WAMBinaryCodec.getZigZag(buf);
+                y[i] = py += WAMBinaryCodec.getZigZag(buf);
+            }
+            return new WAMLayout(width, height, size, x, y);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("The layout is cut short", e);
+        }
+    }
+
+    /** @return the width of the board, in units */
+    public int getWidth() { return width; }
+
+    /** @return the height of the board, in units */
+    public int getHeight() { return height; }
+
+    /** @return the width and height of every hole, in units */
+    public int getSize() { return size; }
+
+    /** @return the number of holes */
+    public int getHoles() { return x.length; }
+
+    /**
+     * @param mole the mole number
+     * @return the left edge of its hole, in units
+     */
+    public int getX(int mole) { return x[mole]; }
+
+    /**
+     * @param mole the mole number
+     * @return the top edge of its hole, in units
+     */
+    public int getY(int mole) { return y[mole]; }
+
+    @Override
+    public String toString() {
+        return x.length + " holes on " + width + "x" + height;
+    }
+}
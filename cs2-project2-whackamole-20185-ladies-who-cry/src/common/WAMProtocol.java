@@ -32,9 +32,43 @@ public interface WAMProtocol {
      *
      *  For example if there are 6 rows and 7 columns and this
      *  is the second player of 3: "WELCOME 6 7 3 1"
+     *
+     * A server that can speak the binary framing of {@link WAMBinaryProtocol}
+     * adds {@link #BINARY} as a fifth argument: "WELCOME 6 7 3 1 BINARY".
+     * Clients that don't know about it simply ignore the extra argument.
+     *
+     * A board whose holes aren't a grid is sent as one row of all its
+     * holes, with {@link #LAYOUT} as a last argument, and the LAYOUT line
+     * follows straight away: "WELCOME 1 500 2 0 BINARY LAYOUT".
      */
     public static final String WELCOME = "WELCOME";
 
+    /**
+     * From server: where the holes are, straight after a WELCOME or a
+     * WATCHING that ends in LAYOUT, always a text line. The client reads it
+     * before asking for binary. Mole numbers are the order the holes are
+     * listed in.<br>
+     *     One argument: the layout as {@link WAMLayout#encode()} writes it
+     */
+    public static final String LAYOUT = "LAYOUT";
+
+    /**
+     * From client, then from server: switch to another framing.<br>
+     *     One argument: the framing, for now only {@link #BINARY}.
+     *
+     * A client may send "CODEC BINARY" after a WELCOME that offered it.
+     * Everything the client sends after that line is binary. The server
+     * answers with the same line, and everything it sends after its
+     * answer is binary. A client that never asks keeps getting text.
+     */
+    public static final String CODEC = "CODEC";
+
+    /**
+     * The name of the binary framing, as offered in WELCOME and asked
+     * for with {@link #CODEC}.
+     */
+    public static final String BINARY = "BINARY";
+
     /**
      * From server: inform client that a mole has popped up.<br>
      *     One argument: the mole number
@@ -54,10 +88,22 @@ public interface WAMProtocol {
      * (Game server must then decide if a mole was really up at that
      * location. Only then would points be awarded. If it is a miss,
      * points may be subtracted.<br>
-     *     Arguments: the mole number, the player number
+     *     Arguments: the mole number, the player number, and optionally
+     *     the time the player clicked on the server's clock, as learned with
+     *     {@link #TIME}, so a mole that drops down while the whack is on its
+     *     way can still count
      */
     public static final String WHACK = "WHACK";
 
+    /**
+     * From client, then from server: a reading of the server's clock, so the
+     * client can stamp its whacks with it.<br>
+     * The client sends its own clock in milliseconds; the server answers with
+     * that and its clock, also in milliseconds: "TIME 5120 88031". Half the
+     * round trip off the middle of it is how far the clocks are apart.
+     */
+    public static final String TIME = "TIME";
+
     /**
      * From server: client is informed of every player's score.<br>
      *     As many integer arguments as there are players.
@@ -85,6 +131,102 @@ public interface WAMProtocol {
      */
     public static final String GAME_TIED = "GAME_TIED";
 
+    /**
+     * From client: the name to put this player's results on the leaderboard
+     * under. Results of players who never give one are not kept.<br>
+     *     One argument: the name, 1 to 32 letters, digits, '-' or '_'
+     */
+    public static final String NAME = "NAME";
+
+    /**
+     * From client, then from server: a player's standing on the leaderboard.<br>
+     * The client sends an optional name, its own if left out. The server
+     * answers with the name, the rank (1 is the best, 0 if the name has no
+     * results), the number of players ranked, their best score, the games
+     * they have played, the games they have won, and the rolling average
+     * of their recent scores:
+     * "RANK alice 3 120 42 17 9 31".
+     */
+    public static final String RANK = "RANK";
+
+    /**
+     * From client, then from server: the best players on the leaderboard.<br>
+     * The client sends how many it wants, at most 100. The server answers
+     * with how many there are, then each one's name and best score, best
+     * first: "TOP 2 bob 57 alice 42".
+     */
+    public static final String TOP = "TOP";
+
+    /**
+     * From client: the part of the board the player is looking at, for a
+     * big board. From then on the server only sends the MOLE_UP and
+     * MOLE_DOWN of holes in or near it, and straight away sends the state
+     * of every hole that has just come into it. Before the first VIEW, and
+     * after a RESUME, the player is sent the whole board. Ignored outside a
+     * match.<br>
+     *     Arguments: the left, top, width and height of a rectangle, in the
+     *     units of the LAYOUT, or columns and rows if there is none
+     */
+    public static final String VIEW = "VIEW";
+
+    /**
+     * From spectator: the first and only thing a spectator sends, on the
+     * server's spectator port, to start watching a match. Spectators are
+     * never players, get no WELCOME, and can't whack.<br>
+     *     Arguments: optionally the match number, the newest match running
+     *     if left out, then optionally BINARY for the binary framing
+     */
+    public static final String WATCH = "WATCH";
+
+    /**
+     * From server: the answer to a WATCH, always a text line. After it come
+     * a SNAPSHOT and a SCORE with the state of the match, then the MOLE_UP,
+     * MOLE_DOWN and SCORE messages of the match as it goes on, in the framing
+     * asked for. The connection closes when the match is over.<br>
+     *     Arguments: the match number, the number of rows, the number of
+     *     columns, the number of players, then LAYOUT if a LAYOUT line
+     *     follows, as for a WELCOME
+     */
+    public static final String WATCHING = "WATCHING";
+
+    /**
+     * From server: the token a player picks its match back up with if its
+     * connection drops, soon after the WELCOME, as a TEXT frame if the
+     * client has switched to binary by then. Only sent by a server that
+     * lets players resume.<br>
+     *     Arguments: the token
+     */
+    public static final String SESSION = "SESSION";
+
+    /**
+     * From client: instead of waiting for a match, the first thing a client
+     * sends on a new connection to pick its match back up after losing its
+     * old one. The server answers with the same WELCOME as before, which may
+     * offer BINARY again, then a SNAPSHOT and a SCORE with the state of the
+     * match, then the match as it goes on. A token the server doesn't know,
+     * or a match that is over, gets an ERROR.<br>
+     *     Arguments: the token from the SESSION
+     */
+    public static final String RESUME = "RESUME";
+
+    /**
+     * From server: which moles are up, all at once, for a spectator that has
+     * just started watching or has fallen too far behind, or a player that
+     * has just resumed.<br>
+     *     Arguments: the number of holes, then the moles as hex digits, each
+     *     for four holes: hole 4k+j is up if bit j of digit k is set
+     */
+    public static final String SNAPSHOT = "SNAPSHOT";
+
+    /**
+     * From router: instead of a WELCOME, when a cluster's router sends a
+     * client straight to one of its servers rather than relaying for it.
+     * The client closes the connection and connects again to the server
+     * given, which sends the WELCOME.<br>
+     *     Arguments: the host, the port
+     */
+    public static final String REDIRECT = "REDIRECT";
+
     /**
      * Request sent from the server to the client when any kind of error has
      * resulted from a bad client response. No response is expected from the
@@ -0,0 +1,174 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the text lines of the {@link WAMProtocol} straight into a {@link ByteBuffer}.
+ *
+ * Message names are kept as pre-encoded ASCII and numbers are written digit by digit, so
+ * unlike building the line as a String and encoding it, nothing is allocated per message.
+ * Every line ends with a single '\n'.
+ */
+public final class WAMTextCodec {
+
+    /** {@link WAMProtocol#MOLE_UP} as ASCII */
+    public static final byte[] MOLE_UP = ascii(WAMProtocol.MOLE_UP);
+    /** {@link WAMProtocol#MOLE_DOWN} as ASCII */
+    public static final byte[] MOLE_DOWN = ascii(WAMProtocol.MOLE_DOWN);
+    /** {@link WAMProtocol#WHACK} as ASCII */
+    public static final byte[] WHACK = ascii(WAMProtocol.WHACK);
+    /** {@link WAMProtocol#SCORE} as ASCII */
+    public static final byte[] SCORE = ascii(WAMProtocol.SCORE);
+    /** {@link WAMProtocol#GAME_WON} as ASCII */
+    public static final byte[] GAME_WON = ascii(WAMProtocol.GAME_WON);
+    /** {@link WAMProtocol#GAME_LOST} as ASCII */
+    public static final byte[] GAME_LOST = ascii(WAMProtocol.GAME_LOST);
+    /** {@link WAMProtocol#GAME_TIED} as ASCII */
+    public static final byte[] GAME_TIED = ascii(WAMProtocol.GAME_TIED);
+    /** {@link WAMProtocol#SNAPSHOT} as ASCII */
+    public static final byte[] SNAPSHOT = ascii(WAMProtocol.SNAPSHOT);
+
+    /** The hex digits, by value */
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    /** The most bytes an int takes as ASCII, with its sign */
+    public static final int MAX_INT = 11;
+
+    /** The most bytes a mole message takes */
+    public static final int MAX_MOLE = MOLE_DOWN.length + 1 + MAX_INT + 1;
+
+    /** Not to be made */
+    private WAMTextCodec() {
+    }
+
+    /**
+     * @param s a string of ASCII characters
+     * @return its bytes
+     */
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes an int as ASCII digits.
+     * @param buf where to write it
+     * @param value the value
+     */
+    public static void putInt(ByteBuffer buf, int value) {
+        if(value < 0) {
+            buf.put((byte) '-');
+            if(value == Integer.MIN_VALUE) {
+                buf.put((byte) '2');
+                value = -147483648;
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for(int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = buf.position() + digits;
+        for(int i = end - 1; i >= buf.position(); i--) {
+            buf.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buf.position(end);
+    }
+
+    /**
+     * Writes a message without arguments.
+     * @param buf where to write it
+     * @param name the message, one of the constants of this class
+     */
+    public static void putLine(ByteBuffer buf, byte[] name) {
+        buf.put(name).put((byte) '\n');
+    }
+
+    /**
+     * Writes a message with one number, such as a MOLE_UP or MOLE_DOWN.
+     * @param buf where to write it
+     * @param name the message, one of the constants of this class
+     * @param value the number
+     */
+    public static void putMole(ByteBuffer buf, byte[] name, int value) {
+        buf.put(name).put((byte) ' ');
+        putInt(buf, value);
+        buf.put((byte) '\n');
+    }
+
+    /**
+     * Writes a WHACK.
+     * @param buf where to write it
+     * @param mole the mole number
+     * @param player the player number
+     */
+    public static void putWhack(ByteBuffer buf, int mole, int player) {
+        buf.put(WHACK).put((byte) ' ');
+        putInt(buf, mole);
+        buf.put((byte) ' ');
+        putInt(buf, player);
+        buf.put((byte) '\n');
+    }
+
+    /**
+     * Writes a SCORE.
+     * @param buf where to write it
+     * @param scores every player's score
+     */
+    public static void putScores(ByteBuffer buf, int[] scores) {
+        buf.put(SCORE);
+        for(int score: scores) {
+            buf.put((byte) ' ');
+            putInt(buf, score);
+        }
+        buf.put((byte) '\n');
+    }
+
+    /**
+     * Writes a SNAPSHOT.
+     * @param buf where to write it
+     * @param up one bit per hole, set if its mole is up
+     * @param holes the number of holes
+     */
+    public static void putSnapshot(ByteBuffer buf, long[] up, int holes) {
+        buf.put(SNAPSHOT).put((byte) ' ');
+        putInt(buf, holes);
+        buf.put((byte) ' ');
+        for(int i = 0; i < (holes + 3) >>> 2; i++) {
+            buf.put(HEX[(int) (up[i >>> 4] >>> ((i & 15) << 2)) & 15]);
+        }
+        buf.put((byte) '\n');
+    }
+
+    /**
+     * Reads the moles of a SNAPSHOT line.
+     * @param digits the hex digits of the line, each for four holes
+     * @param up where to put one bit per hole, set if its mole is up; holes past its end are skipped
+     */
+    public static void getSnapshot(String digits, long[] up) {
+        Arrays.fill(up, 0);
+        for(int i = 0; i < digits.length() && (i >>> 4) < up.length; i++) {
+            up[i >>> 4] |= (long) Character.digit(digits.charAt(i), 16) << ((i & 15) << 2);
+        }
+    }
+
+    /**
+     * The most bytes a SNAPSHOT of a board can take.
+     * @param holes the number of holes
+     * @return the size in bytes
+     */
+    public static int maxSnapshotLength(int holes) {
+        return SNAPSHOT.length + 1 + MAX_INT + 1 + ((holes + 3) >>> 2) + 1;
+    }
+
+    /**
+     * The most bytes a SCORE for a number of players can take.
+     * @param players the number of players
+     * @return the size in bytes
+     */
+    public static int maxScoresLength(int players) {
+        return SCORE.length + (MAX_INT + 1) * players + 1;
+    }
+}
@@ -0,0 +1,102 @@
+package gui;
+
+import javafx.animation.AnimationTimer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Gathers the changes the network thread makes to the board and hands them to the GUI once per frame.
+ *
+ * Changed holes are marked in a bitset, with a second bitset above it marking which of its words have
+ * anything in them, so a frame only looks at the parts of a big board that changed. However many
+ * messages arrive between two frames, the FX thread runs one pass over what they touched.
+ */
+class UpdatePump extends AnimationTimer {
+
+    /** The GUI the changes are drawn on */
+    private final WAMGUI gui;
+
+    /** One bit per hole, set if it has changed since the last frame */
+    private final AtomicLongArray holes;
+
+    /** One bit per word of {@link #holes}, set if that word has a bit set */
+    private final AtomicLongArray words;
+
+    /** Whether anything at all has changed since the last frame */
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    /**
+     * Creates a new pump. It does nothing until started.
+     * @param gui the GUI the changes are drawn on
+     * @param holeCount the number of holes on the board
+     */
+    UpdatePump(WAMGUI gui, int holeCount) {
+        this.gui = gui;
+        this.holes = new AtomicLongArray((holeCount + 63) >>> 6);
+        this.words = new AtomicLongArray((holes.length() + 63) >>> 6);
+    }
+
+    /**
+     * Marks a hole to be redrawn on the next frame. Called on any thread.
+     * @param mole the mole number
+     */
+    void moleChanged(int mole) {
+        int word = mole >>> 6;
+        set(holes, mole);
+        set(words, word);
+        changed();
+    }
+
+    /**
+     * Marks the score and status to be redrawn on the next frame. Called on any thread.
+     */
+    void changed() {
+        if(!dirty.get()) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Sets a bit, without writing the word if it is already set.
+     * @param bits the bitset
+     * @param index the bit
+     */
+    private static void set(AtomicLongArray bits, int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long old = bits.get(word);
+        while((old & bit) == 0) {
+            long seen = bits.compareAndExchange(word, old, old | bit);
+            if(seen == old) {
+                return;
+            }
+            old = seen;
+        }
+    }
+
+    /**
+     * Called on the FX thread once per frame: redraws every hole that changed since the last one, then
+     * the score and status.
+     * @param now the time of the frame
+     */
+    @Override
+    public void handle(long now) {
+        if(!dirty.getAndSet(false)) {
+            return;
+        }
+        for(int w = 0; w < words.length(); w++) {
+            long summary = words.getAndSet(w, 0);
+            while(summary != 0) {
+                int word = (w << 6) + Long.numberOfTrailingZeros(summary);
+                summary &= summary - 1;
+                long bits = holes.getAndSet(word, 0);
+                while(bits != 0) {
+                    gui.drawHole((word << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+        gui.refresh();
+    }
+}
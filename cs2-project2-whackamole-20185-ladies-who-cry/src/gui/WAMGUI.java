@@ -1,19 +1,21 @@
 package gui;
 
 
-import client.Observer;
+import client.BoardObserver;
+import client.HoleIndex;
 import client.WAMBoard;
 import client.WAMNetworkClient;
 import common.WAMException;
+import common.WAMLayout;
 import javafx.application.Application;
-import javafx.application.Platform;
+import javafx.geometry.Bounds;
 import javafx.scene.Scene;
-import javafx.scene.control.Button;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Label;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
-import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
 
@@ -24,12 +26,19 @@ import java.util.List;
 /**
  * A JavaFX GUI for the networked Connect Four game.
  *
+ * The board is drawn on a single canvas, with every hole where the server's {@link WAMLayout} puts
+ * it. When a mole moves only its hole is redrawn, and a click is looked up in a {@link HoleIndex}, so
+ * the work done for each message and each click stays the same however big or irregular the board
+ * is. A board too big for the window scrolls, and the server is sent a VIEW of the part showing, so it
+ * only sends the moles there. Changes are gathered by an {@link UpdatePump} and drawn once per frame, however fast the
+ * messages come in.
+ *
  * @author Lea Boyadjian
  * @author Gavin Burris
  * @author Tony Jiang
  */
 
-public class WAMGUI extends Application implements Observer<WAMBoard> {
+public class WAMGUI extends Application implements BoardObserver {
 
     /** The model*/
     private WAMBoard board;
@@ -49,11 +58,23 @@ public class WAMGUI extends Application implements Observer<WAMBoard> {
     /** This label is dedicated for the hole image */
     private Image empty = new Image(getClass().getResourceAsStream("holey.png"));
 
-    /** This is a global gridpane*/
-    private GridPane game;
+    /** The largest the board is drawn, in pixels along its longer side */
+    private static final int MAX_BOARD_SIZE = 1024;
+
+    /** The board is drawn here*/
+    private Canvas game;
+
+    /** Where the holes are */
+    private WAMLayout layout;
+
+    /** Finds the hole that was clicked */
+    private HoleIndex index;
 
-    /** A list of buttons */
-    private Button[][] buttonList;
+    /** The pixels a unit of the layout is drawn at */
+    private double scale;
+
+    /** Hands the changes to the board to the FX thread once per frame */
+    private UpdatePump pump;
 
     /** Player Scores is stored in an array of int */
     private int[] playerScores;
@@ -73,7 +94,13 @@ public class WAMGUI extends Application implements Observer<WAMBoard> {
         // Start the network client listener thread
         this.serverConn = new WAMNetworkClient(host, port);
         this.board = serverConn.getBoard();
-        this.buttonList = new Button[board.getColumns()][board.getRows()];
+        this.layout = serverConn.getLayout();
+        this.index = new HoleIndex(layout);
+        int longest = Math.max(layout.getWidth(), layout.getHeight());
+        // no bigger than the picture of a mole, nor than the largest board, but a hole is at least a pixel
+        this.scale = Math.max(1.0 / layout.getSize(),
+                Math.min(mole.getWidth() / layout.getSize(), (double) MAX_BOARD_SIZE / longest));
+        this.pump = new UpdatePump(this, board.getColumns() * board.getRows());
 
         this.board.addObserver(this);
         this.playerScores = board.getPlayerScores();
@@ -91,56 +118,74 @@ public class WAMGUI extends Application implements Observer<WAMBoard> {
     public void start(Stage stage) {
         this.score = new Label("Score:");
         this.outcome = new Label("");
-        this.game = new GridPane();
+        this.game = new Canvas(Math.ceil(layout.getWidth() * scale), Math.ceil(layout.getHeight() * scale));
         BorderPane borderpane = new BorderPane();
 
-        for (int col = 0; col < board.getColumns(); col++) {
-            for (int row = 0; row < board.getRows(); row++) {
-                Button button = new Button("", new ImageView(empty));
-                int y = col;
-                int x = row;
-                button.setOnAction((event) -> {
-                    serverConn.sendWhack(y, x);
-
-                });
-                game.add(button, col, row);
-                buttonList[col][row] = button;
-
-            }
+        for (int mole = 0; mole < board.getColumns() * board.getRows(); mole++) {
+            drawHole(mole);
         }
+        game.setOnMouseClicked((event) -> {
+            int number = index.holeAt(event.getX() / scale, event.getY() / scale);
+            if (number >= 0) {
+                serverConn.sendWhack(number);
+            }
+        });
 
         HBox hBox = new HBox();
         hBox.getChildren().addAll(score,outcome);
         hBox.setSpacing(160);
 
-        borderpane.setCenter(game);
+        if (game.getWidth() > MAX_BOARD_SIZE || game.getHeight() > MAX_BOARD_SIZE) {
+            ScrollPane scroll = new ScrollPane(game);
+            scroll.setPrefViewportWidth(Math.min(game.getWidth(), MAX_BOARD_SIZE));
+            scroll.setPrefViewportHeight(Math.min(game.getHeight(), MAX_BOARD_SIZE));
+            scroll.hvalueProperty().addListener((o) -> sendView(scroll));
+            scroll.vvalueProperty().addListener((o) -> sendView(scroll));
+            scroll.viewportBoundsProperty().addListener((o) -> sendView(scroll));
+            borderpane.setCenter(scroll);
+        } else {
+            borderpane.setCenter(game);
+        }
         borderpane.setBottom(hBox);
 
         Scene scene = new Scene(borderpane);
         stage.setTitle("Whack A Mole!");
         stage.setScene(scene);
         stage.show();
+        this.pump.start();
         this.serverConn.startListener();
 
     }
 
 
     /**
-     * GUI updates
+     * Tells the server which part of the board is showing, in the units of the layout.
+     * @param scroll the scroll pane the board is in
      */
-    private void refresh() {
-        this.score.setText("Score: " + this.serverConn.getPlayerScore());
+    private void sendView(ScrollPane scroll) {
+        Bounds viewport = scroll.getViewportBounds();
+        double left = Math.max(0, game.getWidth() - viewport.getWidth()) * scroll.getHvalue();
+        double top = Math.max(0, game.getHeight() - viewport.getHeight()) * scroll.getVvalue();
+        this.serverConn.sendView((int) (left / scale), (int) (top / scale),
+                (int) Math.ceil(viewport.getWidth() / scale) + 1, (int) Math.ceil(viewport.getHeight() / scale) + 1);
+    }
 
-        for (int i = 0; i < this.board.getColumns(); i++) {
-            for (int j = 0; j < this.board.getRows(); j++) {
-                if (this.board.getContents(i, j).equals(WAMBoard.Move.MOLE_SYMBOL)) {
-                    this.buttonList[i][j].setGraphic(new ImageView(mole));
-                } else {
-                    this.buttonList[i][j].setGraphic(new ImageView(empty));
+    /**
+     * Draws one hole as it is on the board now.
+     * @param number the mole number of the hole
+     */
+    void drawHole(int number) {
+        GraphicsContext g = this.game.getGraphicsContext2D();
+        double size = this.layout.getSize() * scale;
+        g.drawImage(this.board.isUp(number) ? mole : empty, this.layout.getX(number) * scale,
+                this.layout.getY(number) * scale, size, size);
+    }
 
-                }
-            }
-        }
+    /**
+     * GUI updates
+     */
+    void refresh() {
+        this.score.setText("Score: " + this.serverConn.getPlayerScore());
 
         WAMBoard.Status status = board.getStatus();
         switch (status) {
@@ -162,6 +207,7 @@ public class WAMGUI extends Application implements Observer<WAMBoard> {
      */
     @Override
     public void stop() {
+        this.pump.stop();
         //this.serverConn.close();
     }
 
@@ -171,12 +217,17 @@ public class WAMGUI extends Application implements Observer<WAMBoard> {
      *
      */
     public void update(WAMBoard wamboard) {
-        if ( Platform.isFxApplicationThread() ) {
-            this.refresh();
-        }
-        else {
-            Platform.runLater( () -> this.refresh() );
-        }
+        this.pump.changed();
+    }
+
+    /**
+     * Called by the model whenever a mole pops up or drops down; only its hole is redrawn,
+     * on the next frame.
+     *
+     */
+    @Override
+    public void moleChanged(WAMBoard wamboard, int number, boolean up) {
+        this.pump.moleChanged(number);
     }
 
     /**
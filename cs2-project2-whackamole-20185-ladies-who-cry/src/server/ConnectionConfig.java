@@ -0,0 +1,85 @@
+package server;
+
+/**
+ * The settings every client connection is given.
+ */
+public class ConnectionConfig {
+
+    /** The whacks a second a connection is held to unless told otherwise, quicker than anyone can click */
+    public static final int DEFAULT_WHACK_RATE = 20;
+
+    /** Whether clients are offered the binary framing */
+    private final boolean offerBinary;
+
+    /** What a connection does when its client can't keep up */
+    private final SlowConsumerPolicy policy;
+
+    /** The number of events a connection queues before its policy applies */
+    private final int queueCapacity;
+
+    /** The kind of thread a blocking connection reads and writes on */
+    private final ThreadMode threadMode;
+
+    /** The whacks a second a connection may send, or 0 for no limit */
+    private final int whackRate;
+
+    /** The whacks a connection may send at once after a pause */
+    private final int whackBurst;
+
+    /**
+     * Creates a new configuration
+     * @param offerBinary whether clients are offered the binary framing
+     * @param policy what a connection does when its client can't keep up
+     * @param queueCapacity the number of events a connection queues before its policy applies,
+     *                      rounded up to a power of two
+     * @param threadMode the kind of thread a blocking connection reads and writes on
+     */
+    public ConnectionConfig(boolean offerBinary, SlowConsumerPolicy policy, int queueCapacity,
+                            ThreadMode threadMode) {
+        this(offerBinary, policy, queueCapacity, threadMode, DEFAULT_WHACK_RATE, DEFAULT_WHACK_RATE);
+    }
+
+    private ConnectionConfig(boolean offerBinary, SlowConsumerPolicy policy, int queueCapacity,
+                             ThreadMode threadMode, int whackRate, int whackBurst) {
+        this.offerBinary = offerBinary;
+        this.policy = policy;
+        this.queueCapacity = queueCapacity;
+        this.threadMode = threadMode;
+        this.whackRate = whackRate;
+        this.whackBurst = whackBurst;
+    }
+
+    /**
+     * @param rate the whacks a second a connection may send, or 0 for no limit
+     * @param burst the whacks a connection may send at once after a pause
+     * @return a copy of this configuration with whacks held to that rate
+     */
+    public ConnectionConfig withWhackLimit(int rate, int burst) {
+        return new ConnectionConfig(offerBinary, policy, queueCapacity, threadMode, rate, burst);
+    }
+
+    /** @return whether clients are offered the binary framing */
+    public boolean offersBinary() { return offerBinary; }
+
+    /** @return what a connection does when its client can't keep up */
+    public SlowConsumerPolicy getPolicy() { return policy; }
+
+    /** @return the number of events a connection queues before its policy applies */
+    public int getQueueCapacity() { return queueCapacity; }
+
+    /** @return the kind of thread a blocking connection reads and writes on */
+    public ThreadMode getThreadMode() { return threadMode; }
+
+    /** @return the whacks a second a connection may send, or 0 for no limit */
+    public int getWhackRate() { return whackRate; }
+
+    /** @return the whacks a connection may send at once after a pause */
+    public int getWhackBurst() { return whackBurst; }
+
+    @Override
+    public String toString() {
+        return (offerBinary ? "binary offered" : "text only") + ", " + queueCapacity + " queued events, then "
+                + policy.name().toLowerCase() + ", "
+                + (whackRate > 0 ? whackRate + " whacks/s in bursts of " + whackBurst : "whacks unlimited");
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+/**
+ * The clock whacks are stamped with: milliseconds since the server started. Clients learn how far
+ * their own clock is from it with TIME and stamp their whacks with when they were clicked on this one,
+ * so a game can judge a whack by when it was made rather than when it arrived.
+ */
+final class GameClock {
+
+    /** The nanoTime the clock counts from */
+    private static final long BASE = System.nanoTime();
+
+    private GameClock() {
+    }
+
+    /**
+     * @return the time now
+     */
+    static long millis() {
+        return toMillis(System.nanoTime());
+    }
+
+    /**
+     * @param nanoTime a {@link System#nanoTime()}
+     * @return the same time on this clock
+     */
+    static long toMillis(long nanoTime) {
+        return (nanoTime - BASE) / 1_000_000L;
+    }
+
+    /**
+     * Recovers a time sent as just its low 32 bits, as the binary framing sends it, taking the time of
+     * those that is nearest to now.
+     * @param low the low 32 bits of the time
+     * @return the time
+     */
+    static long expand(int low) {
+        long now = millis();
+        return now - ((int) now - low);
+    }
+}
@@ -0,0 +1,147 @@
+package server;
+
+import common.WAMLayout;
+
+/**
+ * The settings of one match. The lobby hands every match its own copy, so matches never share
+ * configuration with each other or with the server.
+ */
+public class GameConfig {
+
+    /** The number of rows */
+    private final int rows;
+
+    /** The number of columns */
+    private final int columns;
+
+    /** The number of players */
+    private final int players;
+
+    /** The game duration in seconds */
+    private final int seconds;
+
+    /** How the moles are driven */
+    private final WAMGame.MoleMode moleMode;
+
+    /** The kind of thread each mole gets in {@link WAMGame.MoleMode#THREADS} mode */
+    private final ThreadMode threadMode;
+
+    /** The seed of the moles in {@link WAMGame.MoleMode#TICKS} mode */
+    private final long seed;
+
+    /** How late a stamped whack may be judged by when it was clicked, in milliseconds; 0 for not at all */
+    private final int tolerance;
+
+    /** Where the holes are, or null for a grid of rows and columns */
+    private final WAMLayout layout;
+
+    /** The tolerance a configuration gets unless it is given another */
+    public static final int DEFAULT_TOLERANCE = 150;
+
+    /**
+     * Creates a new configuration
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @param players the number of players
+     * @param seconds the game duration in seconds
+     * @param moleMode how the moles are driven
+     * @param threadMode the kind of thread each mole gets in {@link WAMGame.MoleMode#THREADS} mode
+     * @param seed the seed of the moles in {@link WAMGame.MoleMode#TICKS} mode
+     */
+    public GameConfig(int rows, int columns, int players, int seconds, WAMGame.MoleMode moleMode,
+                      ThreadMode threadMode, long seed) {
+        this(rows, columns, players, seconds, moleMode, threadMode, seed, DEFAULT_TOLERANCE, null);
+    }
+
+    /**
+     * Creates a new configuration
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @param players the number of players
+     * @param seconds the game duration in seconds
+     * @param moleMode how the moles are driven
+     * @param threadMode the kind of thread each mole gets in {@link WAMGame.MoleMode#THREADS} mode
+     * @param seed the seed of the moles in {@link WAMGame.MoleMode#TICKS} mode
+     * @param tolerance how late a stamped whack may be judged by when it was clicked, in milliseconds
+     * @param layout where the holes are, or null for a grid of rows and columns
+     */
+    private GameConfig(int rows, int columns, int players, int seconds, WAMGame.MoleMode moleMode,
+                       ThreadMode threadMode, long seed, int tolerance, WAMLayout layout) {
+        this.rows = rows;
+        this.columns = columns;
+        this.players = players;
+        this.seconds = seconds;
+        this.moleMode = moleMode;
+        this.threadMode = threadMode;
+        this.seed = seed;
+        this.tolerance = tolerance;
+        this.layout = layout;
+    }
+
+    /**
+     * Makes a copy of this configuration with another seed, for one match of many.
+     * @param seed the seed of the match
+     * @return the copy
+     */
+    public GameConfig withSeed(long seed) {
+        return new GameConfig(rows, columns, players, seconds, moleMode, threadMode, seed, tolerance, layout);
+    }
+
+    /**
+     * Makes a copy of this configuration with another tolerance for late whacks.
+     * @param tolerance how late a stamped whack may be judged by when it was clicked, in milliseconds;
+     *                  0 to judge every whack by when it arrives
+     * @return the copy
+     */
+    public GameConfig withTolerance(int tolerance) {
+        return new GameConfig(rows, columns, players, seconds, moleMode, threadMode, seed, tolerance, layout);
+    }
+
+    /**
+     * Makes a copy of this configuration with the holes where a layout puts them. The board is then a
+     * single row of as many holes as the layout has, numbered as it numbers them.
+     * @param layout where the holes are
+     * @return the copy
+     */
+    public GameConfig withLayout(WAMLayout layout) {
+        return new GameConfig(1, layout.getHoles(), players, seconds, moleMode, threadMode, seed, tolerance, layout);
+    }
+
+    /** @return the number of rows */
+    public int getRows() { return rows; }
+
+    /** @return the number of columns */
+    public int getColumns() { return columns; }
+
+    /** @return the number of holes on the board */
+    public int getHoles() { return rows * columns; }
+
+    /** @return the number of players */
+    public int getPlayers() { return players; }
+
+    /** @return the game duration in seconds */
+    public int getSeconds() { return seconds; }
+
+    /** @return how the moles are driven */
+    public WAMGame.MoleMode getMoleMode() { return moleMode; }
+
+    /** @return the kind of thread each mole gets in {@link WAMGame.MoleMode#THREADS} mode */
+    public ThreadMode getThreadMode() { return threadMode; }
+
+    /** @return the seed of the moles in {@link WAMGame.MoleMode#TICKS} mode */
+    public long getSeed() { return seed; }
+
+    /** @return how late a stamped whack may be judged by when it was clicked, in milliseconds */
+    public int getTolerance() { return tolerance; }
+
+    /** @return where the holes are, or null for a grid of rows and columns */
+    public WAMLayout getLayout() { return layout; }
+
+    @Override
+    public String toString() {
+        return (layout != null ? layout.toString() : rows + "x" + columns) + ", " + players + " players, " + seconds + "s, " + moleMode + " moles"
+                + (moleMode == WAMGame.MoleMode.THREADS ? " on " + threadMode + " threads" : "")
+                + (moleMode == WAMGame.MoleMode.TICKS ? ", seed " + seed : "")
+                + (tolerance > 0 ? ", whacks judged up to " + tolerance + "ms late" : "");
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values with one bucket per power of two.
+ *
+ * Bucket {@code i} counts the values below {@code 2^i} that are not in a lower bucket, so recording is
+ * a leading-zero count and an atomic increment, and never allocates. That is coarse, but plenty to tell
+ * a microsecond from a millisecond, and it maps straight onto a Prometheus histogram.
+ */
+public class Histogram {
+
+    /** One bucket for zero and one for each bit of a long */
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are counted as 0.
+     * @param value the value
+     */
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        sum.add(value);
+        if(value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long count() {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return the sum of the values recorded
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if there are none
+     */
+    public long mean() {
+        long count = count();
+        return count == 0 ? 0 : sum() / count;
+    }
+
+    /**
+     * Finds the bucket a fraction of the values are in or below.
+     * @param fraction the fraction, from 0 to 1
+     * @return the highest value of that bucket, so at most twice the true value
+     */
+    public long percentile(double fraction) {
+        long total = count();
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) {
+                return Math.min(highest(i), max());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param bucket a bucket
+     * @return the highest value counted in it
+     */
+    private static long highest(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, with buckets up to the highest one used.
+     * @param out where to write it
+     * @param name the metric name
+     * @param help what the metric measures
+     */
+    void writePrometheus(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        int top = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            if(counts.get(i) != 0) {
+                top = i;
+            }
+        }
+        long seen = 0;
+        for(int i = 0; i <= top && i < BUCKETS - 1; i++) {
+            seen += counts.get(i);
+            out.append(name).append("_bucket{le=\"").append(highest(i)).append("\"} ").append(seen).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(count()).append('\n');
+        out.append(name).append("_sum ").append(sum()).append('\n');
+        out.append(name).append("_count ").append(count()).append('\n');
+    }
+}
@@ -0,0 +1,110 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last few transitions of every hole in a game, so a whack can be judged by what the hole looked
+ * like when it was clicked rather than when it arrived.
+ *
+ * Each hole has a ring of {@link #DEPTH} entries, indexed by the hole's state word, in one flat
+ * primitive array. An entry packs the low bits of the state it is for, the {@link GameClock} time the
+ * hole changed to that state, and whether a whack did it. The state is written into the entry so a
+ * reader can tell an entry from one that has been overwritten or isn't written yet, and then gives up
+ * rather than guess; the game's state word stays the only authority on where a hole is now.
+ */
+class HoleHistory {
+
+    /** The number of transitions kept per hole, a power of two */
+    static final int DEPTH = 4;
+
+    /** Where the bits of an entry go: the state above, the whacked bit, the time below */
+    private static final int STATE_SHIFT = 48;
+    private static final long WHACKED = 1L << 47;
+    private static final long TIME_MASK = WHACKED - 1;
+
+    /** The entries, {@link #DEPTH} per hole */
+    private final AtomicLongArray entries;
+
+    /**
+     * Creates the history of a board whose holes have all just started, hidden
+     * @param holes the number of holes
+     */
+    HoleHistory(int holes) {
+        this.entries = new AtomicLongArray(holes * DEPTH);
+    }
+
+    /**
+     * @param hole the hole
+     * @param state a state of the hole
+     * @return the index of the entry of that state
+     */
+    private static int slot(int hole, int state) {
+        return hole * DEPTH + (state & (DEPTH - 1));
+    }
+
+    /**
+     * @param entry an entry
+     * @param state a state
+     * @return whether the entry is the one for the state
+     */
+    private static boolean isFor(long entry, int state) {
+        return (int) (entry >>> STATE_SHIFT) == (state & 0xffff);
+    }
+
+    /**
+     * Notes that a hole has changed. Called by whoever made the change, right after it.
+     * @param hole the hole
+     * @param state the state it changed to
+     * @param millis the {@link GameClock} time it changed at
+     * @param whacked whether a whack knocked it down
+     */
+    void changed(int hole, int state, long millis, boolean whacked) {
+        entries.lazySet(slot(hole, state), ((long) (state & 0xffff) << STATE_SHIFT) | (whacked ? WHACKED : 0)
+                | (millis & TIME_MASK));
+    }
+
+    /**
+     * Finds when a hole changed to a state.
+     * @param hole the hole
+     * @param state the state
+     * @return the {@link GameClock} time, or -1 if the history doesn't have it
+     */
+    long since(int hole, int state) {
+        long entry = entries.get(slot(hole, state));
+        return isFor(entry, state) ? entry & TIME_MASK : -1;
+    }
+
+    /**
+     * Finds the state a hole was in at some time.
+     * @param hole the hole
+     * @param current the state it is in now
+     * @param millis the {@link GameClock} time
+     * @return the state, or -1 if that is further back than the history goes
+     */
+    int stateAt(int hole, int current, long millis) {
+        for(int state = current; state >= 0 && state > current - DEPTH; state--) {
+            long entry = entries.get(slot(hole, state));
+            if(!isFor(entry, state)) {
+                return -1;
+            }
+            if((entry & TIME_MASK) <= millis) {
+                return state;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Claims a mole that dropped down by itself for a whack made while it was still up, so that of any
+     * number of such whacks only one gets it.
+     * @param hole the hole
+     * @param down the state the mole dropped down to
+     * @return whether the whack gets the mole; false if it was whacked or claimed already, or the
+     *         history no longer goes back to it
+     */
+    boolean claim(int hole, int down) {
+        int slot = slot(hole, down);
+        long entry = entries.get(slot);
+        return isFor(entry, down) && (entry & WHACKED) == 0 && entries.compareAndSet(slot, entry, entry | WHACKED);
+    }
+}
@@ -0,0 +1,398 @@
+package server;
+
+import common.WAMException;
+import common.WAMProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The standings of every named player across every match the server has finished: each one's best
+ * score, games, wins and a rolling average of their recent scores, ranked by best score.
+ *
+ * Players are numbered as they first turn up and their statistics kept in primitive arrays, so a
+ * result is a few stores. Ranks come from a Fenwick tree counting players by best score, which answers
+ * how many players are ahead of a score in time logarithmic in the spread of scores, however many
+ * results there are. Bests only ever go up, so the top {@link #TOP_K} are kept sorted as they change
+ * rather than found when asked for.
+ *
+ * It can be snapshotted to a file every so often and loaded back when the server starts, so the
+ * standings outlive the server.
+ */
+public class Leaderboard {
+
+    /** The most players a TOP can ask for */
+    public static final int TOP_K = 100;
+
+    /** What a name has to look like */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    /** How much a new score moves the rolling average */
+    private static final float RECENT_WEIGHT = 0.2f;
+
+    /** The first bytes of a snapshot file */
+    private static final int MAGIC = 0x57414d4c;
+
+    /** The number of each name */
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    /** By number: the name, best score, games played, games won, recent average and total score */
+    private String[] names = new String[1024];
+    private int[] best = new int[1024];
+    private int[] games = new int[1024];
+    private int[] wins = new int[1024];
+    private float[] recent = new float[1024];
+    private long[] total = new long[1024];
+
+    /** The number of players */
+    private int players;
+
+    /** The number of results recorded */
+    private long results;
+
+    /** The Fenwick tree: how many players have each best score, from {@link #low} on */
+    private int[] tree = new int[1024];
+
+    /** The lowest best score the tree can count */
+    private int low;
+
+    /** The numbers of the best players, best first; ties in the order they got there */
+    private final int[] top = new int[TOP_K];
+
+    /** The number of players in {@link #top} */
+    private int topSize;
+
+    /** Writes the snapshots, if they are taken */
+    private ScheduledExecutorService snapshots;
+
+    /**
+     * @param name a name a client wants to go by
+     * @return whether it is one
+     */
+    public static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    /**
+     * Records one player's result in a finished match.
+     * @param name the player's name
+     * @param score their final score
+     * @param won whether they won outright
+     */
+    public synchronized void record(String name, int score, boolean won) {
+        Integer known = ids.get(name);
+        int id;
+        if(known == null) {
+            fit(score);
+            id = add(name);
+            best[id] = score;
+            count(score, 1);
+            enterTop(id);
+        } else {
+            id = known;
+            if(score > best[id]) {
+                fit(score);
+                count(best[id], -1);
+                best[id] = score;
+                count(score, 1);
+                enterTop(id);
+            }
+        }
+        recent[id] = games[id] == 0 ? score : recent[id] + RECENT_WEIGHT * (score - recent[id]);
+        games[id]++;
+        if(won) {
+            wins[id]++;
+        }
+        total[id] += score;
+        results++;
+    }
+
+    /**
+     * Numbers a new player.
+     * @param name their name
+     * @return their number
+     */
+    private int add(String name) {
+        if(players == names.length) {
+            int size = players * 2;
+            names = Arrays.copyOf(names, size);
+            best = Arrays.copyOf(best, size);
+            games = Arrays.copyOf(games, size);
+            wins = Arrays.copyOf(wins, size);
+            recent = Arrays.copyOf(recent, size);
+            total = Arrays.copyOf(total, size);
+        }
+        names[players] = name;
+        ids.put(name, players);
+        return players++;
+    }
+
+    /**
+     * Makes the tree cover a score before a player's best changes to it.
+     * @param score the score
+     */
+    private void fit(int score) {
+        if(score < low || score - low >= tree.length - 1) {
+            cover(score);
+        }
+    }
+
+    /**
+     * Counts one more or one fewer player with a best score the tree covers.
+     * @param score the best score
+     * @param delta 1 or -1
+     */
+    private void count(int score, int delta) {
+        for(int i = score - low + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Rebuilds the tree with room for a score, doubling it until it fits. Scores are bunched together,
+     * so this is rare.
+     * @param score the score
+     */
+    private void cover(int score) {
+        int from = Math.min(low, score);
+        int to = Math.max(low + tree.length - 2, score);
+        int size = tree.length;
+        while(size - 2 < to - from) {
+            size *= 2;
+        }
+        // leave as much room below the scores as above them, for negative scores from missing
+        from -= (size - 2 - (to - from)) / 2;
+        tree = new int[size];
+        low = from;
+        for(int id = 0; id < players; id++) {
+            if(games[id] > 0) {
+                for(int i = best[id] - low + 1; i < tree.length; i += i & -i) {
+                    tree[i]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param score a score
+     * @return the number of players whose best is at most the score
+     */
+    private int atMost(int score) {
+        if(score < low) {
+            return 0;
+        }
+        int count = 0;
+        for(int i = Math.min(score - low + 1, tree.length - 1); i > 0; i -= i & -i) {
+            count += tree[i];
+        }
+        return count;
+    }
+
+    /**
+     * Moves a player whose best has just gone up into its place in the top, if it belongs there.
+     * @param id the player
+     */
+    private void enterTop(int id) {
+        int at = -1;
+        for(int i = 0; i < topSize; i++) {
+            if(top[i] == id) {
+                at = i;
+                break;
+            }
+        }
+        if(at < 0) {
+            if(topSize < TOP_K) {
+                at = topSize++;
+            } else if(best[id] > best[top[TOP_K - 1]]) {
+                at = TOP_K - 1;
+            } else {
+                return;
+            }
+        }
+        while(at > 0 && best[top[at - 1]] < best[id]) {
+            top[at] = top[at - 1];
+            at--;
+        }
+        top[at] = id;
+    }
+
+    /**
+     * @return the number of players with at least one result
+     */
+    public synchronized int getPlayers() {
+        return players;
+    }
+
+    /**
+     * @return the number of results recorded
+     */
+    public synchronized long getResults() {
+        return results;
+    }
+
+    /**
+     * Looks up a player's rank: one more than the number of players with a better best score.
+     * @param name the player's name
+     * @return the rank, or 0 if the player has no results
+     */
+    public synchronized int rank(String name) {
+        Integer id = ids.get(name);
+        return id == null ? 0 : 1 + players - atMost(best[id]);
+    }
+
+    /**
+     * Describes a player's standing as the server answers a RANK.
+     * @param name the player's name
+     * @return the reply, "RANK name rank players best games wins recent"
+     */
+    public synchronized String standing(String name) {
+        Integer id = ids.get(name);
+        if(id == null) {
+            return WAMProtocol.RANK + " " + name + " 0 " + players + " 0 0 0 0";
+        }
+        return WAMProtocol.RANK + " " + name + " " + rank(name) + " " + players + " " + best[id] + " "
+                + games[id] + " " + wins[id] + " " + Math.round(recent[id]);
+    }
+
+    /**
+     * Describes the best players as the server answers a TOP.
+     * @param k how many are wanted, at most {@link #TOP_K}
+     * @return the reply, "TOP n name best name best ..."
+     */
+    public synchronized String top(int k) {
+        int n = Math.max(0, Math.min(k, topSize));
+        StringBuilder reply = new StringBuilder(WAMProtocol.TOP).append(' ').append(n);
+        for(int i = 0; i < n; i++) {
+            reply.append(' ').append(names[top[i]]).append(' ').append(best[top[i]]);
+        }
+        return reply.toString();
+    }
+
+    /**
+     * Answers a RANK or TOP from a client.
+     * @param request the words of the request
+     * @param self the name the client goes by, or null
+     * @return the reply, or null if the request isn't one
+     */
+    String answer(String[] request, String self) {
+        if(request[0].equals(WAMProtocol.RANK)) {
+            String name = request.length > 1 ? request[1] : self;
+            return isValidName(name) ? standing(name) : null;
+        }
+        if(request[0].equals(WAMProtocol.TOP)) {
+            try {
+                return top(request.length > 1 ? Integer.parseInt(request[1]) : 10);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads a snapshot, if there is one, and snapshots to it every so often from now on.
+     * @param file the snapshot file
+     * @param seconds the time between snapshots
+     * @throws WAMException if the file is there but can't be read
+     */
+    public void snapshotTo(Path file, int seconds) throws WAMException {
+        if(Files.exists(file)) {
+            load(file);
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "leaderboard-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshots.scheduleWithFixedDelay(() -> {
+            try {
+                save(file);
+            } catch (WAMException e) {
+                System.err.println(e.getMessage());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes every player's statistics to a file, replacing it in one move so a crash never leaves half
+     * a snapshot. The statistics are copied under the lock and written outside it.
+     * @param file the file
+     * @throws WAMException if it can't be written
+     */
+    public void save(Path file) throws WAMException {
+        String[] n;
+        int[] b, g, w;
+        float[] r;
+        long[] t;
+        synchronized(this) {
+            n = Arrays.copyOf(names, players);
+            b = Arrays.copyOf(best, players);
+            g = Arrays.copyOf(games, players);
+            w = Arrays.copyOf(wins, players);
+            r = Arrays.copyOf(recent, players);
+            t = Arrays.copyOf(total, players);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(n.length);
+            for(int i = 0; i < n.length; i++) {
+                out.writeUTF(n[i]);
+                out.writeInt(b[i]);
+                out.writeInt(g[i]);
+                out.writeInt(w[i]);
+                out.writeFloat(r[i]);
+                out.writeLong(t[i]);
+            }
+        } catch (IOException e) {
+            throw new WAMException("Failed to snapshot the leaderboard to " + file, e);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new WAMException("Failed to snapshot the leaderboard to " + file, e);
+        }
+    }
+
+    /**
+     * Adds the players in a snapshot.
+     * @param file the snapshot
+     * @throws WAMException if it can't be read
+     */
+    private synchronized void load(Path file) throws WAMException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != MAGIC) {
+                throw new WAMException(file + " is not a leaderboard snapshot");
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int score = in.readInt();
+                fit(score);
+                int id = add(name);
+                best[id] = score;
+                games[id] = in.readInt();
+                wins[id] = in.readInt();
+                recent[id] = in.readFloat();
+                total[id] = in.readLong();
+                results += games[id];
+                count(best[id], 1);
+                enterTop(id);
+            }
+        } catch (IOException e) {
+            throw new WAMException("Failed to load the leaderboard from " + file, e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tells a {@link WAMRouter} about a server, so that the router sends it players.
+ *
+ * The reporter keeps one connection open to the router's heartbeat port. It introduces the server with
+ * a NODE line, then sends a LOAD line every interval, and connects again whenever the connection drops,
+ * so a router that restarts picks the server back up. The router takes a server that stops reporting
+ * for a few intervals, or whose connection closes, to be gone.
+ */
+final class LoadReporter implements Runnable {
+
+    /** The router's heartbeat address */
+    private final String routerHost;
+    private final int routerPort;
+
+    /** Where clients reach the server */
+    private final String host;
+    private final int port;
+
+    /** The lobby whose load is reported */
+    private final WAMLobby lobby;
+
+    /** The time between reports, in milliseconds */
+    private final int interval;
+
+    /**
+     * Creates a reporter; {@link #start()} sets it going.
+     * @param router the router's heartbeat address, "host:port"
+     * @param host the host clients reach the server at
+     * @param port the port clients reach the server at
+     * @param lobby the lobby whose load is reported
+     * @param interval the time between reports, in milliseconds
+     */
+    LoadReporter(String router, String host, int port, WAMLobby lobby, int interval) {
+        int colon = router.lastIndexOf(':');
+        this.routerHost = router.substring(0, colon);
+        this.routerPort = Integer.parseInt(router.substring(colon + 1));
+        this.host = host;
+        this.port = port;
+        this.lobby = lobby;
+        this.interval = interval;
+    }
+
+    /**
+     * Starts reporting on a daemon thread of its own.
+     */
+    void start() {
+        Thread t = new Thread(this, "load-reporter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return the NODE line that introduces the server
+     */
+    String node() {
+        return WAMRouter.NODE + " " + host + " " + port + " " + lobby.getConfig().getPlayers() + " "
+                + lobby.getMaxGames() + " " + lobby.getResumeGrace();
+    }
+
+    /**
+     * @return a LOAD line with the server's load right now
+     */
+    String load() {
+        return WAMRouter.LOAD + " " + lobby.getActiveGames() + " " + lobby.getMetrics().getPlayers() + " "
+                + lobby.getWaiting();
+    }
+
+    /**
+     * Reports until the process exits, connecting again an interval after the connection drops.
+     */
+    @Override
+    public void run() {
+        boolean warned = false;
+        while(true) {
+            try (Socket socket = new Socket(routerHost, routerPort);
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.US_ASCII);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                         StandardCharsets.US_ASCII))) {
+                socket.setTcpNoDelay(true);
+                out.println(node());
+                String reply = in.readLine();
+                if(reply == null || !reply.startsWith(WAMRouter.NODE)) {
+                    throw new IOException("The router refused this server: " + reply);
+                }
+                System.out.println("Reporting to the router at " + routerHost + ":" + routerPort);
+                warned = false;
+                while(!out.checkError()) {
+                    out.println(load());
+                    Thread.sleep(interval);
+                }
+            } catch (IOException e) {
+                if(!warned) {
+                    System.err.println("Can't report to the router at " + routerHost + ":" + routerPort + ": "
+                            + e.getMessage());
+                    warned = true;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
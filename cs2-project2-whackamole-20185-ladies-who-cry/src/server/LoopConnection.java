@@ -0,0 +1,44 @@
+package server;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection served by a {@link SelectorLoop}: a {@link NioPlayer} or a {@link Spectator}. The loop
+ * calls every method on its own thread.
+ */
+interface LoopConnection {
+
+    /**
+     * @return the channel of the connection
+     */
+    SocketChannel getChannel();
+
+    /**
+     * Called once the channel is registered with the loop's selector.
+     * @param key the key of the channel
+     */
+    void registered(SelectionKey key);
+
+    /**
+     * Called when the client has sent something.
+     */
+    void readable();
+
+    /**
+     * Called after a write request or when the socket can take more bytes.
+     */
+    void drain();
+
+    /**
+     * Called when a channel that was still connecting when it was registered has connected, or
+     * failed to.
+     */
+    default void connectable() {
+    }
+
+    /**
+     * Closes the channel straight away.
+     */
+    void closeNow();
+}
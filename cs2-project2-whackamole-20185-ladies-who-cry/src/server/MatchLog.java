@@ -0,0 +1,259 @@
+package server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything that happened in one match of a {@link ReplayLog}, as fixed-size records appended to
+ * memory-mapped segment files of the match's own.
+ *
+ * Appending claims a record number with one atomic add and writes the record straight into the mapped
+ * segment, so any number of threads can record at once without a lock, nothing is allocated, and the
+ * records live in the page cache rather than on the heap. The kind of a record is written last, so a
+ * reader takes a record of kind 0 as the end of what was written.
+ */
+class MatchLog {
+
+    /** A mole popped up: a is the mole */
+    static final int MOLE_UP = 1;
+    /** A mole dropped down by itself: a is the mole */
+    static final int MOLE_DOWN = 2;
+    /** A whack knocked a mole down: a is the mole, b the player */
+    static final int HIT = 3;
+    /** A whack missed: a is the mole, b the player */
+    static final int MISS = 4;
+    /** A player's score as it was sent out: a is the player, b the score */
+    static final int SCORE = 5;
+    /** A player's result: a is the player, b the binary opcode of the result */
+    static final int RESULT = 6;
+    /** The match is over; nothing after this belongs to it */
+    static final int END = 7;
+    /** A whack got a mole that had dropped down since it was clicked: a is the mole, b the player */
+    static final int LATE_HIT = 8;
+
+    /** The size of a record: the nanoseconds since the match started, the kind, a and b */
+    static final int RECORD = 20;
+
+    /** The number of records in a segment, a power of two */
+    static final int SEGMENT_RECORDS = 1 << 18;
+
+    /** The size of the pages touched in a new segment */
+    private static final int PAGE = 4096;
+
+    /** The log the match is in */
+    private final ReplayLog log;
+
+    /** The number of the match in the log */
+    private final int number;
+
+    /** The nanoTime the match started at; moved on by {@link #prepare()} past the time that took */
+    private long startNanos;
+
+    /** The number of the next record */
+    private final AtomicLong next = new AtomicLong();
+
+    /** The segments mapped so far; replaced, never modified, when one is added */
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /** Whether recording has failed and stopped */
+    private volatile boolean failed;
+
+    /**
+     * Starts a new match log
+     * @param log the log the match is in
+     * @param number the number of the match in the log
+     */
+    MatchLog(ReplayLog log, int number) {
+        this.log = log;
+        this.number = number;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the number of the match in the log
+     */
+    int getNumber() {
+        return number;
+    }
+
+    /**
+     * Maps the first segment and touches its pages, so that recording never has to on a game's thread.
+     * Called before the match begins.
+     * @return false if the segment couldn't be mapped, and nothing will be recorded
+     */
+    boolean prepare() {
+        boolean ready = segment(0) != null;
+        startNanos = System.nanoTime();
+        return ready;
+    }
+
+    /**
+     * Appends a record. The first segment is mapped by {@link #prepare()}, and halfway through a
+     * segment the next one is mapped and its pages touched on another thread, so recording doesn't
+     * stop for that.
+     * @param kind the kind of record
+     * @param a its first argument
+     * @param b its second argument
+     * @param nanoTime the {@link System#nanoTime()} it happened at, which the caller has usually
+     *                 taken anyway
+     */
+    void record(int kind, int a, int b, long nanoTime) {
+        if(failed) {
+            return;
+        }
+        long n = next.getAndIncrement();
+        int index = (int) (n / SEGMENT_RECORDS);
+        MappedByteBuffer segment = segment(index);
+        if(segment == null) {
+            return;
+        }
+        int slot = (int) (n % SEGMENT_RECORDS);
+        if(slot == SEGMENT_RECORDS / 2) {
+            ForkJoinPool.commonPool().execute(() -> segment(index + 1));
+        }
+        int at = slot * RECORD;
+        segment.putLong(at, nanoTime - startNanos);
+        segment.putInt(at + 12, a);
+        segment.putInt(at + 16, b);
+        segment.putInt(at + 8, kind);
+    }
+
+    /**
+     * Finds a segment, mapping it and any before it that aren't yet.
+     * @param index the number of the segment
+     * @return the segment, or null if it couldn't be mapped
+     */
+    private MappedByteBuffer segment(int index) {
+        MappedByteBuffer[] mapped = segments;
+        if(index < mapped.length) {
+            return mapped[index];
+        }
+        synchronized(this) {
+            mapped = segments;
+            if(index < mapped.length) {
+                return mapped[index];
+            }
+            try {
+                MappedByteBuffer[] more = Arrays.copyOf(mapped, index + 1);
+                for(int i = mapped.length; i <= index; i++) {
+                    more[i] = map(log.segmentPath(number, i), FileChannel.MapMode.READ_WRITE);
+                    for(int page = 0; page < more[i].capacity(); page += PAGE) {
+                        more[i].put(page, (byte) 0);
+                    }
+                }
+                segments = more;
+                return more[index];
+            } catch (IOException e) {
+                failed = true;
+                System.err.println("Stopped recording match " + number + ": " + e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Maps a whole segment file, making it if it doesn't exist.
+     * @param path the file
+     * @param mode how to map it
+     * @return the mapped segment
+     * @throws IOException if it can't be mapped
+     */
+    static MappedByteBuffer map(Path path, FileChannel.MapMode mode) throws IOException {
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+                ? new StandardOpenOption[] {StandardOpenOption.READ}
+                : new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE};
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            return channel.map(mode, 0, (long) SEGMENT_RECORDS * RECORD);
+        }
+    }
+
+    /**
+     * Ends the match: appends {@link #END} and notes in the index how many records there are.
+     */
+    void close() {
+        record(END, 0, 0, System.nanoTime());
+        log.finished(number, next.get());
+    }
+
+    /**
+     * Reads the records of a match in the order they were appended.
+     */
+    static class Reader {
+
+        /** The log the match is in */
+        private final ReplayLog log;
+
+        /** The number of the match */
+        private final int number;
+
+        /** The segment being read */
+        private MappedByteBuffer segment;
+
+        /** The number of the record read last */
+        private long n = -1;
+
+        private long nanos;
+        private int kind;
+        private int a;
+        private int b;
+
+        /**
+         * Starts reading a match
+         * @param log the log the match is in
+         * @param number the number of the match
+         */
+        Reader(ReplayLog log, int number) {
+            this.log = log;
+            this.number = number;
+        }
+
+        /**
+         * Moves on to the next record.
+         * @return false once there are no more
+         * @throws IOException if a segment can't be read
+         */
+        boolean next() throws IOException {
+            if(kind == END) {
+                return false;
+            }
+            n++;
+            int at = (int) (n % SEGMENT_RECORDS) * RECORD;
+            if(at == 0) {
+                Path path = log.segmentPath(number, (int) (n / SEGMENT_RECORDS));
+                if(!Files.exists(path)) {
+                    return false;
+                }
+                segment = map(path, FileChannel.MapMode.READ_ONLY);
+            }
+            kind = segment.getInt(at + 8);
+            if(kind == 0) {
+                // a match that never ended, or a record that was claimed but not written
+                return false;
+            }
+            nanos = segment.getLong(at);
+            a = segment.getInt(at + 12);
+            b = segment.getInt(at + 16);
+            return kind != END;
+        }
+
+        /** @return the nanoseconds since the start of the match the record was made at */
+        long nanos() { return nanos; }
+
+        /** @return the kind of the record */
+        int kind() { return kind; }
+
+        /** @return the first argument of the record */
+        int a() { return a; }
+
+        /** @return the second argument of the record */
+        int b() { return b; }
+    }
+}
@@ -0,0 +1,248 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * A hashed timer wheel that drives the moles of every game on the server from a single thread.
+ *
+ * Each hole only ever has one pending deadline (its next time to pop up or drop down), so the wheel stores
+ * nothing but (handler, mole, deadline) triples in primitive slot arrays. Every {@link #TICK_MS} the wheel
+ * thread takes the due entries out of the current slot and fires them as one batch, then gives every
+ * registered handler its {@link Handler#tick()} so it can flush what the batch produced.
+ */
+public class MoleScheduler implements Runnable {
+
+    /**
+     * Something that owns moles on the wheel, usually a {@link WAMGame}.
+     */
+    public interface Handler {
+        /**
+         * Called on the wheel thread when a mole's deadline has been reached.
+         * @param mole the mole number
+         * @param dueNanos the {@link System#nanoTime()} at which the mole was due
+         */
+        void expired(int mole, long dueNanos);
+
+        /**
+         * Called on the wheel thread at the end of every tick, after the tick's moles have fired,
+         * for as long as the handler is registered.
+         */
+        void tick();
+    }
+
+    /** The length of one tick of the wheel in milliseconds */
+    public static final int TICK_MS = 10;
+
+    /** The number of slots on the wheel; one revolution covers the longest mole delay */
+    private static final int WHEEL_SIZE = 1024;
+
+    /** One bucket of the wheel */
+    private static class Slot {
+        private Handler[] handlers = new Handler[8];
+        private int[] moles = new int[8];
+        private long[] deadlines = new long[8];
+        private int size;
+
+        /**
+         * Adds an entry to the slot, growing the arrays if needed.
+         */
+        private void add(Handler handler, int mole, long deadline) {
+            if(size == moles.length) {
+                handlers = Arrays.copyOf(handlers, size * 2);
+                moles = Arrays.copyOf(moles, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+            }
+            handlers[size] = handler;
+            moles[size] = mole;
+            deadlines[size] = deadline;
+            size++;
+        }
+    }
+
+    /** The wheel itself */
+    private final Slot[] wheel;
+
+    /** The due entries of the tick being fired, only touched by the wheel thread */
+    private final Slot batch;
+
+    /** The handlers told about every tick; replaced, never modified, when one registers or leaves */
+    private volatile Handler[] registered;
+
+    /** The tick the wheel is currently on, guarded by this */
+    private long tick;
+
+    /** The nanoTime the wheel was started at */
+    private final long startNanos;
+
+    /** Whether the wheel thread should keep going */
+    private volatile boolean running;
+
+    /** The number of ticks fired since the last reset */
+    private long tickCount;
+
+    /** The total lateness of the fired ticks since the last reset */
+    private long tickLagTotal;
+
+    /** The worst lateness of a tick since the last reset */
+    private long tickLagMax;
+
+    /**
+     * Creates a new wheel. It does nothing until {@link #start()} is called.
+     */
+    public MoleScheduler() {
+        this.wheel = new Slot[WHEEL_SIZE];
+        for(int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Slot();
+        }
+        this.batch = new Slot();
+        this.registered = new Handler[0];
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts the wheel thread.
+     */
+    public void start() {
+        running = true;
+        Thread t = new Thread(this, "mole-scheduler");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the wheel thread. Entries that have not fired are dropped.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Starts telling a handler about every tick.
+     * @param handler the handler
+     */
+    public synchronized void register(Handler handler) {
+        Handler[] now = Arrays.copyOf(registered, registered.length + 1);
+        now[now.length - 1] = handler;
+        registered = now;
+    }
+
+    /**
+     * Stops telling a handler about ticks. Its moles still on the wheel are fired as usual.
+     * @param handler the handler
+     */
+    public synchronized void unregister(Handler handler) {
+        Handler[] now = new Handler[registered.length];
+        int n = 0;
+        for(Handler h: registered) {
+            if(h != handler) {
+                now[n++] = h;
+            }
+        }
+        registered = Arrays.copyOf(now, n);
+    }
+
+    /**
+     * Schedules a mole to fire after a delay.
+     * @param handler who to tell when the delay is over
+     * @param mole the mole number
+     * @param delayMs the delay in milliseconds
+     */
+    public synchronized void schedule(Handler handler, int mole, long delayMs) {
+        long deadline = tick + Math.max(1, (delayMs + TICK_MS - 1) / TICK_MS);
+        wheel[(int) (deadline % WHEEL_SIZE)].add(handler, mole, deadline);
+    }
+
+    /**
+     * Moves the due entries of the current slot into the batch and advances the wheel.
+     */
+    private synchronized void collect() {
+        Slot slot = wheel[(int) (tick % WHEEL_SIZE)];
+        int kept = 0;
+        for(int i = 0; i < slot.size; i++) {
+            if(slot.deadlines[i] <= tick) {
+                batch.add(slot.handlers[i], slot.moles[i], slot.deadlines[i]);
+            } else {
+                slot.handlers[kept] = slot.handlers[i];
+                slot.moles[kept] = slot.moles[i];
+                slot.deadlines[kept] = slot.deadlines[i];
+                kept++;
+            }
+        }
+        for(int i = kept; i < slot.size; i++) {
+            slot.handlers[i] = null;
+        }
+        slot.size = kept;
+        tick++;
+    }
+
+    /**
+     * Turns the wheel, firing one slot per tick. If the thread falls behind it catches up without sleeping.
+     */
+    @Override
+    public void run() {
+        long nanosPerTick = TICK_MS * 1_000_000L;
+        while(running) {
+            long due = startNanos + tick * nanosPerTick;
+            long wait = due - System.nanoTime();
+            if(wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            recordLag(System.nanoTime() - due);
+            collect();
+            for(int i = 0; i < batch.size; i++) {
+                long dueNanos = startNanos + batch.deadlines[i] * nanosPerTick;
+                try {
+                    batch.handlers[i].expired(batch.moles[i], dueNanos);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                batch.handlers[i] = null;
+            }
+            batch.size = 0;
+            for(Handler h: registered) {
+                try {
+                    h.tick();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records how late a tick started.
+     * @param lag the lateness in nanoseconds
+     */
+    private synchronized void recordLag(long lag) {
+        tickCount++;
+        tickLagTotal += lag;
+        tickLagMax = Math.max(tickLagMax, lag);
+    }
+
+    /**
+     * @return the average lateness of a tick in nanoseconds since the last reset
+     */
+    public synchronized long getMeanTickLag() {
+        return tickCount == 0 ? 0 : tickLagTotal / tickCount;
+    }
+
+    /**
+     * @return the worst lateness of a tick in nanoseconds since the last reset
+     */
+    public synchronized long getMaxTickLag() {
+        return tickLagMax;
+    }
+
+    /**
+     * Clears the tick lateness statistics.
+     */
+    public synchronized void resetStats() {
+        tickCount = 0;
+        tickLagTotal = 0;
+        tickLagMax = 0;
+    }
+}
@@ -0,0 +1,549 @@
+package server;
+
+import common.WAMBinaryCodec;
+import common.WAMBinaryProtocol;
+import common.WAMLayout;
+import static common.WAMProtocol.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection to a single client served by a {@link SelectorLoop} instead of a thread of its own.
+ *
+ * Messages from the game go into an {@link OutboundQueue} on whatever thread sends them; the loop
+ * encodes them and writes them out whenever the socket can take them, taking no more from the queue
+ * while a client has unwritten bytes, so a slow client fills its own queue and nobody else's. Incoming
+ * bytes are split into lines, or binary frames once the client has switched, and whacks are parsed
+ * straight out of the read buffer.
+ */
+public class NioPlayer implements WAMConnection, LoopConnection {
+
+    /** The size of the read buffer; no client line is anywhere near this long */
+    private static final int READ_BUFFER = 1024;
+
+    /** The bytes the loop encodes for a client before writing them out */
+    private static final int WRITE_BATCH = 64 * 1024;
+
+    private volatile int playerNumber;
+
+    private final SocketChannel channel;
+
+    private final SelectorLoop loop;
+
+    private volatile WAMGame game;
+
+    /** The key of the channel with the loop's selector, only touched by the loop */
+    private SelectionKey key;
+
+    /** Bytes read from the client that do not yet form a full line, only touched by the loop */
+    private final ByteBuffer in;
+
+    /** Messages waiting to be encoded */
+    private final OutboundQueue queue;
+
+    /** Holds the client's whacks to the connection's rate before they reach the game */
+    private final WhackLimiter limiter;
+
+    /** Bytes encoded but not yet written, only touched by the loop */
+    private final OutboundBuffer out;
+
+    /** Whether the loop has been asked to write; starts set until the channel is registered */
+    private final AtomicBoolean writeRequested = new AtomicBoolean(true);
+
+    /** Whether the channel has been handed to the loop */
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /** Whether the connection should close once everything queued has been written */
+    private volatile boolean closing;
+
+    /** Whether the connection should close straight away */
+    private volatile boolean aborting;
+
+    /** Whether the binary framing is offered in WELCOME */
+    private final boolean offerBinary;
+
+    /** Whether messages from the client are binary, only touched by the loop */
+    private boolean binaryIn;
+
+    /** The server's metrics */
+    private final WAMMetrics metrics;
+
+    /** Whether the channel has been closed, only touched by the loop */
+    private boolean closed;
+
+    /** The standings RANK and TOP are answered from, or null if there are none */
+    private final Leaderboard leaderboard;
+
+    /** The name the client goes by on the leaderboard, or null */
+    private volatile String name;
+
+    /** The lobby the connection waits in and a RESUME is taken to, or null if there is none */
+    private final WAMLobby lobby;
+
+    /**
+     * Creates a new NioPlayer, which the loop serves once it is {@link #start() started}. The player
+     * number is given when the player is put in a match.
+     * @param channel the accepted, non-blocking channel
+     * @param loop the loop that will serve it
+     * @param config the settings of the connection
+     * @param metrics the server's metrics
+     * @param leaderboard the standings to answer RANK and TOP from, or null if there are none
+     * @param lobby the lobby the connection waits in and a RESUME is taken to, or null if there is none
+     */
+    public NioPlayer(SocketChannel channel, SelectorLoop loop, ConnectionConfig config, WAMMetrics metrics,
+                     Leaderboard leaderboard, WAMLobby lobby) {
+        this.channel = channel;
+        this.lobby = lobby;
+        this.loop = loop;
+        this.offerBinary = config.offersBinary();
+        this.metrics = metrics;
+        this.leaderboard = leaderboard;
+        this.in = ByteBuffer.allocate(READ_BUFFER);
+        this.queue = new OutboundQueue(config.getQueueCapacity(), config.getPolicy(), metrics);
+        this.limiter = new WhackLimiter(config.getWhackRate(), config.getWhackBurst());
+        this.out = new OutboundBuffer(READ_BUFFER);
+        metrics.playerConnected();
+    }
+
+    /**
+     * @return the channel of this connection
+     */
+    @Override
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Asks the loop to write out everything queued so far.
+     */
+    @Override
+    public void flush() {
+        if(writeRequested.compareAndSet(false, true)) {
+            loop.wantWrite(this);
+        }
+    }
+
+    /**
+     * Closes the connection straight away if the client can't keep up and the policy says to.
+     * @param queued whether the message was queued or dealt with by the policy
+     */
+    private void queued(boolean queued) {
+        if(!queued) {
+            aborting = true;
+            flush();
+        }
+    }
+
+    @Override
+    public void MoleDown(int moleNumber) {
+        if(!closing) {
+            queued(queue.mole(false, moleNumber));
+        }
+    }
+
+    @Override
+    public void MoleUp(int moleNumber) {
+        if(!closing) {
+            queued(queue.mole(true, moleNumber));
+        }
+    }
+
+    @Override
+    public void getScore(int[] scores) {
+        if(!closing) {
+            queued(queue.scores());
+        }
+    }
+
+    @Override
+    public void gameWon() {
+        queued(queue.result(WAMBinaryProtocol.GAME_WON));
+    }
+
+    @Override
+    public void gameLost() {
+        queued(queue.result(WAMBinaryProtocol.GAME_LOST));
+    }
+
+    @Override
+    public void gameTied() {
+        queued(queue.result(WAMBinaryProtocol.GAME_TIED));
+    }
+
+    @Override
+    public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) {
+        this.playerNumber = playerNumber;
+        queued(queue.line(WELCOME + " " + rows + " " + columns + " " + players + " " + playerNumber
+                + (offerBinary ? " " + BINARY : "") + (layout != null ? " " + LAYOUT : "")));
+        if(layout != null) {
+            // the client reads this before it asks for binary, so it is always a text line
+            queued(queue.line(LAYOUT + " " + layout.encode()));
+        }
+        flush();
+    }
+
+    @Override
+    public void session(String token) {
+        // the client may have switched to binary already, so this goes in whichever framing it is using
+        queue.reply(SESSION + " " + token);
+        flush();
+    }
+
+    @Override
+    public void snapshot() {
+        queued(queue.snapshot());
+    }
+
+    @Override
+    public void refresh(int moleNumber) {
+        queue.refresh(moleNumber);
+    }
+
+    @Override
+    public void setGame(WAMGame game) {
+        queue.setGame(game);
+        this.game = game;
+    }
+
+    /**
+     * Hands the channel to the loop, if it hasn't been already; anything queued before then, such as
+     * the WELCOME, is written once it is registered.
+     */
+    @Override
+    public void start() {
+        if(started.compareAndSet(false, true)) {
+            loop.register(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        flush();
+    }
+
+    /**
+     * Called on the loop when the client has sent something.
+     */
+    @Override
+    public void readable() {
+        int n;
+        try {
+            n = channel.read(in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if(n < 0) {
+            closeNow();
+            return;
+        }
+        in.flip();
+        try {
+            while(in.hasRemaining()) {
+                if(binaryIn) {
+                    if(WAMBinaryCodec.frameLength(in) < 0) {
+                        break;
+                    }
+                    frame();
+                } else {
+                    int end = -1;
+                    for(int i = in.position(); i < in.limit() && end < 0; i++) {
+                        if(in.get(i) == '\n') {
+                            end = i;
+                        }
+                    }
+                    if(end < 0) {
+                        break;
+                    }
+                    line(in.position(), end);
+                    in.position(end + 1);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // not a frame this server knows, so there's no telling where the next one starts
+            closeNow();
+            return;
+        }
+        in.compact();
+        if(!in.hasRemaining()) {
+            if(binaryIn) {
+                // a frame longer than the whole buffer can't be skipped without knowing where it ends
+                closeNow();
+                return;
+            }
+            // a line longer than the whole buffer is not something a client would send
+            in.clear();
+        }
+    }
+
+    /**
+     * Checks whether the bytes of a line start with some words, followed by a space or the end of the
+     * line, so a line is read the same as a {@link WAMPlayer} splitting it into words reads it.
+     * @param from the index of the first byte of the line
+     * @param to the index of the line ending
+     * @param text the words
+     * @return the index just past the words, or -1 if the line doesn't start with them
+     */
+    private int startsWith(int from, int to, String text) {
+        int i = from;
+        for(int k = 0; k < text.length(); k++, i++) {
+            if(i >= to || in.get(i) != text.charAt(k)) {
+                return -1;
+            }
+        }
+        return i == to || in.get(i) == ' ' || in.get(i) == '\r' ? i : -1;
+    }
+
+    /**
+     * Handles one line from the client, parsing a WHACK without making a String of it.
+     * @param from the index of the first byte of the line
+     * @param to the index of the line ending
+     */
+    private void line(int from, int to) {
+        if(offerBinary && startsWith(from, to, CODEC + " " + BINARY) >= 0) {
+            queued(queue.codec());
+            binaryIn = true;
+            flush();
+            return;
+        }
+        int i = startsWith(from, to, WHACK);
+        if(i < 0) {
+            // anything else is rare enough to be worth a String
+            byte[] bytes = new byte[to - from];
+            in.get(from, bytes);
+            request(new String(bytes, StandardCharsets.US_ASCII).trim().split(" "));
+            return;
+        }
+        while(i < to && in.get(i) == ' ') {
+            i++;
+        }
+        int mole = 0;
+        int digits = 0;
+        while(i < to && in.get(i) >= '0' && in.get(i) <= '9') {
+            mole = mole * 10 + (in.get(i) - '0');
+            i++;
+            digits++;
+        }
+        if(digits == 0) {
+            // a WHACK of no mole, which a WAMPlayer ignores too
+            return;
+        }
+        // the player number is the connection's own, so only skip it on the way to the time
+        while(i < to && in.get(i) == ' ') {
+            i++;
+        }
+        while(i < to && in.get(i) >= '0' && in.get(i) <= '9') {
+            i++;
+        }
+        while(i < to && in.get(i) == ' ') {
+            i++;
+        }
+        long clickedAt = -1;
+        while(i < to && in.get(i) >= '0' && in.get(i) <= '9') {
+            clickedAt = Math.max(clickedAt, 0) * 10 + (in.get(i) - '0');
+            i++;
+        }
+        whack(mole, clickedAt);
+    }
+
+    /**
+     * Handles one binary frame from the client, which is known to be all there.
+     */
+    private void frame() {
+        int length = WAMBinaryCodec.frameLength(in);
+        byte op = in.get();
+        if(op == WAMBinaryProtocol.TEXT) {
+            request(WAMBinaryCodec.getText(in).split(" "));
+            return;
+        }
+        if(op != WAMBinaryProtocol.WHACK && op != WAMBinaryProtocol.WHACK_AT) {
+            in.position(in.position() + length - 1);
+            return;
+        }
+        int mole = WAMBinaryCodec.getVarint(in);
+        WAMBinaryCodec.getVarint(in);
+        whack(mole, op == WAMBinaryProtocol.WHACK_AT ? GameClock.expand(WAMBinaryCodec.getVarint(in)) : -1);
+    }
+
+    /**
+     * Handles a VIEW from the client, once it is in a match.
+     * @param s the words of the VIEW
+     */
+    private void view(String[] s) {
+        WAMGame g = game;
+        if(g == null || s.length < 5) {
+            return;
+        }
+        try {
+            g.view(playerNumber, Integer.parseInt(s[1]), Integer.parseInt(s[2]), Integer.parseInt(s[3]),
+                    Integer.parseInt(s[4]));
+        } catch (NumberFormatException e) {
+            // not a VIEW
+        }
+    }
+
+    /**
+     * Handles a RESUME, TIME, VIEW, NAME, RANK or TOP from the client.
+     * @param s the words of the request
+     */
+    private void request(String[] s) {
+        if(s[0].equals(TIME) && s.length > 1) {
+            queue.reply(TIME + " " + s[1] + " " + GameClock.millis());
+            flush();
+            return;
+        }
+        if(s[0].equals(RESUME)) {
+            // too late once the connection is in a match of its own
+            if(game == null && (lobby == null || s.length < 2 || !lobby.resume(this, s[1]))) {
+                queued(queue.line(ERROR + " Can't resume"));
+                close();
+            }
+            return;
+        }
+        if(s[0].equals(VIEW)) {
+            view(s);
+            return;
+        }
+        if(leaderboard == null) {
+            return;
+        }
+        if(s[0].equals(NAME)) {
+            if(s.length > 1 && Leaderboard.isValidName(s[1])) {
+                name = s[1];
+            }
+            return;
+        }
+        String reply = leaderboard.answer(s, name);
+        if(reply != null) {
+            queue.reply(reply);
+            flush();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Passes a whack on to the game, if there is one yet and the client is within its rate.
+     * @param mole the mole whacked
+     * @param clickedAt the {@link GameClock} time the player clicked at, or -1 if not known
+     */
+    private void whack(int mole, long clickedAt) {
+        WAMGame g = game;
+        if(g != null && admit(g)) {
+            try {
+                g.whackAt(mole, playerNumber, clickedAt);
+            } catch (RuntimeException e) {
+                // one bad match must not take down the loop and every other match on it
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Asks the limiter about a whack, and sheds the connection if the client won't stop flooding; a
+     * player that has been shed can't pick its match back up either.
+     * @param g the game the whack is for
+     * @return whether the whack may go on to the game
+     */
+    private boolean admit(WAMGame g) {
+        int verdict = limiter.check(System.nanoTime());
+        if(verdict == WhackLimiter.ALLOW) {
+            return true;
+        }
+        metrics.whackRefused();
+        if(verdict == WhackLimiter.SHED) {
+            metrics.playerShed();
+            if(lobby != null) {
+                lobby.forget(g, playerNumber);
+            }
+            queue.reply(ERROR + " Too many whacks");
+            close();
+        }
+        return false;
+    }
+
+    /**
+     * Called on the loop once the channel is registered with its selector.
+     * @param key the key of the channel
+     */
+    @Override
+    public void registered(SelectionKey key) {
+        this.key = key;
+        drain();
+    }
+
+    /**
+     * Called on the loop after a write request or when the socket can take more bytes: encodes what is
+     * queued and writes it, waiting for OP_WRITE if the socket is full and closing the channel if the
+     * connection is done.
+     */
+    @Override
+    public void drain() {
+        if(!key.isValid()) {
+            return;
+        }
+        if(aborting) {
+            closeNow();
+            return;
+        }
+        try {
+            while(true) {
+                if(out.isEmpty()) {
+                    queue.drainTo(out, WRITE_BATCH);
+                }
+                if(!out.isEmpty()) {
+                    channel.write(out.flip());
+                    out.written();
+                    if(!out.isEmpty()) {
+                        // the client isn't keeping up; leave the rest in its queue until it is
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if(queue.hasWork()) {
+                    continue;
+                }
+                writeRequested.set(false);
+                // anything queued after the check above asked for a write that was refused, so look again
+                if(!queue.hasWork() || !writeRequested.compareAndSet(false, true)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if(closing) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Closes the channel straight away. Only called on the loop.
+     */
+    @Override
+    public void closeNow() {
+        closing = true;
+        if(!closed) {
+            closed = true;
+            metrics.playerDisconnected();
+            if(lobby != null) {
+                lobby.leave(this);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            // squash
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package server;
+
+import common.WAMBinaryCodec;
+import common.WAMBinaryProtocol;
+import common.WAMTextCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The bytes waiting to go out to one client, in whichever framing it has agreed on.
+ *
+ * Messages are encoded straight into the buffer, so nothing is allocated per message once the
+ * buffer has grown to its working size. Not thread-safe; only a connection's writer touches its buffer.
+ */
+class OutboundBuffer {
+
+    /** The bytes, from 0 to the position */
+    private ByteBuffer buf;
+
+    /** Whether messages are encoded binary rather than as text */
+    private boolean binary;
+
+    /**
+     * Creates a new, empty buffer
+     * @param capacity the starting capacity in bytes
+     */
+    OutboundBuffer(int capacity) {
+        this.buf = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return the number of bytes waiting
+     */
+    int size() {
+        return buf.position();
+    }
+
+    /**
+     * Switches every message added from now on to the binary framing.
+     */
+    void useBinary() {
+        binary = true;
+    }
+
+    /**
+     * @return whether nothing is waiting to go out
+     */
+    boolean isEmpty() {
+        return buf.position() == 0;
+    }
+
+    /**
+     * Makes sure there is room for some more bytes.
+     * @param bytes the number of bytes about to be added
+     */
+    private void reserve(int bytes) {
+        if(buf.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+    }
+
+    /**
+     * Adds a MOLE_UP or MOLE_DOWN.
+     * @param up whether the mole came up
+     * @param mole the mole number
+     */
+    void mole(boolean up, int mole) {
+        reserve(WAMTextCodec.MAX_MOLE);
+        if(binary) {
+            WAMBinaryCodec.putMole(buf, up ? WAMBinaryProtocol.MOLE_UP : WAMBinaryProtocol.MOLE_DOWN, mole);
+        } else {
+            WAMTextCodec.putMole(buf, up ? WAMTextCodec.MOLE_UP : WAMTextCodec.MOLE_DOWN, mole);
+        }
+    }
+
+    /**
+     * Adds a SCORE.
+     * @param scores every player's score
+     */
+    void scores(int[] scores) {
+        reserve(WAMTextCodec.maxScoresLength(scores.length));
+        if(binary) {
+            WAMBinaryCodec.putScores(buf, scores);
+        } else {
+            WAMTextCodec.putScores(buf, scores);
+        }
+    }
+
+    /**
+     * Adds a SNAPSHOT.
+     * @param up one bit per hole, set if its mole is up
+     * @param holes the number of holes
+     */
+    void snapshot(long[] up, int holes) {
+        reserve(WAMTextCodec.maxSnapshotLength(holes));
+        if(binary) {
+            WAMBinaryCodec.putSnapshot(buf, up, holes);
+        } else {
+            WAMTextCodec.putSnapshot(buf, up, holes);
+        }
+    }
+
+    /**
+     * Adds a message without arguments.
+     * @param op the binary opcode
+     * @param name the text message
+     */
+    void op(byte op, byte[] name) {
+        reserve(name.length + 1);
+        if(binary) {
+            buf.put(op);
+        } else {
+            WAMTextCodec.putLine(buf, name);
+        }
+    }
+
+    /**
+     * Adds a text line, whatever the framing. Only for the handshake, where allocating doesn't matter.
+     * @param line the line, without the line ending
+     */
+    void line(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        reserve(bytes.length + 1);
+        buf.put(bytes).put((byte) '\n');
+    }
+
+    /**
+     * Adds a text message that has no binary form of its own: a TEXT frame in the binary framing, the
+     * plain line otherwise.
+     * @param line the line, without the line ending
+     */
+    void text(String line) {
+        if(!binary) {
+            line(line);
+            return;
+        }
+        reserve(line.length() + WAMBinaryCodec.MAX_VARINT + 1);
+        WAMBinaryCodec.putText(buf, line);
+    }
+
+    /**
+     * Flips the buffer for writing out. Call {@link #written()} once done.
+     * @return the buffer, from 0 to what was its position
+     */
+    ByteBuffer flip() {
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Keeps whatever was not written after a {@link #flip()}, ready for more messages.
+     */
+    void written() {
+        buf.compact();
+    }
+
+    /**
+     * Drops everything waiting to go out.
+     */
+    void clear() {
+        buf.clear();
+    }
+}
@@ -0,0 +1,450 @@
+package server;
+
+import common.WAMBinaryProtocol;
+import common.WAMProtocol;
+import common.WAMTextCodec;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The messages waiting to go out to one client: a bounded, lock-free queue that any number of game
+ * threads add to and one writer takes from.
+ *
+ * Events are queued as longs (a kind and an argument) in a ring of fixed size, so adding one is a
+ * compare-and-set and a store, and never waits on the client. The writer turns them into bytes in
+ * whichever framing the client has agreed on, which it alone keeps track of. When the ring is full the
+ * connection's {@link SlowConsumerPolicy} decides what happens; coalesced holes and scores are sent with
+ * their latest state from the game once the writer has caught up.
+ */
+class OutboundQueue {
+
+    /** The kinds of event; an event is its kind in the high half and its argument in the low half */
+    private static final int MOLE_UP = 1;
+    private static final int MOLE_DOWN = 2;
+    private static final int SCORE = 3;
+    private static final int RESULT = 4;
+    private static final int LINE = 5;
+    private static final int CODEC = 6;
+    private static final int REPLY = 7;
+    private static final int SNAPSHOT = 8;
+
+    /** What {@link #poll()} returns when there is nothing queued; no event is 0 */
+    private static final long EMPTY = 0;
+
+    /** The events, published by {@link #sequence} */
+    private final long[] events;
+
+    /** For each slot, the position it can next be written at, or that position plus one once written */
+    private final AtomicLongArray sequence;
+
+    private final int mask;
+
+    /** The position the next event is added at */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The position the next event is taken from, only touched by the writer */
+    private long head;
+
+    /** What to do when the queue is full */
+    private final SlowConsumerPolicy policy;
+
+    private final WAMMetrics metrics;
+
+    /**
+     * The handshake lines and replies, taken in order as their {@link #LINE} and {@link #REPLY} events
+     * come up. Guarded by itself, so a line goes in at the same place in the queue as its event does in
+     * the ring.
+     */
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+
+    /** The game the client is in, for the latest state of coalesced holes and scores */
+    private volatile WAMGame game;
+
+    /** One bit per hole whose latest state has to be sent, set while the queue was full */
+    private volatile AtomicLongArray dirty;
+
+    /** Whether the scores have to be sent, set while the queue was full */
+    private final AtomicBoolean scoresDirty = new AtomicBoolean();
+
+    /** Whether anything was coalesced or put aside while the queue was full */
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+
+    /** A result that didn't fit in the queue, 0 if none */
+    private final AtomicInteger lateResult = new AtomicInteger();
+
+    /** The scores being sent, only touched by the writer */
+    private int[] scores = new int[0];
+
+    /** The moles being sent in a SNAPSHOT, only touched by the writer */
+    private long[] board = new long[0];
+
+    /**
+     * Creates a new, empty queue
+     * @param capacity the number of events it holds, rounded up to a power of two
+     * @param policy what to do when it is full
+     * @param metrics the server's metrics
+     */
+    OutboundQueue(int capacity, SlowConsumerPolicy policy, WAMMetrics metrics) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.events = new long[size];
+        this.sequence = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+        this.mask = size - 1;
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the game the client is playing in.
+     * @param game the game
+     */
+    void setGame(WAMGame game) {
+        this.dirty = new AtomicLongArray((game.getHoles() + 63) >>> 6);
+        this.game = game;
+    }
+
+    /**
+     * Adds an event, unless the queue is full.
+     * @param kind the kind of event
+     * @param argument its argument
+     * @return whether it was added
+     */
+    private boolean offer(int kind, int argument) {
+        long event = ((long) kind << 32) | (argument & 0xffffffffL);
+        while(true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long ready = sequence.get(slot);
+            if(ready < position) {
+                return false;
+            }
+            if(ready == position && tail.compareAndSet(position, position + 1)) {
+                events[slot] = event;
+                sequence.set(slot, position + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the next event. Only called by the writer.
+     * @return the event, or {@link #EMPTY} if there is none
+     */
+    private long poll() {
+        int slot = (int) head & mask;
+        if(sequence.get(slot) != head + 1) {
+            return EMPTY;
+        }
+        long event = events[slot];
+        sequence.set(slot, head + events.length);
+        head++;
+        return event;
+    }
+
+    /**
+     * Queues a MOLE_UP or MOLE_DOWN.
+     * @param up whether the mole came up
+     * @param mole the mole number
+     * @return false if the client has to be disconnected
+     */
+    boolean mole(boolean up, int mole) {
+        if(offer(up ? MOLE_UP : MOLE_DOWN, mole)) {
+            return true;
+        }
+        switch(policy) {
+            case COALESCE:
+                AtomicLongArray bits = dirty;
+                if(bits != null) {
+                    set(bits, mole);
+                }
+                overflowed.set(true);
+                metrics.slowConsumer(SlowConsumerPolicy.COALESCE);
+                return true;
+            case DROP:
+                metrics.slowConsumer(SlowConsumerPolicy.DROP);
+                return true;
+            default:
+                metrics.slowConsumer(SlowConsumerPolicy.DISCONNECT);
+                return false;
+        }
+    }
+
+    /**
+     * Queues a SCORE; the scores sent are the latest when it is written.
+     * @return false if the client has to be disconnected
+     */
+    boolean scores() {
+        if(offer(SCORE, 0)) {
+            return true;
+        }
+        metrics.slowConsumer(policy);
+        if(policy == SlowConsumerPolicy.DISCONNECT) {
+            return false;
+        }
+        scoresDirty.set(true);
+        overflowed.set(true);
+        return true;
+    }
+
+    /**
+     * Queues a GAME_WON, GAME_LOST or GAME_TIED, which is never dropped.
+     * @param op the binary opcode of the result
+     * @return false if the client has to be disconnected
+     */
+    boolean result(byte op) {
+        if(offer(RESULT, op)) {
+            return true;
+        }
+        metrics.slowConsumer(policy);
+        if(policy == SlowConsumerPolicy.DISCONNECT) {
+            return false;
+        }
+        lateResult.set(op);
+        overflowed.set(true);
+        return true;
+    }
+
+    /**
+     * Queues a text line of the handshake.
+     * @param line the line, without the line ending
+     * @return false if the client has to be disconnected
+     */
+    boolean line(String line) {
+        return text(LINE, line);
+    }
+
+    /**
+     * Queues the answer to a client's request, in whichever framing it has agreed on. A reply that
+     * doesn't fit is dropped; the client can always ask again.
+     * @param line the reply, without the line ending
+     */
+    void reply(String line) {
+        if(!text(REPLY, line)) {
+            metrics.slowConsumer(SlowConsumerPolicy.DROP);
+        }
+    }
+
+    /**
+     * Queues an event that goes out with a text line.
+     * @param kind {@link #LINE} or {@link #REPLY}
+     * @param line the line
+     * @return whether it was queued
+     */
+    private boolean text(int kind, String line) {
+        synchronized(lines) {
+            lines.add(line);
+            if(offer(kind, 0)) {
+                return true;
+            }
+            lines.pollLast();
+            return false;
+        }
+    }
+
+    /**
+     * @return the line of the next {@link #LINE} or {@link #REPLY} event
+     */
+    private String nextLine() {
+        synchronized(lines) {
+            return lines.poll();
+        }
+    }
+
+    /**
+     * Queues the answer to a client's request for the binary framing; everything after it is binary.
+     * @return false if the client has to be disconnected
+     */
+    boolean codec() {
+        return offer(CODEC, 0);
+    }
+
+    /**
+     * Queues a SNAPSHOT and a SCORE for a client that has picked its match back up. Both go out with the
+     * game's state when they are written, so anything queued before them is made up to date.
+     * @return false if the client has to be disconnected
+     */
+    boolean snapshot() {
+        return offer(SNAPSHOT, 0) && scores();
+    }
+
+    /**
+     * Has a mole's state sent with the game's latest once the writer has caught up, the same way as a
+     * mole coalesced while the queue was full, so whatever it changed to in between it arrives right.
+     * @param mole the mole number
+     */
+    void refresh(int mole) {
+        AtomicLongArray bits = dirty;
+        if(bits != null) {
+            set(bits, mole);
+            overflowed.set(true);
+        }
+    }
+
+    /**
+     * @return whether the writer has anything to do. Only called by the writer.
+     */
+    boolean hasWork() {
+        return sequence.get((int) head & mask) == head + 1 || overflowed.get();
+    }
+
+    /**
+     * @return the number of events queued. Only called by the writer.
+     */
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Encodes queued events into a buffer until it holds at least some number of bytes or nothing is
+     * left, then anything that was put aside while the queue was full. Only called by the writer.
+     * @param out the buffer
+     * @param limit the number of bytes to stop at
+     * @return whether there is anything left
+     */
+    boolean drainTo(OutboundBuffer out, int limit) {
+        metrics.queued(size());
+        long event;
+        while(out.size() < limit && (event = poll()) != EMPTY) {
+            encode((int) (event >>> 32), (int) event, out);
+        }
+        if(out.size() < limit && overflowed.getAndSet(false)) {
+            catchUp(out);
+        }
+        return hasWork();
+    }
+
+    /**
+     * Encodes one event.
+     * @param kind the kind of event
+     * @param argument its argument
+     * @param out where to encode it
+     */
+    private void encode(int kind, int argument, OutboundBuffer out) {
+        switch(kind) {
+            case MOLE_UP:
+                out.mole(true, argument);
+                break;
+            case MOLE_DOWN:
+                out.mole(false, argument);
+                break;
+            case SCORE:
+                writeScores(out);
+                break;
+            case RESULT:
+                out.op((byte) argument, resultName((byte) argument));
+                break;
+            case LINE:
+                out.line(nextLine());
+                break;
+            case REPLY:
+                out.text(nextLine());
+                break;
+            case SNAPSHOT:
+                writeSnapshot(out);
+                break;
+            case CODEC:
+                out.line(WAMProtocol.CODEC + " " + WAMProtocol.BINARY);
+                out.useBinary();
+                break;
+            default:
+                throw new IllegalStateException("Unknown event " + kind);
+        }
+    }
+
+    /**
+     * Sends the latest state of everything coalesced while the queue was full.
+     * @param out where to encode it
+     */
+    private void catchUp(OutboundBuffer out) {
+        WAMGame g = game;
+        AtomicLongArray bits = dirty;
+        if(g != null && bits != null) {
+            for(int w = 0; w < bits.length(); w++) {
+                long word = bits.getAndSet(w, 0);
+                while(word != 0) {
+                    int mole = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    out.mole(g.getStatus(mole), mole);
+                }
+            }
+        }
+        if(scoresDirty.getAndSet(false)) {
+            writeScores(out);
+        }
+        int result = lateResult.getAndSet(0);
+        if(result != 0) {
+            out.op((byte) result, resultName((byte) result));
+        }
+    }
+
+    /**
+     * Encodes a SCORE with the game's latest scores.
+     * @param out where to encode it
+     */
+    private void writeScores(OutboundBuffer out) {
+        WAMGame g = game;
+        if(g == null) {
+            return;
+        }
+        if(scores.length != g.getPlayerCount()) {
+            scores = new int[g.getPlayerCount()];
+        }
+        g.copyScores(scores);
+        out.scores(scores);
+    }
+
+    /**
+     * Encodes a SNAPSHOT with the game's board as it is now.
+     * @param out where to encode it
+     */
+    private void writeSnapshot(OutboundBuffer out) {
+        WAMGame g = game;
+        if(g == null) {
+            return;
+        }
+        if(board.length != (g.getHoles() + 63) >>> 6) {
+            board = new long[(g.getHoles() + 63) >>> 6];
+        }
+        g.copyBoard(board);
+        out.snapshot(board, g.getHoles());
+    }
+
+    /**
+     * @param op the binary opcode of a result
+     * @return the text message of the result
+     */
+    private static byte[] resultName(byte op) {
+        switch(op) {
+            case WAMBinaryProtocol.GAME_WON:
+                return WAMTextCodec.GAME_WON;
+            case WAMBinaryProtocol.GAME_LOST:
+                return WAMTextCodec.GAME_LOST;
+            default:
+                return WAMTextCodec.GAME_TIED;
+        }
+    }
+
+    /**
+     * Sets a bit, without writing the word if it is already set.
+     * @param bits the bitset
+     * @param index the bit
+     */
+    private static void set(AtomicLongArray bits, int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long old = bits.get(word);
+        while((old & bit) == 0) {
+            long seen = bits.compareAndExchange(word, old, old | bit);
+            if(seen == old) {
+                return;
+            }
+            old = seen;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Carries a client's connection through a {@link WAMRouter} to the server the router picked for it,
+ * byte for byte in both directions, on one {@link SelectorLoop}.
+ *
+ * Java has no socket-to-socket splice, so each direction has one direct buffer: the bytes go from one
+ * socket into native memory and out of the other without ever being copied onto the heap, and the
+ * router never looks at them. When one side can't take what the other has sent, the relay stops
+ * reading from the sender until it can, so a slow client backs up into its server and the buffers
+ * never grow.
+ *
+ * The connection to the server is made on the loop too, so a server that is slow to answer holds up
+ * nobody: nothing is read from the client until the server has taken the connection.
+ */
+final class Relay {
+
+    /** The size of the buffer of each direction */
+    private static final int BUFFER = 16 * 1024;
+
+    /** The client's half and the server's half */
+    private final Half client;
+    private final Half server;
+
+    /** Run on the loop if the server can't be reached */
+    private final Runnable unreachable;
+
+    /**
+     * Starts connecting to a server, and relays between it and a client once it has connected.
+     * @param client the client's channel
+     * @param address where the server is
+     * @param loop the loop that serves both
+     * @param unreachable run on the loop, with the client's channel still open, if the server can't be
+     *                    reached
+     * @param first bytes already read from the client, to go to the server first, or null
+     * @throws IOException if the channels can't be made non-blocking or the connection can't be started
+     */
+    Relay(SocketChannel client, InetSocketAddress address, SelectorLoop loop, Runnable unreachable,
+          ByteBuffer first) throws IOException {
+        this.unreachable = unreachable;
+        client.configureBlocking(false);
+        client.socket().setTcpNoDelay(true);
+        SocketChannel server = SocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.socket().setTcpNoDelay(true);
+            server.connect(address);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        this.client = new Half(client);
+        this.server = new Half(server);
+        if(first != null) {
+            this.client.in.put(first);
+        }
+        this.client.peer = this.server;
+        this.server.peer = this.client;
+        loop.register(this.client);
+        loop.register(this.server);
+    }
+
+    /**
+     * One side of the relay: the bytes read from its channel wait in its buffer until the other side's
+     * channel takes them.
+     */
+    private final class Half implements LoopConnection {
+
+        private final SocketChannel channel;
+
+        /** The other side */
+        private Half peer;
+
+        /** Bytes read from this side that the other side hasn't taken, ready to be put in */
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER);
+
+        /** The key of the channel, null until it is registered */
+        private SelectionKey key;
+
+        /** Whether this side has closed its end, so nothing more will be read from it */
+        private boolean ended;
+
+        /** Whether the channel is still connecting, so nothing can be read from or written to it */
+        private boolean connecting;
+
+        /**
+         * @param channel the channel of this side
+         */
+        Half(SocketChannel channel) {
+            this.channel = channel;
+            this.connecting = channel.isConnectionPending();
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void registered(SelectionKey key) {
+            this.key = key;
+            if(connecting) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                return;
+            }
+            // the other side may have read something for this one already
+            drain();
+        }
+
+        /**
+         * Finishes connecting to the server, and starts relaying once it has; tells the client there is
+         * no server for it if it can't.
+         */
+        @Override
+        public void connectable() {
+            try {
+                if(!channel.finishConnect()) {
+                    return;
+                }
+            } catch (IOException e) {
+                close(channel);
+                unreachable.run();
+                return;
+            }
+            connecting = false;
+            key.interestOps(SelectionKey.OP_READ);
+            drain();
+        }
+
+        /**
+         * Reads what this side has sent and passes it straight on.
+         */
+        @Override
+        public void readable() {
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            if(n < 0) {
+                ended = true;
+            }
+            peer.drain();
+        }
+
+        /**
+         * Writes what the other side has read into this side's channel, and reads from the other side
+         * again only once it has all gone; closes both once either side has ended and everything it
+         * sent has been passed on.
+         */
+        @Override
+        public void drain() {
+            if(key == null || !key.isValid()) {
+                return;
+            }
+            ByteBuffer pending = peer.in;
+            if(pending.position() > 0 && !connecting) {
+                pending.flip();
+                try {
+                    channel.write(pending);
+                } catch (IOException e) {
+                    closeNow();
+                    return;
+                }
+                pending.compact();
+            }
+            boolean full = pending.position() > 0;
+            if(!connecting) {
+                key.interestOps(full ? key.interestOps() | SelectionKey.OP_WRITE
+                        : key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if(peer.key != null && peer.key.isValid() && !peer.connecting) {
+                peer.key.interestOps(full || peer.ended ? peer.key.interestOps() & ~SelectionKey.OP_READ
+                        : peer.key.interestOps() | SelectionKey.OP_READ);
+            }
+            if(peer.ended && !full) {
+                closeNow();
+            }
+        }
+
+        /**
+         * Closes both sides.
+         */
+        @Override
+        public void closeNow() {
+            close(client.channel);
+            close(server.channel);
+        }
+
+        /**
+         * @param c a channel to close, ignoring any failure
+         */
+        private void close(SocketChannel c) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // squash
+            }
+        }
+    }
+}
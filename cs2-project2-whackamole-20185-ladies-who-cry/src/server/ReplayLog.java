@@ -0,0 +1,155 @@
+package server;
+
+import common.WAMException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A directory of recorded matches: an index with a fixed-size entry per match, and each match's
+ * {@link MatchLog} segment files. Matches are numbered in the order they started, carrying on from
+ * whatever the directory already holds, so one log can be kept across server runs.
+ *
+ * Only starting and ending a match touch the index; recording the match itself goes straight to its
+ * segments.
+ */
+public class ReplayLog {
+
+    /** The size of an index entry: rows, columns, players, seconds, seed, start time and record count */
+    private static final int ENTRY = 40;
+
+    /** The directory */
+    private final Path dir;
+
+    /** The index, guarded by this */
+    private final FileChannel index;
+
+    /** The number of the next match, guarded by this */
+    private int nextMatch;
+
+    /**
+     * Opens a log, making the directory if it doesn't exist.
+     * @param dir the directory
+     * @throws WAMException if the directory or index can't be opened
+     */
+    public ReplayLog(Path dir) throws WAMException {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            this.index = FileChannel.open(dir.resolve("index"), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            this.nextMatch = (int) (index.size() / ENTRY);
+        } catch (IOException e) {
+            throw new WAMException("Failed to open the replay log in " + dir, e);
+        }
+    }
+
+    /**
+     * @param match the number of a match
+     * @param segment the number of one of its segments
+     * @return the file of the segment
+     */
+    Path segmentPath(int match, int segment) {
+        return dir.resolve(String.format("match-%06d-%04d.seg", match, segment));
+    }
+
+    /**
+     * Starts recording a match, with its first segment mapped and ready before the match begins.
+     * @param config the settings of the match
+     * @return the log to record the match to, or null if it couldn't be added to the index or its
+     *         first segment couldn't be mapped
+     */
+    MatchLog startMatch(GameConfig config) {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+        entry.putInt(config.getRows()).putInt(config.getColumns()).putInt(config.getPlayers())
+                .putInt(config.getSeconds()).putLong(config.getSeed()).putLong(System.currentTimeMillis())
+                .putLong(-1).flip();
+        MatchLog match;
+        synchronized(this) {
+            try {
+                index.write(entry, (long) nextMatch * ENTRY);
+            } catch (IOException e) {
+                System.err.println("Failed to record a match: " + e);
+                return null;
+            }
+            match = new MatchLog(this, nextMatch++);
+        }
+        // outside the lock, so other matches can start and end while this one's pages are touched
+        return match.prepare() ? match : null;
+    }
+
+    /**
+     * Notes in the index that a match is over.
+     * @param match the number of the match
+     * @param records the number of records it has
+     */
+    synchronized void finished(int match, long records) {
+        ByteBuffer count = ByteBuffer.allocate(Long.BYTES);
+        count.putLong(records).flip();
+        try {
+            index.write(count, (long) match * ENTRY + ENTRY - Long.BYTES);
+        } catch (IOException e) {
+            System.err.println("Failed to finish recording match " + match + ": " + e);
+        }
+    }
+
+    /**
+     * @return the number of matches in the log
+     */
+    public synchronized int getMatches() {
+        return nextMatch;
+    }
+
+    /**
+     * Reads the index entry of a match.
+     * @param match the number of the match
+     * @return the entry
+     * @throws WAMException if there is no such match or the index can't be read
+     */
+    private synchronized ByteBuffer entry(int match) throws WAMException {
+        if(match < 0 || match >= nextMatch) {
+            throw new WAMException("There is no match " + match + " in the replay log");
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+        try {
+            index.read(entry, (long) match * ENTRY);
+        } catch (IOException e) {
+            throw new WAMException(e);
+        }
+        return entry.flip();
+    }
+
+    /**
+     * Gets the settings a match was played with.
+     * @param match the number of the match
+     * @return the settings, with the moles moved by the log and whacks ignored
+     * @throws WAMException if there is no such match or the index can't be read
+     */
+    public GameConfig getConfig(int match) throws WAMException {
+        ByteBuffer entry = entry(match);
+        return new GameConfig(entry.getInt(0), entry.getInt(4), entry.getInt(8), entry.getInt(12),
+                WAMGame.MoleMode.REPLAY, ThreadMode.PLATFORM, entry.getLong(16)).withTolerance(0);
+    }
+
+    /**
+     * @param match the number of a match
+     * @return the time it started, in milliseconds since the epoch
+     * @throws WAMException if there is no such match or the index can't be read
+     */
+    public long getStartTime(int match) throws WAMException {
+        return entry(match).getLong(24);
+    }
+
+    /**
+     * @param match the number of a match
+     * @return the number of records it has, or -1 if it never ended
+     * @throws WAMException if there is no such match or the index can't be read
+     */
+    public long getRecords(int match) throws WAMException {
+        return entry(match).getLong(32);
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One event-loop thread of the {@link WAMSelectorServer}. It owns a {@link Selector} and every
+ * {@link LoopConnection} registered with it, reading what the clients send and writing what is
+ * waiting for them.
+ *
+ * Other threads never touch the selector directly; they hand the loop a task and wake it up.
+ */
+public class SelectorLoop implements Runnable {
+
+    /** The selector of this loop */
+    private final Selector selector;
+
+    /** The number of this loop among its server's */
+    private final int index;
+
+    /** Work handed to the loop by other threads */
+    private final Queue<Runnable> tasks;
+
+    /** Set once no more connections will be registered */
+    private volatile boolean stopping;
+
+    /**
+     * Creates a new loop.
+     * @param index the number of this loop among its server's
+     * @throws IOException if the selector can't be opened
+     */
+    public SelectorLoop(int index) throws IOException {
+        this.index = index;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @return the number of this loop among its server's
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Hands a new connection to this loop.
+     * @param connection the connection
+     */
+    void register(LoopConnection connection) {
+        execute(() -> {
+            try {
+                SocketChannel channel = connection.getChannel();
+                connection.registered(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                connection.closeNow();
+            }
+        });
+    }
+
+    /**
+     * Asks the loop to start writing a connection's outbound buffer.
+     * @param connection the connection with something to write
+     */
+    void wantWrite(LoopConnection connection) {
+        execute(connection::drain);
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Lets the loop exit once its last connection has closed.
+     */
+    public void stop() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Goes round the loop: run the tasks, then service every ready connection.
+     */
+    @Override
+    public void run() {
+        while(!(stopping && tasks.isEmpty() && selector.keys().isEmpty())) {
+            try {
+                if(stopping) {
+                    // closed channels only leave the key set on the next select, so don't block forever
+                    selector.select(100);
+                } else {
+                    selector.select();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                LoopConnection connection = (LoopConnection) key.attachment();
+                try {
+                    if(key.isValid() && key.isConnectable()) {
+                        connection.connectable();
+                    }
+                    if(key.isValid() && key.isReadable()) {
+                        connection.readable();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        connection.drain();
+                    }
+                } catch (RuntimeException e) {
+                    // one connection gone wrong must not take the loop and every other connection with it
+                    e.printStackTrace();
+                    connection.closeNow();
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+}
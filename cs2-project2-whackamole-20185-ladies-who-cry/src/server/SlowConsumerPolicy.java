@@ -0,0 +1,13 @@
+package server;
+
+/**
+ * What a connection does when its client reads too slowly and its {@link OutboundQueue} fills up.
+ */
+public enum SlowConsumerPolicy {
+    /** Remember which holes and scores changed and send their latest state once the client catches up */
+    COALESCE,
+    /** Throw mole events away; scores are still sent once the client catches up */
+    DROP,
+    /** Close the connection */
+    DISCONNECT
+}
@@ -0,0 +1,278 @@
+package server;
+
+import static common.WAMProtocol.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A connection on the spectator port, watching one match through its {@link SpectatorFeed}.
+ *
+ * A spectator sends one WATCH and is then only ever written to: it is not a player, gets no WELCOME,
+ * and anything else it sends is thrown away, so it can never whack. It has no queue of its own. It
+ * keeps its place in the feed and writes the feed's shared batches straight from their bytes, and the
+ * feed wakes its loop once a tick for all of the loop's spectators together.
+ */
+class Spectator implements LoopConnection {
+
+    /** The size of the read buffer; a WATCH is never near this long */
+    private static final int READ_BUFFER = 128;
+
+    private final SocketChannel channel;
+
+    private final SelectorLoop loop;
+
+    private final WAMLobby lobby;
+
+    /** The server's metrics */
+    private final WAMMetrics metrics;
+
+    /** The key of the channel with the loop's selector, only touched by the loop */
+    private SelectionKey key;
+
+    /** Bytes read from the client before its WATCH is complete, only touched by the loop */
+    private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+    /** The feed being watched, null until the WATCH; only touched by the loop */
+    private SpectatorFeed feed;
+
+    /** Whether the spectator asked for the binary framing, only touched by the loop */
+    private boolean binary;
+
+    /** A snapshot handed over by the feed, to be written before anything else from it */
+    private volatile SpectatorFeed.Batch snapshot;
+
+    /** The number of the next batch to write, or 0 while waiting for a snapshot; only touched by the loop */
+    private long next;
+
+    /** What is being written and how far into it, only touched by the loop */
+    private ByteBuffer writing;
+    private int offset;
+
+    /** Whether the connection should close once what is being written is out, only touched by the loop */
+    private boolean closing;
+
+    /** Whether the channel has been closed, only touched by the loop */
+    private boolean closed;
+
+    /**
+     * Creates a new Spectator and hands it to its loop.
+     * @param channel the accepted, non-blocking channel
+     * @param loop the loop that serves it
+     * @param lobby the lobby whose matches it can watch
+     */
+    Spectator(SocketChannel channel, SelectorLoop loop, WAMLobby lobby) {
+        this.channel = channel;
+        this.loop = loop;
+        this.lobby = lobby;
+        this.metrics = lobby.getMetrics();
+        metrics.spectatorConnected();
+        loop.register(this);
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the loop that serves the spectator
+     */
+    SelectorLoop getLoop() {
+        return loop;
+    }
+
+    @Override
+    public void registered(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Called by the feed with a snapshot to start from, on its own thread; the feed wakes the loop
+     * to write it.
+     * @param snapshot the snapshot
+     */
+    void start(SpectatorFeed.Batch snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Called on the loop when the client has sent something: looks for its WATCH, and throws away
+     * anything after it.
+     */
+    @Override
+    public void readable() {
+        int n;
+        try {
+            n = channel.read(in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if(n < 0) {
+            closeNow();
+            return;
+        }
+        if(feed != null || closing) {
+            in.clear();
+            return;
+        }
+        for(int i = 0; i < in.position(); i++) {
+            if(in.get(i) == '\n') {
+                watch(new String(in.array(), 0, i, StandardCharsets.US_ASCII).trim());
+                in.clear();
+                return;
+            }
+        }
+        if(!in.hasRemaining()) {
+            refuse("Expected " + WATCH);
+        }
+    }
+
+    /**
+     * Starts watching the match a WATCH asks for.
+     * @param line the WATCH
+     */
+    private void watch(String line) {
+        String[] words = line.split(" +");
+        if(!words[0].equals(WATCH)) {
+            refuse("Expected " + WATCH);
+            return;
+        }
+        int id = -1;
+        for(int i = 1; i < words.length; i++) {
+            if(words[i].equals(BINARY)) {
+                binary = true;
+            } else {
+                try {
+                    id = Integer.parseInt(words[i]);
+                } catch (NumberFormatException e) {
+                    refuse("Bad " + WATCH + ": " + line);
+                    return;
+                }
+            }
+        }
+        WAMGame game = lobby.getGame(id);
+        SpectatorFeed watched = game == null ? null : game.spectate();
+        if(watched == null) {
+            refuse(id < 0 ? "No match is running" : "Match " + id + " is not running");
+            return;
+        }
+        feed = watched;
+        String header = WATCHING + " " + game.getId() + " " + game.getRows() + " " + game.getColumns() + " "
+                + game.getPlayerCount();
+        writing = ascii(game.getLayout() == null ? header
+                : header + " " + LAYOUT + "\n" + LAYOUT + " " + game.getLayout().encode());
+        offset = 0;
+        if(!feed.join(this)) {
+            feed = null;
+            refuse("Match " + game.getId() + " is over");
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * Sends an ERROR and closes once it is out.
+     * @param reason what went wrong
+     */
+    private void refuse(String reason) {
+        writing = ascii(ERROR + " " + reason);
+        offset = 0;
+        closing = true;
+        drain();
+    }
+
+    /**
+     * @param line a text line without its line ending
+     * @return the line as bytes to write
+     */
+    private static ByteBuffer ascii(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Called on the loop when the feed has something new or the socket can take more bytes: writes
+     * everything the spectator hasn't been sent yet, waiting for OP_WRITE if the socket is full and
+     * closing the channel once the match is over and it has all been sent.
+     */
+    @Override
+    public void drain() {
+        if(closed || key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            while(writing != null || nextBatch()) {
+                // the view may be shared with every spectator on the loop, so set it up for this one
+                writing.limit(writing.capacity()).position(offset);
+                channel.write(writing);
+                offset = writing.position();
+                if(writing.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
+            }
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if(closing || (feed != null && feed.isOver() && next > feed.getPublished() && snapshot == null)) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Moves on to the snapshot, if one has been handed over, or the next batch of the feed.
+     * @return false if there is nothing more to write for now
+     */
+    private boolean nextBatch() {
+        if(closing || feed == null) {
+            return false;
+        }
+        SpectatorFeed.Batch batch = snapshot;
+        if(batch != null) {
+            snapshot = null;
+        } else if(next == 0 || next > feed.getPublished()) {
+            return false;
+        } else {
+            batch = feed.batch(next);
+            if(batch == null) {
+                // lapped by the feed: start again from a snapshot with the next batch
+                metrics.spectatorResynced();
+                next = 0;
+                if(!feed.resync(this)) {
+                    closing = true;
+                }
+                return false;
+            }
+        }
+        next = batch.seq + 1;
+        writing = batch.view(loop, binary);
+        offset = 0;
+        return true;
+    }
+
+    /**
+     * Closes the channel straight away. Only called on the loop.
+     */
+    @Override
+    public void closeNow() {
+        closing = true;
+        if(!closed) {
+            closed = true;
+            if(feed != null) {
+                feed.leave(this);
+            }
+            metrics.spectatorDisconnected();
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            // squash
+        }
+    }
+}
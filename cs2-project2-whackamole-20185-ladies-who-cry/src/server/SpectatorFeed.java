@@ -0,0 +1,372 @@
+package server;
+
+import common.WAMBinaryCodec;
+import common.WAMBinaryProtocol;
+import common.WAMTextCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Everything the {@link Spectator}s of one game are sent, encoded once for all of them.
+ *
+ * The game marks the holes that change in a bitset without taking a lock. Every {@link #TICKS} ticks the
+ * wheel thread publishes what changed since the last time as a {@link Batch}: the MOLE_UP and MOLE_DOWN of every hole
+ * whose mole isn't where it was last shown and a SCORE if a score moved, in both framings. A batch is
+ * never changed once published, so every spectator writes the same bytes; they just keep their own
+ * place in a ring of the last {@link #RING} batches. One that falls further behind than that, or has
+ * just started watching, is sent a batch of its own instead: a SNAPSHOT of the board and a SCORE, which
+ * is also shared by everyone who needs one on the same tick.
+ */
+class SpectatorFeed {
+
+    /** The number of batches a spectator can fall behind by before it is sent a snapshot, a power of two */
+    static final int RING = 1024;
+
+    /**
+     * The wheel ticks between batches. Spectators don't whack, so they can see the match a few ticks
+     * at a time, and each of them costs the loop a write per batch however small the batch is.
+     */
+    static final int TICKS = 5;
+
+    /** The game being watched */
+    private final WAMGame game;
+
+    /** The number of holes on the board */
+    private final int holes;
+
+    /** One bit per hole, set when the hole has changed since the last batch */
+    private final AtomicLongArray dirty;
+
+    /** One bit per hole, set if its mole was up as of the last batch; guarded by this */
+    private final long[] shown;
+
+    /** The scores as of the last batch, and the scores now; guarded by this */
+    private final int[] shownScores;
+    private final int[] scores;
+
+    /** Where batches are encoded before they are copied out; guarded by this */
+    private ByteBuffer text;
+    private ByteBuffer binary;
+
+    /** The last {@link #RING} batches, by their number */
+    private final Batch[] ring = new Batch[RING];
+
+    /** The number of the newest batch, written after it is in the ring */
+    private volatile long published;
+
+    /** Whether the game is over and no more batches will be published */
+    private volatile boolean over;
+
+    /** Spectators waiting for a snapshot; guarded by this */
+    private final ArrayList<Spectator> joining = new ArrayList<>();
+
+    /** The spectators of each loop, replaced rather than changed; guarded by this */
+    private final HashMap<SelectorLoop, Spectator[]> watching = new HashMap<>();
+
+    /** One more than the index of the highest loop a spectator has been on; guarded by this */
+    private int loops;
+
+    /** The ticks since the last batch, only touched by the wheel thread */
+    private int ticks;
+
+    /**
+     * Starts a feed of a game
+     * @param game the game
+     */
+    SpectatorFeed(WAMGame game) {
+        this.game = game;
+        this.holes = game.getHoles();
+        this.dirty = new AtomicLongArray((holes + 63) >>> 6);
+        this.shown = new long[dirty.length()];
+        this.shownScores = new int[game.getPlayerCount()];
+        this.scores = new int[game.getPlayerCount()];
+        int size = WAMTextCodec.maxSnapshotLength(holes) + WAMTextCodec.maxScoresLength(scores.length);
+        this.text = ByteBuffer.allocate(size);
+        this.binary = ByteBuffer.allocate(size);
+        // the first batch catches up with the board as it is
+        markAll();
+    }
+
+    /**
+     * Notes that every hole has changed.
+     */
+    private void markAll() {
+        for(int w = 0; w < shown.length; w++) {
+            dirty.set(w, -1L >>> Math.max(0, 64 - (holes - (w << 6))));
+        }
+    }
+
+    /**
+     * Notes that a hole has changed. Called by the game on whichever thread changed it.
+     * @param hole the hole
+     */
+    void changed(int hole) {
+        int word = hole >>> 6;
+        long bit = 1L << hole;
+        long seen = dirty.get(word);
+        while((seen & bit) == 0 && !dirty.compareAndSet(word, seen, seen | bit)) {
+            seen = dirty.get(word);
+        }
+    }
+
+    /**
+     * @return the number of the newest batch
+     */
+    long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return whether the game is over, so there will be no more batches
+     */
+    boolean isOver() {
+        return over;
+    }
+
+    /**
+     * Finds a batch in the ring.
+     * @param seq the number of the batch, no more than {@link #getPublished()}
+     * @return the batch, or null if it has been overwritten
+     */
+    Batch batch(long seq) {
+        Batch b = ring[(int) seq & (RING - 1)];
+        return b != null && b.seq == seq ? b : null;
+    }
+
+    /**
+     * Adds a spectator. It is sent a snapshot with the next batch.
+     * @param spectator the spectator
+     * @return false if the game is already over
+     */
+    synchronized boolean join(Spectator spectator) {
+        if(over) {
+            return false;
+        }
+        joining.add(spectator);
+        SelectorLoop loop = spectator.getLoop();
+        loops = Math.max(loops, loop.getIndex() + 1);
+        Spectator[] those = watching.get(loop);
+        if(those == null) {
+            watching.put(loop, new Spectator[] {spectator});
+        } else {
+            Spectator[] more = Arrays.copyOf(those, those.length + 1);
+            more[those.length] = spectator;
+            watching.put(loop, more);
+        }
+        return true;
+    }
+
+    /**
+     * Sends a spectator that has fallen too far behind a snapshot with the next batch.
+     * @param spectator the spectator
+     * @return false if the game is already over, so no snapshot will come
+     */
+    synchronized boolean resync(Spectator spectator) {
+        if(over) {
+            return false;
+        }
+        joining.add(spectator);
+        return true;
+    }
+
+    /**
+     * Removes a spectator whose connection has closed.
+     * @param spectator the spectator
+     */
+    synchronized void leave(Spectator spectator) {
+        joining.remove(spectator);
+        SelectorLoop loop = spectator.getLoop();
+        Spectator[] those = watching.get(loop);
+        if(those == null) {
+            return;
+        }
+        int at = Arrays.asList(those).indexOf(spectator);
+        if(at < 0) {
+            return;
+        }
+        if(those.length == 1) {
+            watching.remove(loop);
+            return;
+        }
+        Spectator[] fewer = new Spectator[those.length - 1];
+        System.arraycopy(those, 0, fewer, 0, at);
+        System.arraycopy(those, at + 1, fewer, at, fewer.length - at);
+        watching.put(loop, fewer);
+    }
+
+    /**
+     * Publishes a batch every {@link #TICKS} ticks. Called by the game at the end of every tick.
+     */
+    void tick() {
+        if(++ticks == TICKS) {
+            ticks = 0;
+            publish();
+        }
+    }
+
+    /**
+     * Publishes what has changed since the last batch, hands snapshots to the spectators waiting for
+     * one, and wakes each loop with spectators once to write it all.
+     */
+    synchronized void publish() {
+        if(over) {
+            return;
+        }
+        boolean woken = false;
+        text.clear();
+        binary.clear();
+        for(int w = 0; w < shown.length; w++) {
+            long changed = dirty.get(w) == 0 ? 0 : dirty.getAndSet(w, 0);
+            while(changed != 0) {
+                int hole = (w << 6) + Long.numberOfTrailingZeros(changed);
+                changed &= changed - 1;
+                long bit = 1L << hole;
+                boolean up = game.getStatus(hole);
+                if(up != ((shown[w] & bit) != 0)) {
+                    shown[w] ^= bit;
+                    reserve(WAMTextCodec.MAX_MOLE);
+                    WAMTextCodec.putMole(text, up ? WAMTextCodec.MOLE_UP : WAMTextCodec.MOLE_DOWN, hole);
+                    WAMBinaryCodec.putMole(binary, up ? WAMBinaryProtocol.MOLE_UP : WAMBinaryProtocol.MOLE_DOWN,
+                            hole);
+                }
+            }
+        }
+        game.copyScores(scores);
+        if(!Arrays.equals(scores, shownScores)) {
+            System.arraycopy(scores, 0, shownScores, 0, scores.length);
+            reserve(WAMTextCodec.maxScoresLength(scores.length));
+            WAMTextCodec.putScores(text, scores);
+            WAMBinaryCodec.putScores(binary, scores);
+        }
+        if(text.position() > 0) {
+            long seq = published + 1;
+            ring[(int) seq & (RING - 1)] = new Batch(seq, text, binary, loops);
+            published = seq;
+            woken = true;
+        }
+        if(!joining.isEmpty()) {
+            Batch snapshot = snapshot();
+            for(Spectator s: joining) {
+                s.start(snapshot);
+            }
+            joining.clear();
+            woken = true;
+        }
+        if(woken) {
+            wake();
+        }
+    }
+
+    /**
+     * Makes sure there is room for a few more bytes in both scratch buffers, growing them if not.
+     * @param bytes the number of bytes
+     */
+    private void reserve(int bytes) {
+        if(text.remaining() < bytes) {
+            text = ByteBuffer.allocate(2 * (text.capacity() + bytes)).put(text.flip());
+        }
+        if(binary.remaining() < bytes) {
+            binary = ByteBuffer.allocate(2 * (binary.capacity() + bytes)).put(binary.flip());
+        }
+    }
+
+    /**
+     * Encodes the board and scores as of the newest batch.
+     * @return the snapshot, numbered as the newest batch so a spectator carries on from the one after
+     */
+    private Batch snapshot() {
+        text.clear();
+        binary.clear();
+        WAMTextCodec.putSnapshot(text, shown, holes);
+        WAMTextCodec.putScores(text, shownScores);
+        WAMBinaryCodec.putSnapshot(binary, shown, holes);
+        WAMBinaryCodec.putScores(binary, shownScores);
+        return new Batch(published, text, binary, loops);
+    }
+
+    /**
+     * Asks every loop with spectators to write to them, once per loop however many there are.
+     */
+    private void wake() {
+        for(Map.Entry<SelectorLoop, Spectator[]> entry: watching.entrySet()) {
+            Spectator[] those = entry.getValue();
+            entry.getKey().execute(() -> {
+                for(Spectator s: those) {
+                    s.drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Publishes the final state of the game and stops. Each spectator is disconnected once it has
+     * been sent everything. Called by the game when it is over.
+     */
+    void finish() {
+        synchronized(this) {
+            markAll();
+            publish();
+            over = true;
+            wake();
+        }
+    }
+
+    /**
+     * The bytes of one tick's changes, or of a snapshot, in both framings. Never changed once made.
+     */
+    static final class Batch {
+
+        /** The number of the batch */
+        final long seq;
+
+        private final byte[] text;
+        private final byte[] binary;
+
+        /**
+         * Views of the bytes for each loop that had spectators when the batch was made, so a loop
+         * writing the batch to any number of spectators never makes one. Only the loop touches its view.
+         */
+        private final ByteBuffer[] textViews;
+        private final ByteBuffer[] binaryViews;
+
+        /**
+         * Copies out a batch.
+         * @param seq the number of the batch
+         * @param text its text framing, from the start of the buffer to its position
+         * @param binary its binary framing, likewise
+         * @param loops one more than the index of the highest loop there may be spectators on
+         */
+        Batch(long seq, ByteBuffer text, ByteBuffer binary, int loops) {
+            this.seq = seq;
+            this.text = Arrays.copyOf(text.array(), text.position());
+            this.binary = Arrays.copyOf(binary.array(), binary.position());
+            this.textViews = new ByteBuffer[loops];
+            this.binaryViews = new ByteBuffer[loops];
+            for(int i = 0; i < loops; i++) {
+                textViews[i] = ByteBuffer.wrap(this.text).asReadOnlyBuffer();
+                binaryViews[i] = ByteBuffer.wrap(this.binary).asReadOnlyBuffer();
+            }
+        }
+
+        /**
+         * @param loop the loop that will write the batch
+         * @param binary whether it is wanted in the binary framing
+         * @return a view of the batch's bytes that only that loop uses, whose position and limit it is
+         *         free to set
+         */
+        ByteBuffer view(SelectorLoop loop, boolean binary) {
+            ByteBuffer[] views = binary ? binaryViews : textViews;
+            int i = loop.getIndex();
+            if(i < views.length) {
+                return views[i];
+            }
+            // a loop whose first spectator came after the batch was made
+            return ByteBuffer.wrap(binary ? this.binary : text).asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * The kind of thread the server runs blocking work on: the read and write loops of {@link WAMPlayer}s
+ * and the moles of games in {@link WAMGame.MoleMode#THREADS} mode.
+ *
+ * Virtual threads only exist from Java 21 (19 and 20 with --enable-preview), while the server is built
+ * for 17, so they are made through reflection and {@link #isSupported()} says whether this JVM has them,
+ * having tried to make one: on 19 and 20 the method is there even when the preview is off.
+ * Threads of either kind are daemons, as virtual threads always are.
+ */
+public enum ThreadMode {
+
+    /** An operating system thread each */
+    PLATFORM,
+
+    /** A virtual thread each, so that tens of thousands of them cost little more than their stacks */
+    VIRTUAL;
+
+    /** Thread.ofVirtual(), or null on a JVM without virtual threads */
+    private static final Method OF_VIRTUAL;
+
+    /** Thread.Builder.name(String) */
+    private static final Method NAME;
+
+    /** Thread.Builder.unstarted(Runnable) */
+    private static final Method UNSTARTED;
+
+    /** Whether a virtual thread could be made when the class was loaded */
+    private static final boolean VIRTUAL_WORKS;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+        boolean works;
+        try {
+            newVirtual("probe", () -> { });
+            works = true;
+        } catch (UnsupportedOperationException e) {
+            works = false;
+        }
+        VIRTUAL_WORKS = works;
+    }
+
+    /**
+     * @return whether this JVM can make threads of this kind
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || VIRTUAL_WORKS;
+    }
+
+    /**
+     * Starts a thread of this kind.
+     * @param name the name of the thread
+     * @param task what the thread runs
+     * @return the thread, already started
+     * @throws UnsupportedOperationException if this JVM can't make threads of this kind
+     */
+    public Thread start(String name, Runnable task) {
+        Thread thread;
+        if(this == PLATFORM) {
+            thread = new Thread(task, name);
+            thread.setDaemon(true);
+        } else {
+            thread = newVirtual(name, task);
+        }
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Makes an unstarted virtual thread.
+     * @param name the name of the thread
+     * @param task what the thread runs
+     * @return the thread
+     */
+    private static Thread newVirtual(String name, Runnable task) {
+        if(OF_VIRTUAL == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) UNSTARTED.invoke(builder, task);
+        } catch (InvocationTargetException e) {
+            // Java 19 and 20 without --enable-preview
+            throw new UnsupportedOperationException("Virtual threads are not enabled", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Virtual threads can't be made", e);
+        }
+    }
+}
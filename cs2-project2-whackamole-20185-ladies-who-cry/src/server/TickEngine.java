@@ -0,0 +1,104 @@
+package server;
+
+import java.util.SplittableRandom;
+
+/**
+ * Decides when the moles of one game in {@link WAMGame.MoleMode#TICKS} mode change, in fixed ticks of
+ * {@link MoleScheduler#TICK_MS} from a single seeded {@link SplittableRandom}.
+ *
+ * Each tick is one pass over a primitive array of the tick every mole next changes at, in hole order,
+ * and the moles due are handed back as one batch. Since the random numbers are drawn in that same
+ * order and nothing else is drawn from them, the same seed gives the same moles at the same ticks
+ * however fast the ticks are run. Only ever touched by one thread at a time.
+ */
+class TickEngine {
+
+    /** Where the moles' times come from */
+    private final SplittableRandom random;
+
+    /** The tick each mole next changes at */
+    private final int[] nextChange;
+
+    /** Whether each mole's next change takes it down */
+    private final boolean[] goingDown;
+
+    /** The moles that changed on the last tick: the mole number if it came up, its complement if not */
+    private final int[] batch;
+
+    /** The number of moles in the batch */
+    private int batchSize;
+
+    /** The last tick run */
+    private int tick;
+
+    /** The earliest tick any mole changes at, so quiet ticks skip the pass */
+    private int nextDue;
+
+    /**
+     * Creates a new engine with every mole hidden.
+     * @param holes the number of holes
+     * @param seed the seed
+     */
+    TickEngine(int holes, long seed) {
+        this.random = new SplittableRandom(seed);
+        this.nextChange = new int[holes];
+        this.goingDown = new boolean[holes];
+        this.batch = new int[holes];
+        this.nextDue = Integer.MAX_VALUE;
+        for(int i = 0; i < holes; i++) {
+            nextChange[i] = ticks(WAMGame.hiddenTime(random));
+            nextDue = Math.min(nextDue, nextChange[i]);
+        }
+    }
+
+    /**
+     * @param ms a time in milliseconds
+     * @return the number of ticks it takes, at least one
+     */
+    private static int ticks(int ms) {
+        return Math.max(1, (ms + MoleScheduler.TICK_MS - 1) / MoleScheduler.TICK_MS);
+    }
+
+    /**
+     * Runs the next tick, putting the moles that change on it in the batch.
+     * @return the number of moles in the batch
+     */
+    int advance() {
+        tick++;
+        batchSize = 0;
+        if(tick < nextDue) {
+            return 0;
+        }
+        int due = Integer.MAX_VALUE;
+        for(int i = 0; i < nextChange.length; i++) {
+            int at = nextChange[i];
+            if(at <= tick) {
+                boolean up = !goingDown[i];
+                batch[batchSize++] = up ? i : ~i;
+                goingDown[i] = up;
+                at = tick + ticks(up ? WAMGame.upTime(random) : WAMGame.hiddenTime(random));
+                nextChange[i] = at;
+            }
+            if(at < due) {
+                due = at;
+            }
+        }
+        nextDue = due;
+        return batchSize;
+    }
+
+    /**
+     * @param i the index in the batch of the last tick
+     * @return the mole number if the mole came up, its complement if it went down
+     */
+    int event(int i) {
+        return batch[i];
+    }
+
+    /**
+     * @return the last tick run, counting from 1
+     */
+    int getTick() {
+        return tick;
+    }
+}
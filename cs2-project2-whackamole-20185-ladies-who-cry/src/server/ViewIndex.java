@@ -0,0 +1,231 @@
+package server;
+
+import common.WAMLayout;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Which players can see each hole of a board, for players that have sent a VIEW to be told only about
+ * the part of the board they are looking at.
+ *
+ * The board is cut into square tiles of about {@link #TILE_HOLES} holes each, and every tile has a
+ * bitset of the players whose view touches it; a hole belongs to the tile its centre is in. Players that
+ * haven't sent a VIEW are in one more bitset, of the players that see everything. Finding who to tell
+ * about a mole is two reads per 64 players and never locks, however the views change; changing a view
+ * locks the index and touches only the tiles the old and new views cover.
+ */
+final class ViewIndex {
+
+    /** About how many holes a tile holds */
+    private static final int TILE_HOLES = 64;
+
+    /** Where the holes are */
+    private final WAMLayout layout;
+
+    /** The width and height of a tile, in layout units */
+    private final int tile;
+
+    /** The number of tiles across and down */
+    private final int columns;
+    private final int rows;
+
+    /** The tile of every hole, by mole number */
+    private final int[] holeTile;
+
+    /** Where each tile's holes start in {@link #holes}, and one past the last tile's */
+    private final int[] start;
+
+    /** The holes of every tile, tile after tile */
+    private final int[] holes;
+
+    /** The number of longs in a bitset of players */
+    private final int words;
+
+    /** The players that see each tile, {@link #words} longs a tile */
+    private final AtomicLongArray subscribers;
+
+    /** The players that haven't sent a VIEW, so see every tile */
+    private final AtomicLongArray everywhere;
+
+    /** The tiles each player sees, as left, top, right and bottom, or null for all of them; guarded by this */
+    private final int[][] views;
+
+    /**
+     * Creates an index in which every player sees the whole board.
+     * @param layout where the holes are
+     * @param players the number of players
+     */
+    ViewIndex(WAMLayout layout, int players) {
+        this.layout = layout;
+        long area = (long) layout.getWidth() * layout.getHeight();
+        this.tile = (int) Math.max(layout.getSize(),
+                Math.ceil(Math.sqrt((double) area * TILE_HOLES / layout.getHoles())));
+        this.columns = (layout.getWidth() + tile - 1) / tile;
+        this.rows = (layout.getHeight() + tile - 1) / tile;
+        this.holeTile = new int[layout.getHoles()];
+        this.start = new int[columns * rows + 1];
+        int half = layout.getSize() / 2;
+        for(int mole = 0; mole < holeTile.length; mole++) {
+            int column = Math.min((layout.getX(mole) + half) / tile, columns - 1);
+            int row = Math.min((layout.getY(mole) + half) / tile, rows - 1);
+            holeTile[mole] = row * columns + column;
+            start[holeTile[mole] + 1]++;
+        }
+        for(int t = 0; t < columns * rows; t++) {
+            start[t + 1] += start[t];
+        }
+        this.holes = new int[holeTile.length];
+        int[] filled = new int[columns * rows];
+        for(int mole = 0; mole < holeTile.length; mole++) {
+            holes[start[holeTile[mole]] + filled[holeTile[mole]]++] = mole;
+        }
+        this.words = (players + 63) >>> 6;
+        this.subscribers = new AtomicLongArray(columns * rows * words);
+        this.everywhere = new AtomicLongArray(words);
+        for(int p = 0; p < players; p++) {
+            or(everywhere, p >>> 6, 1L << p);
+        }
+        this.views = new int[players][];
+    }
+
+    /**
+     * @return the number of longs in a bitset of players
+     */
+    int getWords() {
+        return words;
+    }
+
+    /**
+     * Finds the players that can see a hole. Never locks.
+     * @param mole the mole number
+     * @param word which 64 players to look at
+     * @return a bit for each of those players that can see the hole, players 64 * word and up
+     */
+    long subscribers(int mole, int word) {
+        return everywhere.get(word) | subscribers.get(holeTile[mole] * words + word);
+    }
+
+    /**
+     * Changes what a player sees to the tiles a rectangle of the board touches, counting the holes that
+     * stick into it as well. The player is added to its new tiles before it is taken out of its old ones,
+     * so a hole seen before and after is never missed in between.
+     * @param player the player number
+     * @param x the left of the rectangle, in layout units
+     * @param y the top of the rectangle, in layout units
+     * @param width the width of the rectangle; nothing is seen if it is not positive
+     * @param height the height of the rectangle; nothing is seen if it is not positive
+     * @param shown told every hole the player can see now but couldn't before
+     */
+    synchronized void view(int player, int x, int y, int width, int height, IntConsumer shown) {
+        int[] old = views[player];
+        int[] next = tiles(x, y, width, height);
+        int word = player >>> 6;
+        long bit = 1L << player;
+        for(int row = next[1]; row <= next[3]; row++) {
+            for(int column = next[0]; column <= next[2]; column++) {
+                if(old == null || !contains(old, column, row)) {
+                    or(subscribers, (row * columns + column) * words + word, bit);
+                }
+            }
+        }
+        if(old == null) {
+            and(everywhere, word, ~bit);
+        } else {
+            for(int row = old[1]; row <= old[3]; row++) {
+                for(int column = old[0]; column <= old[2]; column++) {
+                    if(!contains(next, column, row)) {
+                        and(subscribers, (row * columns + column) * words + word, ~bit);
+                    }
+                }
+            }
+        }
+        views[player] = next;
+        if(old == null) {
+            // it saw everything until now
+            return;
+        }
+        for(int row = next[1]; row <= next[3]; row++) {
+            for(int column = next[0]; column <= next[2]; column++) {
+                if(!contains(old, column, row)) {
+                    int t = row * columns + column;
+                    for(int i = start[t]; i < start[t + 1]; i++) {
+                        shown.accept(holes[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets a player see the whole board again, for a player that has come back on a new connection.
+     * @param player the player number
+     */
+    synchronized void reset(int player) {
+        int[] old = views[player];
+        if(old == null) {
+            return;
+        }
+        int word = player >>> 6;
+        long bit = 1L << player;
+        or(everywhere, word, bit);
+        for(int row = old[1]; row <= old[3]; row++) {
+            for(int column = old[0]; column <= old[2]; column++) {
+                and(subscribers, (row * columns + column) * words + word, ~bit);
+            }
+        }
+        views[player] = null;
+    }
+
+    /**
+     * Finds the tiles a rectangle touches, widened by half a hole on every side so that a hole partly
+     * inside it is seen whichever tile its centre is in.
+     * @param x the left of the rectangle
+     * @param y the top of the rectangle
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     * @return the left, top, right and bottom tiles, with right before left if there are none
+     */
+    private int[] tiles(int x, int y, int width, int height) {
+        if(width <= 0 || height <= 0) {
+            return new int[] {0, 0, -1, -1};
+        }
+        long half = layout.getSize() / 2 + 1;
+        long left = Math.max(0, Math.floorDiv(x - half, tile));
+        long top = Math.max(0, Math.floorDiv(y - half, tile));
+        long right = Math.min(columns - 1, Math.floorDiv((long) x + width + half, tile));
+        long bottom = Math.min(rows - 1, Math.floorDiv((long) y + height + half, tile));
+        if(left > right || top > bottom) {
+            return new int[] {0, 0, -1, -1};
+        }
+        return new int[] {(int) left, (int) top, (int) right, (int) bottom};
+    }
+
+    /**
+     * @param view the left, top, right and bottom tiles of a view
+     * @param column a column of tiles
+     * @param row a row of tiles
+     * @return whether the tile is in the view
+     */
+    private static boolean contains(int[] view, int column, int row) {
+        return column >= view[0] && column <= view[2] && row >= view[1] && row <= view[3];
+    }
+
+    /**
+     * @param bits a bitset
+     * @param index a word of it
+     * @param mask the bits to set
+     */
+    private static void or(AtomicLongArray bits, int index, long mask) {
+        bits.getAndAccumulate(index, mask, (a, b) -> a | b);
+    }
+
+    /**
+     * @param bits a bitset
+     * @param index a word of it
+     * @param mask the bits to keep
+     */
+    private static void and(AtomicLongArray bits, int index, long mask) {
+        bits.getAndAccumulate(index, mask, (a, b) -> a & b);
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import common.WAMLayout;
+
+/**
+ * The server's side of one client connection, as seen by a {@link WAMGame}.
+ *
+ * Every message goes into the connection's {@link OutboundQueue}, so the game never waits on a client.
+ * Implementations decide how the queue gets onto the wire: {@link WAMPlayer} has a writer thread of its
+ * own for a blocking socket, {@link NioPlayer} is written by a {@link SelectorLoop}. Either way they speak
+ * exactly the {@link common.WAMProtocol}.
+ *
+ * Game messages wait for {@link #flush()}, which the game calls once per tick, so everything that
+ * happened in a tick reaches the client in one write. WELCOME and closing are sent straight away.
+ */
+public interface WAMConnection {
+
+    /**
+     * Sends a mole down
+     * @param moleNumber the mole that comes down
+     */
+    void MoleDown(int moleNumber);
+
+    /**
+     * Sends a mole up
+     * @param moleNumber the mole that comes up
+     */
+    void MoleUp(int moleNumber);
+
+    /**
+     * Sends the scores of all the players. The scores that go out are the game's latest when the
+     * message is written, which may be newer than these.
+     * @param scores the scores of all the players
+     */
+    void getScore(int[] scores);
+
+    /**
+     * Called if the player wins
+     */
+    void gameWon();
+
+    /**
+     * Called if the player loses
+     */
+    void gameLost();
+
+    /**
+     * Called if the player ties.
+     */
+    void gameTied();
+
+    /**
+     * Sends the connect message to the client
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @param players the number of players
+     * @param playerNumber the player number
+     * @param layout where the holes are, sent in a LAYOUT straight after the WELCOME, or null for a grid
+     */
+    void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout);
+
+    /**
+     * Sends the token the client can pick the match back up with if its connection drops, after the
+     * WELCOME.
+     * @param token the token
+     */
+    default void session(String token) {
+    }
+
+    /**
+     * Sends which moles are up and every score, for a client that has just picked its match back up
+     * on this connection.
+     */
+    default void snapshot() {
+    }
+
+    /**
+     * Sends a mole's state as it is when the connection is next written, for a mole that has just come
+     * into the player's VIEW and may have changed unseen. Connections that can't do this see the whole
+     * board anyway.
+     * @param moleNumber the mole
+     */
+    default void refresh(int moleNumber) {
+    }
+
+    /**
+     * Sends everything buffered so far.
+     */
+    void flush();
+
+    /**
+     * Sets the game whacks from this connection go to
+     * @param game the game
+     */
+    void setGame(WAMGame game);
+
+    /**
+     * Starts passing whacks from the client to the game. The lobby starts a connection before it is in
+     * a game, to hear a RESUME and notice it closing; starting it again does nothing.
+     */
+    void start();
+
+    /**
+     * Closes the connection once everything sent to it has been written.
+     */
+    void close();
+
+    /**
+     * @return the name the client goes by on the {@link Leaderboard}, or null if it hasn't given one
+     */
+    default String getName() {
+        return null;
+    }
+}
@@ -1,137 +1,891 @@
 package server;
-import java.util.LinkedList;
+import common.WAMBinaryProtocol;
+import common.WAMLayout;
+
+import java.util.Arrays;
 import java.util.Random;
+import java.util.random.RandomGenerator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 /**
  * Whack-A-Mole Game that serves as an extension to the server.
  *
+ * The game holds no lock while it is being played. Each hole has a state word that counts its
+ * transitions, so it is up when the count is odd; every change is a compare-and-set from the count
+ * it was seen at, which makes exactly one of any number of racing whacks the one that knocks a mole
+ * down. Scores are {@link LongAdder}s, so players whacking different holes never wait on each other.
  */
-public class WAMGame implements Runnable {
+public class WAMGame implements Runnable, MoleScheduler.Handler {
+
+    /** How the moles of a game are driven */
+    public enum MoleMode {
+        /** One thread per mole, of the game's {@link ThreadMode}, sleeping between transitions */
+        THREADS,
+        /** Every mole on the shared {@link MoleScheduler} wheel */
+        WHEEL,
+        /** Every mole moved by the game's own seeded {@link TickEngine} on the wheel's ticks */
+        TICKS,
+        /** Every mole moved by a recorded match being played back; whacks are ignored */
+        REPLAY
+    }
 
-    private WAMPlayer[] players;
+    /** The shortest time a mole stays hidden, in milliseconds */
+    static final int MIN_HIDDEN = 2000;
+    /** The longest time a mole stays hidden, in milliseconds */
+    static final int MAX_HIDDEN = 10000;
+    /** The shortest time a mole stays up, in milliseconds */
+    static final int MIN_UP = 3000;
+    /** The longest time a mole stays up, in milliseconds */
+    static final int MAX_UP = 5000;
+    /** The quickest anyone could see a mole come up and whack it, in milliseconds */
+    static final int MIN_REACTION = 100;
+
+    private int id;
+    /** The players, in order of their player numbers; replaced whole when one resumes */
+    private volatile WAMConnection[] players;
     private int columns;
     private int rows;
-    private LinkedList<moleThread> moleList;
-    private int[] playerScore;
-    private WAMServer server;
+    /** The thread of every mole in {@link MoleMode#THREADS} mode */
+    private Thread[] moleThreads;
+    /** The state word of every hole: the number of times it has changed, odd when the mole is up */
+    private AtomicIntegerArray holes;
+    /** Whether each mole's next wheel deadline takes it down, only touched by the wheel thread */
+    private boolean[] goingDown;
+    private LongAdder[] playerScore;
+    private WAMLobby lobby;
     private int gameTime;
+    private MoleMode mode;
+    private ThreadMode threadMode;
+    private long seed;
+    /**
+     * The game's moles in {@link MoleMode#TICKS} mode, only touched by the wheel thread once the game
+     * is registered with it; set before that, so registering publishes it along with engineStart
+     */
+    private TickEngine engine;
+    /** The nanoTime the engine started at */
+    private long engineStart;
+    /** Where everything that happens is recorded, or null */
+    private MatchLog log;
+    /** The last few transitions of every hole, or null if whacks are only judged when they arrive */
+    private HoleHistory history;
+    /** How late a whack may be judged, in milliseconds */
+    private int tolerance;
+    /** Where the holes are, or null for a grid */
+    private WAMLayout layout;
+    /** Which players see which holes, or null until the first VIEW, while every player sees them all */
+    private volatile ViewIndex views;
+    /** What spectators are sent, or null until the first one comes */
+    private volatile SpectatorFeed feed;
+    private MoleScheduler scheduler;
+    private WAMMetrics metrics;
+    private volatile boolean running;
+    private boolean finished;
+    /** Whether anything has been sent to the players since the last flush */
+    private final AtomicBoolean pending = new AtomicBoolean();
+    /** Whether a score has changed since the last SCORE was sent */
+    private final AtomicBoolean scoresChanged = new AtomicBoolean();
+    /** The scores sent out on the last tick, only touched by the wheel thread */
+    private int[] tickScores;
+
+    /** The number of mole transitions since the last reset */
+    private final LongAdder lagCount = new LongAdder();
+    /** The total lateness of the mole transitions since the last reset */
+    private final LongAdder lagTotal = new LongAdder();
+    /** The worst lateness of a mole transition since the last reset */
+    private final AtomicLong lagMax = new AtomicLong();
 
     /**
      * Creates a new WAMGame
-     * @param players the number of players
-     * @param columns the number of columns
-     * @param rows the number of rows
-     * @param server the server the game's running on
-     * @param gameTime the duration of the game
+     * @param id the match id
+     * @param players the players, in order of their player numbers
+     * @param config the settings of this match
+     * @param lobby the lobby the game's running in
+     * @param scheduler the wheel that ticks the game, and drives its moles in {@link MoleMode#WHEEL} mode
+     * @param metrics the server's metrics
      */
-    public WAMGame(WAMPlayer[] players, int columns, int rows, WAMServer server, int gameTime) {
+    public WAMGame(int id, WAMConnection[] players, GameConfig config, WAMLobby lobby, MoleScheduler scheduler,
+                   WAMMetrics metrics) {
+        this.id = id;
         this.players = players;
-        this.columns = columns;
-        this.rows = rows;
-        this.moleList = new LinkedList<>();
-        this.playerScore = new int[players.length];
-        this.server = server;
-        this.gameTime = gameTime * 1000;
+        this.columns = config.getColumns();
+        this.rows = config.getRows();
+        this.holes = new AtomicIntegerArray(columns * rows);
+        this.goingDown = new boolean[columns * rows];
+        this.playerScore = new LongAdder[players.length];
+        for(int i = 0; i < players.length; i++) {
+            playerScore[i] = new LongAdder();
+        }
+        this.tickScores = new int[players.length];
+        this.lobby = lobby;
+        this.gameTime = config.getSeconds() * 1000;
+        this.mode = config.getMoleMode();
+        this.threadMode = config.getThreadMode();
+        this.seed = config.getSeed();
+        this.tolerance = config.getTolerance();
+        this.layout = config.getLayout();
+        if(tolerance > 0 && mode != MoleMode.REPLAY) {
+            this.history = new HoleHistory(columns * rows);
+        }
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+
+    }
+
+    /**
+     * @return the match id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the number of holes on the board
+     */
+    int getHoles() {
+        return holes.length();
+    }
+
+    /**
+     * @return the number of players in the game
+     */
+    int getPlayerCount() {
+        return players.length;
+    }
+
+    /**
+     * @return the number of rows on the board
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of columns on the board
+     */
+    int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return where the holes are, or null for a grid of rows and columns
+     */
+    WAMLayout getLayout() {
+        return layout;
+    }
 
+    /**
+     * Finds the feed spectators of the game watch, starting it for the first one.
+     * @return the feed, or null if the game is already over
+     */
+    synchronized SpectatorFeed spectate() {
+        if(finished) {
+            return null;
+        }
+        if(feed == null) {
+            feed = new SpectatorFeed(this);
+        }
+        return feed;
+    }
+
+    /**
+     * Hands a player's place in the game to a new connection, for a player that lost its old one.
+     *
+     * The new connection is put in before the board is read for its SNAPSHOT, so any change from then
+     * on reaches it as well; one that comes in between is also in the snapshot, and applying it again
+     * changes nothing. The snapshot is a bit per hole and nothing is replayed, so picking a match back
+     * up costs the same however long the player was gone.
+     * @param playerNumber the player number
+     * @param player the new connection
+     * @return false if the game is already over
+     */
+    synchronized boolean resume(int playerNumber, WAMConnection player) {
+        if(finished) {
+            return false;
+        }
+        WAMConnection[] current = players;
+        WAMConnection old = current[playerNumber];
+        player.connect(rows, columns, current.length, playerNumber, layout);
+        player.setGame(this);
+        WAMConnection[] next = current.clone();
+        next[playerNumber] = player;
+        players = next;
+        // the new connection is sent the whole board, so it sees all of it until it sends a VIEW again
+        ViewIndex v = views;
+        if(v != null) {
+            v.reset(playerNumber);
+        }
+        old.close();
+        player.snapshot();
+        player.start();
+        player.flush();
+        metrics.resumed();
+        return true;
     }
 
+    /**
+     * Narrows the moles a player is told about to those in a rectangle of the board, and sends it the
+     * latest state of every hole that has just come into view, since it may have missed their changes.
+     * @param playerNumber the player number
+     * @param x the left of the rectangle, in the units of the layout, or columns for a grid
+     * @param y the top of the rectangle, in the units of the layout, or rows for a grid
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     */
+    void view(int playerNumber, int x, int y, int width, int height) {
+        ViewIndex v = views;
+        if(v == null) {
+            synchronized(this) {
+                if(views == null) {
+                    views = new ViewIndex(layout != null ? layout : WAMLayout.grid(rows, columns), players.length);
+                }
+                v = views;
+            }
+        }
+        WAMConnection player = players[playerNumber];
+        v.view(playerNumber, x, y, width, height, player::refresh);
+        player.flush();
+        metrics.viewChanged();
+    }
 
     /**
-     * Sends a whack to the server
+     * Copies out which moles are up.
+     * @param up where to put one bit per hole, set if its mole is up
+     */
+    void copyBoard(long[] up) {
+        Arrays.fill(up, 0);
+        for(int hole = 0; hole < holes.length(); hole++) {
+            if(isUp(holes.get(hole))) {
+                up[hole >>> 6] |= 1L << hole;
+            }
+        }
+    }
+
+    /**
+     * Records everything that happens in the game from now on.
+     * @param log where to record it
+     */
+    void record(MatchLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Sends a whack to the server. The new scores go out with the next tick rather than straight away,
+     * so however many whacks land in a tick each player gets a single SCORE.
      * @param mole the mole whacked
      * @param playerNum the player that whacked the mole
      */
-    public synchronized void whack(int mole, int playerNum) {
-        if(moleList.get(mole).getStatus()) {
-            playerScore[playerNum] += 2;
-            for (WAMPlayer player : players) {
-                player.MoleDown(mole);
-                for(WAMPlayer p: players)  {
-                    p.getScore(playerScore);
-                }
+    public void whack(int mole, int playerNum) {
+        whackAt(mole, playerNum, -1);
+    }
 
+    /**
+     * Sends a whack stamped with when the player clicked. A whack that misses because the mole dropped
+     * down by itself on the way still gets it if the mole was up when the player clicked, as long as
+     * that was no longer ago than the game's tolerance and nobody else has got the mole already.
+     * @param mole the mole whacked
+     * @param playerNum the player that whacked the mole
+     * @param clickedAt the {@link GameClock} time the player clicked at, or -1 if not known
+     */
+    public void whackAt(int mole, int playerNum, long clickedAt) {
+        if(mode == MoleMode.REPLAY) {
+            return;
+        }
+        if(mole < 0 || mole >= holes.length()) {
+            metrics.offBoardWhack();
+            return;
+        }
+        long start = System.nanoTime();
+        int state = holes.get(mole);
+        boolean hit = isUp(state) && holes.compareAndSet(mole, state, state + 1);
+        boolean late = false;
+        if(hit) {
+            if(history != null) {
+                long now = GameClock.toMillis(start);
+                history.changed(mole, state + 1, now, true);
+                // judged by when the whack arrived, which a client can't stamp its way past
+                checkReaction(mole, state, now);
             }
+        } else if(clickedAt >= 0 && history != null) {
+            int up = lateHit(mole, clickedAt, start);
+            if(up >= 0) {
+                late = hit = true;
+                // granted on the client's word for when it clicked, so judged by that too; it is
+                // before the whack arrived, so a stamp can only make a client look quicker
+                checkReaction(mole, up, clickedAt);
+            }
+        }
+        if(log != null) {
+            log.record(late ? MatchLog.LATE_HIT : hit ? MatchLog.HIT : MatchLog.MISS, mole, playerNum, start);
+        }
+        if(late) {
+            playerScore[playerNum].add(2);
+            metrics.lateHit();
+        } else if(hit) {
+            playerScore[playerNum].add(2);
+            broadcast(false, mole);
         } else {
-            playerScore[playerNum] -= 1;
-            for(WAMPlayer p: players)  {
-                p.getScore(playerScore);
+            playerScore[playerNum].add(-1);
+        }
+        mark(scoresChanged);
+        mark(pending);
+        metrics.whack(hit, System.nanoTime() - start);
+    }
+
+    /**
+     * Counts a hit that was clicked sooner after its mole came up than anyone could react, or before it
+     * came up at all. The hit still stands: one could be luck, and the counter is for spotting bots.
+     * @param mole the mole whacked
+     * @param up the state the mole was up in
+     * @param at the {@link GameClock} time the whack arrived at, or for a late hit the player clicked at
+     */
+    private void checkReaction(int mole, int up, long at) {
+        long cameUp = history.since(mole, up);
+        if(cameUp >= 0 && at - cameUp < MIN_REACTION) {
+            metrics.tooFastWhack();
+        }
+    }
+
+    /**
+     * Judges a whack that found its mole down by when it was clicked.
+     * @param mole the mole whacked
+     * @param clickedAt the {@link GameClock} time the player clicked at
+     * @param nowNanos the nanoTime the whack arrived at
+     * @return the state the mole was up in if the click was within the tolerance, the mole was up then
+     *         and has gone down by itself since, and nobody else has got it; otherwise -1
+     */
+    private int lateHit(int mole, long clickedAt, long nowNanos) {
+        long now = GameClock.toMillis(nowNanos);
+        if(clickedAt < now - tolerance || clickedAt >= now) {
+            // too long ago to believe, or not yet
+            return -1;
+        }
+        int current = holes.get(mole);
+        int state = history.stateAt(mole, current, clickedAt);
+        return state >= 0 && isUp(state) && state < current && history.claim(mole, state + 1) ? state : -1;
+    }
+
+    /**
+     * Sets a flag, only writing it if it is not already set so that whackers on different cores
+     * don't keep taking the flag's cache line from each other.
+     * @param flag the flag
+     */
+    private static void mark(AtomicBoolean flag) {
+        if(!flag.get()) {
+            flag.set(true);
+        }
+    }
+
+    /**
+     * @param state the state word of a hole
+     * @return whether the mole is up in that state
+     */
+    private static boolean isUp(int state) {
+        return (state & 1) != 0;
+    }
+
+    /**
+     * Tells every player that can see a mole about it. This only queues the message, so it never waits
+     * on a client.
+     * @param up whether the mole came up
+     * @param mole the mole number
+     */
+    private void broadcast(boolean up, int mole) {
+        metrics.broadcast(tell(up, mole));
+        SpectatorFeed watched = feed;
+        if(watched != null) {
+            watched.changed(mole);
+        }
+    }
+
+    /**
+     * Queues a mole's change for every player, or once any player has sent a VIEW, for the players whose
+     * view has the mole in it.
+     * @param up whether the mole came up
+     * @param mole the mole number
+     * @return the number of players told
+     */
+    private int tell(boolean up, int mole) {
+        WAMConnection[] current = players;
+        ViewIndex v = views;
+        if(v == null) {
+            for(WAMConnection player : current) {
+                send(player, up, mole);
             }
+            return current.length;
         }
+        int told = 0;
+        for(int w = 0; w < v.getWords(); w++) {
+            long bits = v.subscribers(mole, w);
+            while(bits != 0) {
+                send(current[(w << 6) + Long.numberOfTrailingZeros(bits)], up, mole);
+                bits &= bits - 1;
+                told++;
+            }
+        }
+        return told;
     }
 
     /**
-     * Runs the thread
+     * @param player a player
+     * @param up whether the mole came up
+     * @param mole the mole number
+     */
+    private static void send(WAMConnection player, boolean up, int mole) {
+        if(up) {
+            player.MoleUp(mole);
+        } else {
+            player.MoleDown(mole);
+        }
+    }
+
+    /**
+     * Called by the wheel at the end of every tick: runs the tick engine in {@link MoleMode#TICKS} mode,
+     * then sends the players one SCORE if any score changed and flushes everything the tick produced to
+     * each of them in one write, and lets the spectators' feed know, if there are any spectators.
      */
     @Override
-    public void run() {
-        int total = columns * rows;
-        moleThread[] m = new moleThread[total];
-        for(int i = 0; i < total; i++) {
-            moleThread t = new moleThread(i);
-            m[i] = t;
-            moleList.add(t);
+    public void tick() {
+        if(engine != null && running) {
+            advanceMoles(true);
+        }
+        flushPlayers(tickScores);
+        SpectatorFeed watched = feed;
+        if(watched != null) {
+            watched.tick();
+        }
+    }
+
+    /**
+     * Runs the tick engine for one tick and changes every mole it says to.
+     * @param recordLag whether the engine is keeping real time, so its lateness means something
+     */
+    private void advanceMoles(boolean recordLag) {
+        int changes = engine.advance();
+        long due = engineStart + engine.getTick() * MoleScheduler.TICK_MS * 1_000_000L;
+        for(int i = 0; i < changes; i++) {
+            int event = engine.event(i);
+            if(recordLag) {
+                recordLag(System.nanoTime() - due);
+            }
+            // recorded at the tick's own time, so a simulated game replays at the speed it would have played
+            if(event >= 0) {
+                flipUp(event, due);
+            } else {
+                flipDown(~event, due);
+            }
+        }
+    }
 
+    /**
+     * Plays a game in {@link MoleMode#TICKS} mode as fast as it will go instead of in real time, for
+     * benchmarks and tests. Everything the players would get is sent as usual. The game's scheduler
+     * must not be running, or it would tick the game as well.
+     * @param ticks the number of ticks to play
+     */
+    public void simulate(int ticks) {
+        for(int i = 0; i < ticks && running; i++) {
+            advanceMoles(false);
+            flushPlayers(tickScores);
         }
-        for(moleThread t: m) {
-            t.start();
+    }
+
+    /**
+     * Sends what has built up since the last flush.
+     * @param scores where to copy the scores to
+     */
+    private void flushPlayers(int[] scores) {
+        if(!pending.getAndSet(false)) {
+            return;
         }
+        boolean changed = scoresChanged.getAndSet(false);
+        if(changed) {
+            copyScores(scores);
+            metrics.broadcast(players.length);
+            if(log != null) {
+                long now = System.nanoTime();
+                for(int i = 0; i < scores.length; i++) {
+                    log.record(MatchLog.SCORE, i, scores[i], now);
+                }
+            }
+        }
+        for(WAMConnection p: players) {
+            if(changed) {
+                p.getScore(scores);
+            }
+            p.flush();
+        }
+    }
 
-        for(WAMPlayer player: players) {
-            player.start();
+    /**
+     * Copies out every player's score.
+     * @param scores where to put them
+     */
+    void copyScores(int[] scores) {
+        for(int i = 0; i < scores.length; i++) {
+            scores[i] = playerScore[i].intValue();
         }
+    }
+
+    /**
+     * Runs the thread
+     */
+    @Override
+    public void run() {
+        begin();
         try {
             Thread.sleep(gameTime);
         } catch (InterruptedException e) {
+            // asked to end early
+            Thread.currentThread().interrupt();
+        }
+        finish();
+    }
+
+    /**
+     * Sets the moles going and starts taking whacks from the players.
+     */
+    public void begin() {
+        for(WAMConnection player: players) {
+            player.setGame(this);
+        }
+        startMoles();
+
+        for(WAMConnection player: players) {
+            player.start();
+        }
+    }
+
+    /**
+     * Ends the game: stops the moles, tells the players the result and disconnects them, and the
+     * spectators once they have seen the end.
+     */
+    public void finish() {
+        synchronized(this) {
+            if(finished) {
+                return;
+            }
+            finished = true;
+        }
+        try {
+            stopMoles();
+            flushPlayers(new int[players.length]);
+            displayResult();
+            exitMoles();
+            for(WAMConnection player: players) {
+                player.close();
+            }
+            if(feed != null) {
+                feed.finish();
+            }
+            if(log != null) {
+                log.close();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Match " + id + " did not end cleanly!");
             e.printStackTrace();
         }
+        if(lobby != null) {
+            lobby.gameOver(this);
+        }
+    }
 
-        for(moleThread t: m) {
-            t.stop();
+    /**
+     * Removes the moles from the board once the game is finished.
+     */
+    private void exitMoles() {
+        int total = columns * rows;
+        for (int mole = 0; mole < total; mole++) {
+            int state = holes.get(mole);
+            while(isUp(state) && !holes.compareAndSet(mole, state, state + 1)) {
+                state = holes.get(mole);
+            }
+            tell(false, mole);
         }
+    }
 
-        displayResult();
-        this.server.shutDown();
+    /**
+     * Sets every mole going, hidden to begin with.
+     */
+    void startMoles() {
+        running = true;
+        int total = columns * rows;
+        if(mode == MoleMode.WHEEL) {
+            for(int i = 0; i < total; i++) {
+                scheduler.schedule(this, i, hiddenTime(ThreadLocalRandom.current()));
+            }
+        } else if(mode == MoleMode.TICKS) {
+            engineStart = System.nanoTime();
+            engine = new TickEngine(total, seed);
+        } else if(mode == MoleMode.THREADS) {
+            moleThreads = new Thread[total];
+            for(int i = 0; i < total; i++) {
+                moleThreads[i] = threadMode.start("match-" + id + "-mole-" + i, new moleThread(i));
+            }
+        }
+        // last, so the wheel thread sees everything set up above once it starts ticking the game
+        scheduler.register(this);
     }
 
     /**
-     * Displays the result after the time has passed
+     * Stops every mole. Moles still on the wheel are dropped when they next fire; mole threads are
+     * interrupted out of their sleep and waited for, so none of them changes the board after this.
      */
-    public void displayResult() {
-        int max = getMax();
-        if(this.hasWonGame()) {
-            for(int i = 0; i < playerScore.length; i++) {
-                if(playerScore[i] == max) {
-                    players[i].gameWon();
-                } else {
-                    players[i].gameLost();
-                }
+    void stopMoles() {
+        running = false;
+        scheduler.unregister(this);
+        if(moleThreads == null) {
+            return;
+        }
+        for(Thread t: moleThreads) {
+            t.interrupt();
+        }
+        try {
+            for(Thread t: moleThreads) {
+                t.join();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by the wheel when a mole is due to change; flips it and schedules the next change.
+     * @param mole the mole number
+     * @param dueNanos when the mole was due
+     */
+    @Override
+    public void expired(int mole, long dueNanos) {
+        if(!running) {
+            return;
+        }
+        if(goingDown[mole]) {
+            // a mole that has been whacked stays down; its hidden time starts from when it was due to drop
+            moleDown(mole, dueNanos);
+            goingDown[mole] = false;
+            scheduler.schedule(this, mole, hiddenTime(ThreadLocalRandom.current()));
         } else {
-            for(int i = 0; i < playerScore.length; i++) {
-                if (playerScore[i] == max) {
-                    players[i].gameTied();
-                } else {
-                    players[i].gameLost();
+            moleUp(mole, dueNanos);
+            goingDown[mole] = true;
+            scheduler.schedule(this, mole, upTime(ThreadLocalRandom.current()));
+        }
+    }
+
+    /**
+     * Picks how long a mole stays hidden.
+     * @param random the random number generator to use
+     * @return the time in milliseconds
+     */
+    static int hiddenTime(RandomGenerator random) {
+        return random.nextInt(MAX_HIDDEN - MIN_HIDDEN) + MIN_HIDDEN;
+    }
+
+    /**
+     * Picks how long a mole stays up.
+     * @param random the random number generator to use
+     * @return the time in milliseconds
+     */
+    static int upTime(RandomGenerator random) {
+        return random.nextInt(MAX_UP - MIN_UP) + MIN_UP;
+    }
+
+    /**
+     * Gets the status of a mole
+     * @param mole the mole number
+     * @return is the mole up?
+     */
+    public boolean getStatus(int mole) {
+        return isUp(holes.get(mole));
+    }
+
+    /**
+     * Applies a record of a match being played back in {@link MoleMode#REPLAY} mode.
+     * @param kind the kind of record, one of the {@link MatchLog} kinds
+     * @param a its first argument
+     * @param b its second argument
+     */
+    void replayed(int kind, int a, int b) {
+        if(kind != MatchLog.SCORE && (a < 0 || a >= holes.length())) {
+            return;
+        }
+        switch(kind) {
+            case MatchLog.MOLE_UP:
+                flipUp(a, 0);
+                break;
+            case MatchLog.MOLE_DOWN:
+            case MatchLog.HIT:
+                flipDown(a, 0);
+                break;
+            case MatchLog.SCORE:
+                if(a >= 0 && a < playerScore.length) {
+                    playerScore[a].reset();
+                    playerScore[a].add(b);
+                    mark(scoresChanged);
+                    mark(pending);
                 }
+                break;
+            default:
+                // misses, late hits on moles already down and results follow from the scores
+        }
+    }
+
+    /**
+     * Pops a mole up and tells every player. Does nothing if it is already up.
+     * @param mole the mole number
+     * @param dueNanos the nanoTime the mole was meant to pop up at
+     */
+    void moleUp(int mole, long dueNanos) {
+        long now = System.nanoTime();
+        recordLag(now - dueNanos);
+        flipUp(mole, now);
+    }
+
+    /**
+     * Pops a mole up and tells every player. Does nothing if it is already up.
+     * @param mole the mole number
+     * @param now the nanoTime it happens at
+     */
+    private void flipUp(int mole, long now) {
+        int state = holes.get(mole);
+        if(!isUp(state) && holes.compareAndSet(mole, state, state + 1)) {
+            if(history != null) {
+                history.changed(mole, state + 1, GameClock.toMillis(now), false);
+            }
+            if(log != null) {
+                log.record(MatchLog.MOLE_UP, mole, 0, now);
             }
+            broadcast(true, mole);
+            mark(pending);
         }
     }
 
+    /**
+     * Drops a mole down and tells every player. Does nothing if it has already been whacked.
+     * @param mole the mole number
+     * @param dueNanos the nanoTime the mole was meant to drop down at
+     */
+    void moleDown(int mole, long dueNanos) {
+        long now = System.nanoTime();
+        recordLag(now - dueNanos);
+        flipDown(mole, now);
+    }
+
+    /**
+     * Drops a mole down and tells every player. Does nothing if it has already been whacked.
+     * @param mole the mole number
+     * @param now the nanoTime it happens at
+     */
+    private void flipDown(int mole, long now) {
+        int state = holes.get(mole);
+        if(isUp(state) && holes.compareAndSet(mole, state, state + 1)) {
+            if(history != null) {
+                history.changed(mole, state + 1, GameClock.toMillis(now), false);
+            }
+            if(log != null) {
+                log.record(MatchLog.MOLE_DOWN, mole, 0, now);
+            }
+            broadcast(false, mole);
+            mark(pending);
+        }
+    }
+
+    /**
+     * Records how late a mole changed compared to when it was scheduled to.
+     * @param lag the lateness in nanoseconds
+     */
+    private void recordLag(long lag) {
+        metrics.moleLag(lag);
+        lagCount.increment();
+        lagTotal.add(lag);
+        if(lag > lagMax.get()) {
+            lagMax.accumulateAndGet(lag, Math::max);
+        }
+    }
+
+    /**
+     * @return the average mole lateness in nanoseconds since the last reset
+     */
+    long getMeanLag() {
+        long count = lagCount.sum();
+        return count == 0 ? 0 : lagTotal.sum() / count;
+    }
+
+    /**
+     * @return the worst mole lateness in nanoseconds since the last reset
+     */
+    long getMaxLag() {
+        return lagMax.get();
+    }
+
+    /**
+     * Clears the mole lateness statistics.
+     */
+    void resetLag() {
+        lagCount.reset();
+        lagTotal.reset();
+        lagMax.set(0);
+    }
+
+    /**
+     * Displays the result after the time has passed
+     */
+    public void displayResult() {
+        WAMConnection[] players = this.players;
+        int[] scores = getScores();
+        int max = getMax(scores);
+        boolean won = hasWonGame(scores);
+        for(int i = 0; i < scores.length; i++) {
+            if(scores[i] != max) {
+                players[i].gameLost();
+            } else if(won) {
+                players[i].gameWon();
+            } else {
+                players[i].gameTied();
+            }
+            if(log != null) {
+                log.record(MatchLog.RESULT, i, scores[i] != max ? WAMBinaryProtocol.GAME_LOST
+                        : won ? WAMBinaryProtocol.GAME_WON : WAMBinaryProtocol.GAME_TIED, System.nanoTime());
+            }
+            String name = players[i].getName();
+            if(name != null && lobby != null && lobby.getLeaderboard() != null) {
+                lobby.getLeaderboard().record(name, scores[i], won && scores[i] == max);
+            }
+        }
+    }
+
+    /**
+     * @return every player's score, in order of their player numbers
+     */
+    public int[] getScores() {
+        int[] scores = new int[playerScore.length];
+        copyScores(scores);
+        return scores;
+    }
+
     /**
      * Tests if there is a winner in the game.
      * @return Is there a game winner?
      */
     public boolean hasWonGame() {
-        int max = getMax();
+        return hasWonGame(getScores());
+    }
+
+    /**
+     * Tests if there is a single player with the top score.
+     * @param scores every player's score
+     * @return Is there a game winner?
+     */
+    private static boolean hasWonGame(int[] scores) {
+        int max = getMax(scores);
         int count = 0;
-        for(int i = 0; i < playerScore.length; i++) {
-            if(playerScore[i] == max) {
+        for(int score: scores) {
+            if(score == max) {
                 count += 1;
             }
         }
-        if(count == 1) {
-            return true;
-        }
-        return false;
+        return count == 1;
     }
 
     /**
@@ -139,8 +893,16 @@ public class WAMGame implements Runnable {
      * @return the max score
      */
     public int getMax() {
-        int max = -100000;
-        for(int i: playerScore) {
+        return getMax(getScores());
+    }
+
+    /**
+     * @param scores every player's score
+     * @return the max score
+     */
+    private static int getMax(int[] scores) {
+        int max = Integer.MIN_VALUE;
+        for(int i: scores) {
             if(i > max) {
                 max = i;
             }
@@ -149,11 +911,10 @@ public class WAMGame implements Runnable {
     }
 
     /**
-     * Creates a mole thread that moves up and down.
+     * Moves a mole up and down on a thread of its own until the game stops it.
      */
-    public class moleThread extends Thread {
+    public class moleThread implements Runnable {
         private int moleNumber;
-        private boolean up;
         Random random = new Random();
 
 
@@ -163,7 +924,6 @@ public class WAMGame implements Runnable {
          */
         public moleThread(int moleNumber) {
             this.moleNumber = moleNumber;
-            this.up = false;
         }
 
         /**
@@ -171,40 +931,34 @@ public class WAMGame implements Runnable {
          * @return is the mole up?
          */
         public boolean getStatus() {
-            return this.up;
+            return WAMGame.this.getStatus(moleNumber);
         }
 
         /**
-         * Runs the mole thread to move it up and down
+         * Runs the mole thread to move it up and down, until the game stops running or the thread
+         * is interrupted.
          */
         public void run() {
+            try {
+                while(running) {
+                    int sleeptime = hiddenTime(random);
+                    int awaketime = upTime(random);
 
-        while(true) {
-            int upper = 10000;
-            int lower = 2000;
-            int sleeptime = random.nextInt(upper - lower) + lower;
-            int up = 5000;
-            int low = 3000;
-            int awaketime = random.nextInt(up - low) + low;
-
-                try {
+                    long due = System.nanoTime() + sleeptime * 1_000_000L;
                     Thread.sleep(sleeptime);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                for (WAMPlayer player : players) {
-                    player.MoleUp(this.moleNumber);
-                    this.up = true;
-                }
-                try {
+                    if(!running) {
+                        return;
+                    }
+                    moleUp(this.moleNumber, due);
+                    due = System.nanoTime() + awaketime * 1_000_000L;
                     Thread.sleep(awaketime);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                for (WAMPlayer player : players) {
-                    player.MoleDown(moleNumber);
-                    this.up = false;
+                    if(!running) {
+                        return;
+                    }
+                    moleDown(moleNumber, due);
                 }
+            } catch (InterruptedException e) {
+                // stopped by the game
             }
         }
     }
@@ -0,0 +1,412 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups connections into matches. Every connection waits here until there are enough players for a
+ * match and fewer than the maximum number of games are running; then the first players in line get
+ * their WELCOME and an independent {@link WAMGame} of their own.
+ *
+ * Games share the lobby's {@link MoleScheduler}, a single timer thread that says when their time is up,
+ * and a small pool that ends them, so a running match costs no threads of its own in
+ * {@link WAMGame.MoleMode#WHEEL} mode, and many matches ending at once don't hold up the timer. Matches
+ * are set up holding the lobby's lock but begun after it is let go.
+ *
+ * A lobby that lets players resume gives every player a token with its WELCOME, and holds each new
+ * connection back for a moment before putting it in line, so that a player coming back with a RESUME
+ * is handed its old place instead of being put in a new match.
+ */
+public class WAMLobby {
+
+    /** The settings every new match is given */
+    private final GameConfig config;
+
+    /** The most games that may run at once */
+    private final int maxGames;
+
+    /** The wheel shared by every game in {@link WAMGame.MoleMode#WHEEL} mode */
+    private final MoleScheduler scheduler;
+
+    /** The threads that end games */
+    private static final int ENDERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Says when games' time is up, and when new connections have waited long enough for a RESUME */
+    private final ScheduledExecutorService timer;
+
+    /** Ends the games whose time is up */
+    private final ExecutorService enders;
+
+    /** The server's metrics */
+    private final WAMMetrics metrics;
+
+    /** Where matches are recorded, or null */
+    private final ReplayLog replayLog;
+
+    /** The standings every finished match's results go to */
+    private final Leaderboard leaderboard;
+
+    /** Gives every match a seed of its own from the server's, guarded by this */
+    private final SplittableRandom seeds;
+
+    /** The games running, by id, guarded by this */
+    private final HashMap<Integer, WAMGame> games = new HashMap<>();
+
+    /** Connections waiting for a match, guarded by this */
+    private final ArrayDeque<WAMConnection> waiting;
+
+    /** New connections not yet in line, while they may still send a RESUME, guarded by this */
+    private final HashSet<WAMConnection> arriving = new HashSet<>();
+
+    /** The place in its match of every player that can resume, by token, guarded by this */
+    private final HashMap<String, Session> sessions = new HashMap<>();
+
+    /** Where tokens come from, guarded by this */
+    private final SecureRandom tokens = new SecureRandom();
+
+    /** How long a new connection may take to send a RESUME, in milliseconds, or 0 if players can't resume */
+    private volatile int resumeGrace;
+
+    /** Ends every token, naming where the server is for a router to send a RESUME back to, or empty */
+    private volatile String home = "";
+
+    /** The number of games running, guarded by this */
+    private int activeGames;
+
+    /** The id of the next match, guarded by this */
+    private int nextId;
+
+    /**
+     * Creates a new lobby
+     * @param config the settings every new match is given
+     * @param maxGames the most games that may run at once
+     * @param metrics the server's metrics
+     * @param replayLog where to record every match, or null not to
+     * @param leaderboard the standings every finished match's results go to
+     */
+    public WAMLobby(GameConfig config, int maxGames, WAMMetrics metrics, ReplayLog replayLog,
+                    Leaderboard leaderboard) {
+        this.leaderboard = leaderboard;
+        this.config = config;
+        this.maxGames = maxGames;
+        this.metrics = metrics;
+        this.replayLog = replayLog;
+        this.waiting = new ArrayDeque<>();
+        this.seeds = new SplittableRandom(config.getSeed());
+        this.scheduler = new MoleScheduler();
+        this.scheduler.start();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "game-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.enders = Executors.newFixedThreadPool(ENDERS, r -> {
+            Thread t = new Thread(r, "game-ender");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * A player's place in a running match.
+     */
+    private static final class Session {
+        final WAMGame game;
+        final int playerNumber;
+
+        /**
+         * @param game the match
+         * @param playerNumber the player's number in it
+         */
+        Session(WAMGame game, int playerNumber) {
+            this.game = game;
+            this.playerNumber = playerNumber;
+        }
+    }
+
+    /**
+     * Lets players that lose their connection pick their match back up on a new one.
+     * @param grace how long a new connection may take to send its RESUME, in milliseconds, which every
+     *              new connection waits before it is put in line
+     */
+    public void allowResume(int grace) {
+        this.resumeGrace = grace;
+    }
+
+    /**
+     * @return how long a new connection may take to send a RESUME, in milliseconds, or 0 if players
+     *         can't resume
+     */
+    public int getResumeGrace() {
+        return resumeGrace;
+    }
+
+    /**
+     * Names the server at the end of every token from now on, so that a router relaying a RESUME knows
+     * which of its servers the player's match is on.
+     * @param host the host clients reach the server at
+     * @param port the port clients reach the server at
+     */
+    public void setHome(String host, int port) {
+        this.home = WAMRouter.HOME + host + ":" + port;
+    }
+
+    /**
+     * Puts a new connection in line for a match, once it has had the chance to resume instead if
+     * players can. The connection is read from while it waits, so one that closes is taken out of line.
+     * @param player the connection
+     */
+    public void join(WAMConnection player) {
+        int grace = resumeGrace;
+        if(grace <= 0) {
+            enter(player);
+            // only once it is in line, so that closing straight away can't leave it there
+            start(player);
+            return;
+        }
+        synchronized(this) {
+            arriving.add(player);
+        }
+        // only read from it once it is known here, so a RESUME can't come before the connection does
+        start(player);
+        timer.schedule(() -> {
+            List<WAMGame> started;
+            synchronized(this) {
+                started = arriving.remove(player) ? line(player) : List.of();
+            }
+            begin(started);
+        }, grace, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts reading from a connection in line, and takes it back out if that fails.
+     * @param player the connection
+     * @throws RuntimeException whatever starting the connection threw
+     */
+    private void start(WAMConnection player) {
+        try {
+            player.start();
+        } catch (RuntimeException e) {
+            leave(player);
+            player.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Puts a connection in line for a match.
+     * @param player the connection
+     */
+    private void enter(WAMConnection player) {
+        List<WAMGame> started;
+        synchronized(this) {
+            started = line(player);
+        }
+        begin(started);
+    }
+
+    /**
+     * Puts a connection in line and sets up the matches there are now players for. Must be called
+     * holding the lobby's lock.
+     * @param player the connection
+     * @return the matches set up, to be begun once the lock is let go
+     */
+    private List<WAMGame> line(WAMConnection player) {
+        waiting.add(player);
+        System.out.println("Player joined the lobby, " + waiting.size() + " waiting");
+        return match();
+    }
+
+    /**
+     * Takes a connection that has closed out of line, so it isn't put in a match it can't play. Does
+     * nothing for one already in a match.
+     * @param player the connection
+     */
+    public synchronized void leave(WAMConnection player) {
+        if(arriving.remove(player) || waiting.remove(player)) {
+            System.out.println("Player left the lobby, " + waiting.size() + " waiting");
+        }
+    }
+
+    /**
+     * Hands a new connection its player's place in a running match instead of putting it in line.
+     * @param player the connection, which must not have been put in a match yet
+     * @param token the token from the player's SESSION
+     * @return false if the token isn't known, its match is over, or the connection is already playing;
+     *         the connection is then in no match and should be closed
+     */
+    public boolean resume(WAMConnection player, String token) {
+        Session session;
+        synchronized(this) {
+            boolean fresh = arriving.remove(player) || waiting.remove(player);
+            session = fresh ? sessions.get(token) : null;
+        }
+        if(session == null || !session.game.resume(session.playerNumber, player)) {
+            return false;
+        }
+        System.out.println("Player " + session.playerNumber + " resumed match " + session.game.getId());
+        return true;
+    }
+
+    /**
+     * Forgets the token of a player that has been shed for flooding, so it can't come straight back on a
+     * new connection.
+     * @param game the player's game
+     * @param playerNumber the player number
+     */
+    public synchronized void forget(WAMGame game, int playerNumber) {
+        sessions.values().removeIf(session -> session.game == game && session.playerNumber == playerNumber);
+    }
+
+    /**
+     * Makes up a token for a player that can resume. Must be called holding the lobby's lock.
+     * @return a token no running player has
+     */
+    private String newToken() {
+        String token;
+        do {
+            token = Long.toHexString(tokens.nextLong()) + home;
+        } while(sessions.containsKey(token));
+        return token;
+    }
+
+    /**
+     * Sets up as many matches as there are players and free slots for: the players are welcomed and
+     * the games counted as running, but not begun. Must be called holding the lobby's lock.
+     * @return the matches set up, to be handed to {@link #begin(List)} once the lock is let go
+     */
+    private List<WAMGame> match() {
+        List<WAMGame> started = new ArrayList<>();
+        while(waiting.size() >= config.getPlayers() && activeGames < maxGames) {
+            WAMConnection[] players = new WAMConnection[config.getPlayers()];
+            for(int i = 0; i < players.length; i++) {
+                players[i] = waiting.poll();
+                players[i].connect(config.getRows(), config.getColumns(), players.length, i, config.getLayout());
+            }
+            GameConfig matchConfig = config.withSeed(seeds.nextLong());
+            WAMGame game = new WAMGame(nextId++, players, matchConfig, this, scheduler, metrics);
+            if(resumeGrace > 0) {
+                for(int i = 0; i < players.length; i++) {
+                    String token = newToken();
+                    sessions.put(token, new Session(game, i));
+                    players[i].session(token);
+                }
+            }
+            MatchLog log = replayLog == null ? null : replayLog.startMatch(matchConfig);
+            if(log != null) {
+                game.record(log);
+            }
+            activeGames++;
+            games.put(game.getId(), game);
+            metrics.gameStarted();
+            System.out.println("Starting match " + game.getId() + " (" + matchConfig + "), "
+                    + activeGames + " running" + (log != null ? ", recorded as " + log.getNumber() : ""));
+            started.add(game);
+        }
+        return started;
+    }
+
+    /**
+     * Begins matches that have been set up, and sets them to end when their time is up. Called without
+     * the lobby's lock, so starting one match's moles holds up nobody waiting to be matched.
+     * @param started the matches
+     */
+    private void begin(List<WAMGame> started) {
+        for(WAMGame game: started) {
+            try {
+                game.begin();
+                timer.schedule(() -> enders.execute(game::finish), config.getSeconds(), TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                System.err.println("Match " + game.getId() + " failed to start!");
+                e.printStackTrace();
+                game.finish();
+            }
+        }
+    }
+
+    /**
+     * Called by a game once it has finished and its players have been told the result.
+     * @param game the game
+     */
+    public void gameOver(WAMGame game) {
+        List<WAMGame> started;
+        synchronized(this) {
+            activeGames--;
+            games.remove(game.getId());
+            sessions.values().removeIf(session -> session.game == game);
+            metrics.gameOver();
+            System.out.println("Match " + game.getId() + " over, " + activeGames + " running");
+            started = match();
+        }
+        begin(started);
+    }
+
+    /**
+     * @return the server's metrics
+     */
+    public WAMMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the standings every finished match's results go to
+     */
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * Finds a running game for a spectator to watch.
+     * @param id the id of the game, or -1 for the newest
+     * @return the game, or null if it isn't running
+     */
+    public synchronized WAMGame getGame(int id) {
+        if(id >= 0) {
+            return games.get(id);
+        }
+        WAMGame newest = null;
+        for(WAMGame game: games.values()) {
+            if(newest == null || game.getId() > newest.getId()) {
+                newest = game;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return the settings every new match is given
+     */
+    public GameConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the most games that may run at once
+     */
+    public int getMaxGames() {
+        return maxGames;
+    }
+
+    /**
+     * @return the number of games running
+     */
+    public synchronized int getActiveGames() {
+        return activeGames;
+    }
+
+    /**
+     * @return the number of connections waiting for a match
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+}
@@ -0,0 +1,366 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The counters and histograms of a server, shared by its lobby, games and connections.
+ *
+ * Everything is recorded with {@link LongAdder}s and {@link Histogram}s, so the hot paths neither lock
+ * nor allocate. The numbers can be read over JMX once {@link #register()} has been called, or as
+ * Prometheus text from {@link #writePrometheus(StringBuilder)}, which {@link WAMMetricsEndpoint} serves.
+ */
+public class WAMMetrics implements WAMMetricsMBean {
+
+    /** The name the metrics are registered under with JMX */
+    public static final String OBJECT_NAME = "server:type=WAMMetrics";
+
+    private final LongAdder players = new LongAdder();
+    private final LongAdder spectators = new LongAdder();
+    private final LongAdder spectatorResyncs = new LongAdder();
+    private final LongAdder resumes = new LongAdder();
+    private final LongAdder viewChanges = new LongAdder();
+    private final LongAdder activeGames = new LongAdder();
+    private final LongAdder gamesStarted = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder lateHits = new LongAdder();
+    private final LongAdder refusedWhacks = new LongAdder();
+    private final LongAdder playersShed = new LongAdder();
+    private final LongAdder offBoardWhacks = new LongAdder();
+    private final LongAdder tooFastWhacks = new LongAdder();
+    /** The events coalesced, dropped or disconnected over, by {@link SlowConsumerPolicy} */
+    private final LongAdder[] slowConsumer = new LongAdder[SlowConsumerPolicy.values().length];
+
+    /** The number of players each broadcast went to */
+    private final Histogram fanOut = new Histogram();
+    /** The events waiting to go to a player each time its writer takes from its queue */
+    private final Histogram queueDepth = new Histogram();
+    /** How late each mole transition was, in microseconds */
+    private final Histogram moleLag = new Histogram();
+    /** How long each whack took to handle, in nanoseconds */
+    private final Histogram whackLatency = new Histogram();
+
+    /**
+     * Creates a new set of metrics, all zero.
+     */
+    public WAMMetrics() {
+        for(int i = 0; i < slowConsumer.length; i++) {
+            slowConsumer[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     * @throws JMException if they can't be registered
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    /** Called when a player connects */
+    void playerConnected() {
+        players.increment();
+    }
+
+    /** Called once when a player's connection closes */
+    void playerDisconnected() {
+        players.decrement();
+    }
+
+    /** Called when a spectator connects */
+    void spectatorConnected() {
+        spectators.increment();
+    }
+
+    /** Called once when a spectator's connection closes */
+    void spectatorDisconnected() {
+        spectators.decrement();
+    }
+
+    /** Called when a spectator has fallen so far behind that it has to be sent a snapshot */
+    void spectatorResynced() {
+        spectatorResyncs.increment();
+    }
+
+    /** Called when a player picks its match back up on a new connection */
+    void resumed() {
+        resumes.increment();
+    }
+
+    /** Called when a player changes the part of the board it is told about */
+    void viewChanged() {
+        viewChanges.increment();
+    }
+
+    /** Called when a game starts */
+    void gameStarted() {
+        gamesStarted.increment();
+        activeGames.increment();
+    }
+
+    /** Called when a game is over */
+    void gameOver() {
+        activeGames.decrement();
+    }
+
+    /**
+     * Called for every whack a game handles.
+     * @param hit whether it hit a mole
+     * @param nanos how long it took to handle
+     */
+    void whack(boolean hit, long nanos) {
+        if(hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        whackLatency.record(nanos);
+    }
+
+    /**
+     * Called, as well as {@link #whack}, for every hit on a mole that was already down when the whack
+     * came but was up when it was clicked.
+     */
+    void lateHit() {
+        lateHits.increment();
+    }
+
+    /** Called for every whack refused for coming faster than its connection's limit */
+    void whackRefused() {
+        refusedWhacks.increment();
+    }
+
+    /** Called when a connection is shed for carrying on whacking long after it was refused */
+    void playerShed() {
+        playersShed.increment();
+    }
+
+    /** Called for every whack on a hole that isn't on the board, which is dropped */
+    void offBoardWhack() {
+        offBoardWhacks.increment();
+    }
+
+    /** Called, as well as {@link #whack}, for every hit that came too soon after its mole came up */
+    void tooFastWhack() {
+        tooFastWhacks.increment();
+    }
+
+    /**
+     * Called for every message broadcast to a game's players.
+     * @param players the number of players it went to
+     */
+    void broadcast(int players) {
+        fanOut.record(players);
+    }
+
+    /**
+     * Called whenever a player's writer takes from its queue.
+     * @param events the number of events waiting
+     */
+    void queued(int events) {
+        queueDepth.record(events);
+    }
+
+    /**
+     * Called whenever a player's queue is full.
+     * @param policy what was done about it
+     */
+    void slowConsumer(SlowConsumerPolicy policy) {
+        slowConsumer[policy.ordinal()].increment();
+    }
+
+    /**
+     * Called for every mole transition.
+     * @param lagNanos how late it was in nanoseconds
+     */
+    void moleLag(long lagNanos) {
+        moleLag.record(lagNanos / 1000);
+    }
+
+    @Override
+    public long getPlayers() {
+        return players.sum();
+    }
+
+    @Override
+    public long getSpectators() {
+        return spectators.sum();
+    }
+
+    @Override
+    public long getSpectatorResyncs() {
+        return spectatorResyncs.sum();
+    }
+
+    @Override
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    @Override
+    public long getViewChanges() {
+        return viewChanges.sum();
+    }
+
+    @Override
+    public long getActiveGames() {
+        return activeGames.sum();
+    }
+
+    @Override
+    public long getGamesStarted() {
+        return gamesStarted.sum();
+    }
+
+    @Override
+    public long getWhackHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getWhackMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getLateWhackHits() {
+        return lateHits.sum();
+    }
+
+    @Override
+    public long getRefusedWhacks() {
+        return refusedWhacks.sum();
+    }
+
+    @Override
+    public long getPlayersShed() {
+        return playersShed.sum();
+    }
+
+    @Override
+    public long getOffBoardWhacks() {
+        return offBoardWhacks.sum();
+    }
+
+    @Override
+    public long getTooFastWhacks() {
+        return tooFastWhacks.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return fanOut.count();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return slowConsumer[SlowConsumerPolicy.COALESCE.ordinal()].sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return slowConsumer[SlowConsumerPolicy.DROP.ordinal()].sum();
+    }
+
+    @Override
+    public long getSlowDisconnects() {
+        return slowConsumer[SlowConsumerPolicy.DISCONNECT.ordinal()].sum();
+    }
+
+    @Override
+    public long getMeanFanOut() {
+        return fanOut.mean();
+    }
+
+    @Override
+    public long getMeanQueueDepth() {
+        return queueDepth.mean();
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        return queueDepth.max();
+    }
+
+    @Override
+    public long getMeanMoleLagMicros() {
+        return moleLag.mean();
+    }
+
+    @Override
+    public long getP99MoleLagMicros() {
+        return moleLag.percentile(0.99);
+    }
+
+    @Override
+    public long getMeanWhackNanos() {
+        return whackLatency.mean();
+    }
+
+    @Override
+    public long getP99WhackNanos() {
+        return whackLatency.percentile(0.99);
+    }
+
+    /**
+     * Appends every metric in the Prometheus text format.
+     * @param out where to write them
+     */
+    public void writePrometheus(StringBuilder out) {
+        gauge(out, "wam_players", "Players connected", getPlayers());
+        gauge(out, "wam_spectators", "Spectators connected", getSpectators());
+        counter(out, "wam_spectator_resyncs_total", "Snapshots sent to spectators that fell behind",
+                getSpectatorResyncs());
+        counter(out, "wam_resumes_total", "Players that picked their match back up after losing their connection",
+                getResumes());
+        counter(out, "wam_view_changes_total", "VIEWs that changed the part of the board a player is told about",
+                getViewChanges());
+        gauge(out, "wam_games_active", "Games running", getActiveGames());
+        counter(out, "wam_games_started_total", "Games started", getGamesStarted());
+        out.append("# HELP wam_whacks_total Whacks handled\n");
+        out.append("# TYPE wam_whacks_total counter\n");
+        out.append("wam_whacks_total{result=\"hit\"} ").append(getWhackHits()).append('\n');
+        out.append("wam_whacks_total{result=\"miss\"} ").append(getWhackMisses()).append('\n');
+        counter(out, "wam_late_hits_total", "Hits on moles already down, judged by when the whack was clicked",
+                getLateWhackHits());
+        counter(out, "wam_whacks_refused_total", "Whacks dropped for coming faster than their connection's limit",
+                getRefusedWhacks());
+        counter(out, "wam_players_shed_total", "Connections closed for whacking on long after being refused",
+                getPlayersShed());
+        out.append("# HELP wam_whack_anomalies_total Whacks no person could have made\n");
+        out.append("# TYPE wam_whack_anomalies_total counter\n");
+        out.append("wam_whack_anomalies_total{kind=\"off_board\"} ").append(getOffBoardWhacks()).append('\n');
+        out.append("wam_whack_anomalies_total{kind=\"too_fast\"} ").append(getTooFastWhacks()).append('\n');
+        out.append("# HELP wam_slow_consumer_total Events that found a player's queue full\n");
+        out.append("# TYPE wam_slow_consumer_total counter\n");
+        for(SlowConsumerPolicy policy: SlowConsumerPolicy.values()) {
+            out.append("wam_slow_consumer_total{policy=\"").append(policy.name().toLowerCase()).append("\"} ")
+                    .append(slowConsumer[policy.ordinal()].sum()).append('\n');
+        }
+        fanOut.writePrometheus(out, "wam_broadcast_fanout", "Players each broadcast went to");
+        queueDepth.writePrometheus(out, "wam_outbound_queue_events", "Events waiting to go to a player");
+        moleLag.writePrometheus(out, "wam_mole_lag_microseconds", "How late mole transitions happened");
+        whackLatency.writePrometheus(out, "wam_whack_latency_nanoseconds", "Time spent handling a whack");
+    }
+
+    /**
+     * Appends one gauge.
+     */
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends one counter.
+     */
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import common.WAMException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves a server's {@link WAMMetrics} as Prometheus text at {@code /metrics}, on the loopback
+ * interface only.
+ */
+public class WAMMetricsEndpoint {
+
+    /** The content type of the Prometheus text format */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer http;
+
+    /**
+     * Starts serving the metrics.
+     * @param port the port to listen on
+     * @param metrics the metrics to serve
+     * @throws WAMException if the port can't be opened
+     */
+    public WAMMetricsEndpoint(int port, WAMMetrics metrics) throws WAMException {
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            throw new WAMException(e);
+        }
+        http.createContext("/metrics", exchange -> {
+            StringBuilder text = new StringBuilder(4096);
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public void stop() {
+        http.stop(0);
+    }
+}
@@ -0,0 +1,82 @@
+package server;
+
+/**
+ * What a server's {@link WAMMetrics} show over JMX.
+ */
+public interface WAMMetricsMBean {
+
+    /** @return the number of players connected */
+    long getPlayers();
+
+    /** @return the number of spectators connected */
+    long getSpectators();
+
+    /** @return the number of snapshots sent to spectators that fell too far behind */
+    long getSpectatorResyncs();
+
+    /** @return the number of players that picked their match back up on a new connection */
+    long getResumes();
+
+    /** @return the number of VIEWs players have sent to change the part of the board they are told about */
+    long getViewChanges();
+
+    /** @return the number of games running */
+    long getActiveGames();
+
+    /** @return the number of games started */
+    long getGamesStarted();
+
+    /** @return the number of whacks that hit a mole */
+    long getWhackHits();
+
+    /** @return the number of whacks that missed */
+    long getWhackMisses();
+
+    /** @return the number of hits on moles already down when the whack came, which are also hits */
+    long getLateWhackHits();
+
+    /** @return the number of whacks dropped for coming faster than their connection's limit */
+    long getRefusedWhacks();
+
+    /** @return the number of connections closed for whacking on long after being refused */
+    long getPlayersShed();
+
+    /** @return the number of whacks on holes that aren't on the board */
+    long getOffBoardWhacks();
+
+    /** @return the number of hits that came too soon after their mole came up for anyone to react */
+    long getTooFastWhacks();
+
+    /** @return the number of events coalesced because a player's queue was full */
+    long getCoalesced();
+
+    /** @return the number of events dropped because a player's queue was full */
+    long getDropped();
+
+    /** @return the number of players disconnected because their queue was full */
+    long getSlowDisconnects();
+
+    /** @return the number of messages broadcast to a game's players */
+    long getBroadcasts();
+
+    /** @return the average number of players a broadcast went to */
+    long getMeanFanOut();
+
+    /** @return the average number of events waiting to go to a player */
+    long getMeanQueueDepth();
+
+    /** @return the most events that were waiting to go to a player */
+    long getMaxQueueDepth();
+
+    /** @return the average lateness of a mole transition in microseconds */
+    long getMeanMoleLagMicros();
+
+    /** @return the 99th percentile lateness of a mole transition in microseconds, to a power of two */
+    long getP99MoleLagMicros();
+
+    /** @return the average time spent handling a whack in nanoseconds */
+    long getMeanWhackNanos();
+
+    /** @return the 99th percentile time spent handling a whack in nanoseconds, to a power of two */
+    long getP99WhackNanos();
+}
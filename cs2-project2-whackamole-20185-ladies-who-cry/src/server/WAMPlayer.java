@@ -1,86 +1,191 @@
 package server;
 
 
+import common.FrameReader;
+import common.WAMBinaryCodec;
+import common.WAMBinaryProtocol;
 import common.WAMException;
+import common.WAMLayout;
 import static common.WAMProtocol.*;
 
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * A class that manages the requests and responses to a single client.
+ * A class that manages the requests and responses to a single client over a blocking socket,
+ * with a thread of its own reading the client's whacks and another writing to it. The threads are of
+ * the connection's {@link ThreadMode}, so with virtual threads a blocked client costs next to nothing.
+ *
+ * Messages from the game go into an {@link OutboundQueue}; only the writer thread ever blocks on the
+ * socket, so a client that stops reading fills its own queue and holds up nobody else.
  */
-public class WAMPlayer extends Thread {
-    private int playerNumber;
+public class WAMPlayer implements WAMConnection, Runnable {
 
-    private WAMGame game;
+    /** The bytes the writer encodes before writing them out */
+    private static final int WRITE_BATCH = 64 * 1024;
+
+    /** The longest line or frame a client may send, as for a {@link NioPlayer}; no real one comes near */
+    private static final int READ_LIMIT = 1024;
+
+    private volatile int playerNumber;
+
+    private volatile WAMGame game;
 
     private Socket sock;
 
-    private Scanner scanner;
+    private FrameReader reader;
+
+    /** The socket's output stream, only used by the writer */
+    private OutputStream output;
+
+    /** Messages waiting for the writer */
+    private final OutboundQueue queue;
+
+    /** Holds the client's whacks to the connection's rate before they reach the game */
+    private final WhackLimiter limiter;
+
+    /** The kind of thread the connection reads and writes on */
+    private final ThreadMode threadMode;
+
+    /** The thread writing to the client */
+    private final Thread writer;
+
+    /** Whether the connection should close once everything queued has been written */
+    private volatile boolean closing;
+
+    /** Whether the binary framing is offered in WELCOME */
+    private boolean offerBinary;
+
+    /** The server's metrics */
+    private final WAMMetrics metrics;
+
+    /** Whether the socket has been closed */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** Whether the reader has been started */
+    private final AtomicBoolean reading = new AtomicBoolean();
+
+    /** The standings RANK and TOP are answered from, or null if there are none */
+    private final Leaderboard leaderboard;
+
+    /** The name the client goes by on the leaderboard, or null */
+    private volatile String name;
 
-    private PrintStream printer;
+    /** The lobby the connection waits in and a RESUME is taken to, or null if there is none */
+    private final WAMLobby lobby;
 
     /**
-     * Creates a new WAMPlayer
+     * Creates a new WAMPlayer. The player number is given when the player is put in a match.
      * @param sock the socket
-     * @param playerNumber the player number
+     * @param config the settings of the connection
+     * @param metrics the server's metrics
+     * @param leaderboard the standings to answer RANK and TOP from, or null if there are none
+     * @param lobby the lobby the connection waits in and a RESUME is taken to, or null if there is none
      * @throws WAMException exception protocol for WAM
      */
-    public WAMPlayer(Socket sock, int playerNumber) throws WAMException {
-        this.playerNumber = playerNumber;
+    public WAMPlayer(Socket sock, ConnectionConfig config, WAMMetrics metrics, Leaderboard leaderboard,
+                     WAMLobby lobby) throws WAMException {
         this.sock = sock;
+        this.lobby = lobby;
+        this.offerBinary = config.offersBinary();
+        this.metrics = metrics;
+        this.leaderboard = leaderboard;
+        this.threadMode = config.getThreadMode();
+        this.queue = new OutboundQueue(config.getQueueCapacity(), config.getPolicy(), metrics);
+        this.limiter = new WhackLimiter(config.getWhackRate(), config.getWhackBurst());
         try {
-            scanner = new Scanner(sock.getInputStream());
-            printer = new PrintStream(sock.getOutputStream());
+            reader = new FrameReader(sock.getInputStream(), READ_LIMIT);
+            output = sock.getOutputStream();
         }
         catch (IOException e) {
             throw new WAMException(e);
         }
+        metrics.playerConnected();
+        this.writer = threadMode.start("writer-" + sock.getPort(), this::write);
+    }
+
+    /**
+     * Closes the socket straight away if the client can't keep up and the policy says to.
+     * @param queued whether the message was queued or dealt with by the policy
+     */
+    private void queued(boolean queued) {
+        if(!queued) {
+            closeSocket();
+        }
     }
 
     /**
      * Sends a mole down
      * @param moleNumber the mole that comes down
      */
+    @Override
     public void MoleDown(int moleNumber) {
-        printer.println( MOLE_DOWN + " " + moleNumber);
+        if(!closing) {
+            queued(queue.mole(false, moleNumber));
+        }
     }
 
     /**
      * Sends a mole up
      * @param moleNumber
      */
+    @Override
     public void MoleUp(int moleNumber) {
-        printer.println( MOLE_UP + " " + moleNumber);
+        if(!closing) {
+            queued(queue.mole(true, moleNumber));
+        }
     }
 
     /**
      * Called if the player wins
      */
-    public void gameWon() { printer.println(GAME_WON); }
+    @Override
+    public void gameWon() { queued(queue.result(WAMBinaryProtocol.GAME_WON)); }
 
     /**
      * Called if the player loses/
      */
+    @Override
     public void gameLost() {
-        printer.println(GAME_LOST);
+        queued(queue.result(WAMBinaryProtocol.GAME_LOST));
     }
 
     /**
      * Called if the player ties.
      */
+    @Override
     public void gameTied() {
-        printer.println(GAME_TIED);
+        queued(queue.result(WAMBinaryProtocol.GAME_TIED));
+    }
+
+    @Override
+    public void session(String token) {
+        // the client may have switched to binary already, so this goes in whichever framing it is using
+        queue.reply(SESSION + " " + token);
+        flush();
+    }
+
+    @Override
+    public void snapshot() {
+        queued(queue.snapshot());
+    }
+
+    @Override
+    public void refresh(int moleNumber) {
+        queue.refresh(moleNumber);
     }
 
     /**
      * Sets the WAMgame in the client
      * @param game the WAMGame the attribute for WAMGame is set to
      */
+    @Override
     public void setGame(WAMGame game) {
+        queue.setGame(game);
         this.game = game;
     }
 
@@ -88,12 +193,47 @@ public class WAMPlayer extends Thread {
      * Gets the scores of all the players
      * @param scores the scores of all the players
      */
+    @Override
     public void getScore(int[] scores) {
-        String s = "SCORE";
-        for(int i = 0; i < scores.length; i++) {
-            s += " " + scores[i];
+        if(!closing) {
+            queued(queue.scores());
+        }
+    }
+
+    /**
+     * Wakes the writer to write out everything queued so far
+     */
+    @Override
+    public void flush() {
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Runs the writer: encodes what is queued and writes it to the client, sleeping until the next
+     * flush whenever there is nothing left.
+     */
+    private void write() {
+        OutboundBuffer out = new OutboundBuffer(1024);
+        try {
+            while(!closed.get()) {
+                boolean more = queue.drainTo(out, WRITE_BATCH);
+                if(!out.isEmpty()) {
+                    ByteBuffer bytes = out.flip();
+                    output.write(bytes.array(), 0, bytes.limit());
+                    bytes.position(bytes.limit());
+                    out.written();
+                }
+                if(!more) {
+                    if(closing) {
+                        break;
+                    }
+                    LockSupport.park(this);
+                }
+            }
+        } catch (IOException e) {
+            // the client has gone; the reader will notice too
         }
-        printer.println(s);
+        closeSocket();
     }
 
     /**
@@ -102,44 +242,251 @@ public class WAMPlayer extends Thread {
      * @param columns the number of columns
      * @param players the number of players
      * @param playerNumber the player number
+     * @param layout where the holes are, or null for a grid
+     */
+    @Override
+    public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) {
+        this.playerNumber = playerNumber;
+        queued(queue.line(WELCOME + " " + rows + " " + columns + " " + players + " " + playerNumber
+                + (offerBinary ? " " + BINARY : "") + (layout != null ? " " + LAYOUT : "")));
+        if(layout != null) {
+            // the client reads this before it asks for binary, so it is always a text line
+            queued(queue.line(LAYOUT + " " + layout.encode()));
+        }
+        flush();
+    }
+
+    /**
+     * Reads the next line from the client
+     * @return The next line, or null if the client has gone.
+     * @throws IOException if the socket can't be read
+     */
+    public String read() throws IOException {
+        return reader.readLine();
+    }
+
+    /**
+     * Answers a client's request for the binary framing; everything sent after the answer is binary.
      */
-    public void connect(int rows, int columns, int players, int playerNumber) {
-        printer.println(WELCOME + " " + rows + " " + columns + " " + players + " " + playerNumber);
+    private void switchToBinary() {
+        queued(queue.codec());
+        flush();
     }
 
     /**
-     * Reads the nextline for the scanner
-     * @return The scanner's next line.
+     * Starts the thread that reads from the client, if it hasn't been already; whacks are passed on as
+     * soon as there is a game.
      */
-    public String read() {
-        return scanner.nextLine();
+    @Override
+    public void start() {
+        if(reading.compareAndSet(false, true)) {
+            threadMode.start("player-" + sock.getPort(), this);
+        }
     }
 
     /**
-     * Runs the thread
+     * Runs the reader
      */
     @Override
     public void run() {
-        while(scanner.hasNextLine()) {
-            String[] s = this.read().split(" ");
-            game.whack(Integer.parseInt(s[1]), this.playerNumber);
+        try {
+            boolean binaryIn = false;
+            while(true) {
+                if(binaryIn) {
+                    ByteBuffer frame = reader.nextFrame();
+                    if(frame == null) {
+                        break;
+                    }
+                    int length = WAMBinaryCodec.frameLength(frame);
+                    byte op = frame.get();
+                    if(op == WAMBinaryProtocol.WHACK) {
+                        int mole = WAMBinaryCodec.getVarint(frame);
+                        WAMBinaryCodec.getVarint(frame);
+                        whack(mole, -1);
+                    } else if(op == WAMBinaryProtocol.WHACK_AT) {
+                        int mole = WAMBinaryCodec.getVarint(frame);
+                        WAMBinaryCodec.getVarint(frame);
+                        whack(mole, GameClock.expand(WAMBinaryCodec.getVarint(frame)));
+                    } else if(op == WAMBinaryProtocol.TEXT) {
+                        request(WAMBinaryCodec.getText(frame).split(" "));
+                    } else {
+                        frame.position(frame.position() + length - 1);
+                    }
+                    continue;
+                }
+                String line = this.read();
+                if(line == null) {
+                    break;
+                }
+                String[] s = line.split(" ");
+                if(s[0].equals(CODEC) && s.length > 1 && s[1].equals(BINARY) && offerBinary) {
+                    switchToBinary();
+                    binaryIn = true;
+                } else if(s[0].equals(WHACK)) {
+                    // read the way a NioPlayer reads it, so a WHACK of no mole is ignored rather than fatal
+                    String[] w = line.trim().split(" +");
+                    long mole = w.length > 1 ? number(w[1]) : -1;
+                    if(mole >= 0) {
+                        whack((int) mole, w.length > 3 ? number(w[3]) : -1);
+                    }
+                } else {
+                    request(s);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client has gone or is talking nonsense; either way stop listening to it
+        } finally {
+            // and stop talking to it, or the writer waits on a client nothing will be read from again
+            closeSocket();
+        }
+    }
 
+    /**
+     * Reads the digits a word starts with, as a {@link NioPlayer} reads the numbers of a WHACK.
+     * @param word the word
+     * @return the number, or -1 if the word doesn't start with a digit
+     */
+    private static long number(String word) {
+        long n = -1;
+        for(int i = 0; i < word.length() && word.charAt(i) >= '0' && word.charAt(i) <= '9'; i++) {
+            n = Math.max(n, 0) * 10 + (word.charAt(i) - '0');
         }
+        return n;
     }
 
     /**
-     * Closes the socket.
+     * Passes a whack on to the game, if there is one yet and the client is within its rate.
+     * @param mole the mole whacked
+     * @param clickedAt the {@link GameClock} time the player clicked at, or -1 if not known
      */
+    private void whack(int mole, long clickedAt) {
+        WAMGame g = game;
+        if(g != null && admit(g)) {
+            g.whackAt(mole, this.playerNumber, clickedAt);
+        }
+    }
+
+    /**
+     * Asks the limiter about a whack, and sheds the connection if the client won't stop flooding; a
+     * player that has been shed can't pick its match back up either.
+     * @param g the game the whack is for
+     * @return whether the whack may go on to the game
+     */
+    private boolean admit(WAMGame g) {
+        int verdict = limiter.check(System.nanoTime());
+        if(verdict == WhackLimiter.ALLOW) {
+            return true;
+        }
+        metrics.whackRefused();
+        if(verdict == WhackLimiter.SHED) {
+            metrics.playerShed();
+            if(lobby != null) {
+                lobby.forget(g, playerNumber);
+            }
+            queue.reply(ERROR + " Too many whacks");
+            close();
+        }
+        return false;
+    }
+
+    /**
+     * Handles a VIEW from the client, once it is in a match.
+     * @param s the words of the VIEW
+     */
+    private void view(String[] s) {
+        WAMGame g = game;
+        if(g == null || s.length < 5) {
+            return;
+        }
+        try {
+            g.view(playerNumber, Integer.parseInt(s[1]), Integer.parseInt(s[2]), Integer.parseInt(s[3]),
+                    Integer.parseInt(s[4]));
+        } catch (NumberFormatException e) {
+            // not a VIEW
+        }
+    }
+
+    /**
+     * Handles a RESUME, TIME, VIEW, NAME, RANK or TOP from the client.
+     * @param s the words of the request
+     */
+    private void request(String[] s) {
+        if(s[0].equals(TIME) && s.length > 1) {
+            queue.reply(TIME + " " + s[1] + " " + GameClock.millis());
+            flush();
+            return;
+        }
+        if(s[0].equals(RESUME)) {
+            // too late once the connection is in a match of its own
+            if(game == null && (lobby == null || s.length < 2 || !lobby.resume(this, s[1]))) {
+                queued(queue.line(ERROR + " Can't resume"));
+                close();
+            }
+            return;
+        }
+        if(s[0].equals(VIEW)) {
+            view(s);
+            return;
+        }
+        if(leaderboard == null) {
+            return;
+        }
+        if(s[0].equals(NAME)) {
+            if(s.length > 1 && Leaderboard.isValidName(s[1])) {
+                name = s[1];
+            }
+            return;
+        }
+        String reply = leaderboard.answer(s, name);
+        if(reply != null) {
+            queue.reply(reply);
+            flush();
+        }
+    }
+
+    /**
+     * @return the name the client goes by on the leaderboard, or null
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Closes the connection once the writer has written everything queued.
+     */
+    @Override
     public void close() {
-        this.printer.close();
-        this.scanner.close();
+        closing = true;
+        flush();
+    }
+
+    /**
+     * Waits until the connection has closed and everything queued for it has been written.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitClosed() throws InterruptedException {
+        writer.join();
+    }
+
+    /**
+     * Closes the socket, which also stops a writer blocked on a client that isn't reading.
+     */
+    private void closeSocket() {
+        if(!closed.compareAndSet(false, true)) {
+            return;
+        }
+        LockSupport.unpark(writer);
+        metrics.playerDisconnected();
+        if(lobby != null) {
+            lobby.leave(this);
+        }
         try {
             sock.close();
-
         }
         catch(IOException ioe) {
             // squash
         }
     }
 
-}
\ No newline at end of file
+}
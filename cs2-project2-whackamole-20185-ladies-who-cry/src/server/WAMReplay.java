@@ -0,0 +1,171 @@
+package server;
+
+import common.WAMException;
+import common.WAMLayout;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Plays a match recorded in a {@link ReplayLog} back to a client, which sees it as an ordinary game
+ * through the eyes of one of its players, at the speed it was played or faster.
+ *
+ * The match is rebuilt in a {@link WAMGame} in {@link WAMGame.MoleMode#REPLAY} mode, so the client is
+ * sent exactly what a live game sends: every tick's moles and scores in one write, and the result at
+ * the end. The client's whacks are ignored.
+ *
+ * Usage: java server.WAMReplay &lt;dir&gt; lists the matches in a log, and
+ * java server.WAMReplay &lt;dir&gt; &lt;match&gt; &lt;port&gt; [--speed=&lt;x&gt;] [--as=&lt;player&gt;] [--codec=binary|text]
+ * waits for a client on the port and plays it the match.
+ */
+public class WAMReplay {
+
+    /**
+     * Lists a log or plays a match from it.
+     * @param args the log directory, then the match and port to play it on
+     * @throws WAMException if the log can't be read or the client can't be served
+     */
+    public static void main(String[] args) throws WAMException {
+        if(args.length != 1 && args.length < 3) {
+            System.out.println("Usage: java WAMReplay <dir> [<match> <port> [options]]");
+            System.out.println("Options:");
+            System.out.println("  --speed=<x>             play x times as fast as the match was played, 0 for flat out");
+            System.out.println("  --as=<player>           show the match as this player saw it");
+            System.out.println("  --codec=binary|text     offer the client the binary framing, or only speak text");
+            System.exit(1);
+        }
+        ReplayLog log = new ReplayLog(Paths.get(args[0]));
+        if(args.length == 1) {
+            list(log);
+            return;
+        }
+        int match = Integer.parseInt(args[1]);
+        int port = Integer.parseInt(args[2]);
+        double speed = Double.parseDouble(option(args, "speed", "1"));
+        int as = Integer.parseInt(option(args, "as", "0"));
+        boolean offerBinary = option(args, "codec", "binary").equals("binary");
+
+        GameConfig config = log.getConfig(match);
+        if(as < 0 || as >= config.getPlayers()) {
+            throw new WAMException("Match " + match + " had " + config.getPlayers() + " players");
+        }
+        System.out.println("Replaying match " + match + " (" + config + ") as player " + as + " at "
+                + (speed > 0 ? speed + "x" : "full speed") + " on port " + port);
+        Socket socket;
+        try (ServerSocket server = new ServerSocket(port)) {
+            socket = server.accept();
+        } catch (IOException e) {
+            throw new WAMException(e);
+        }
+
+        WAMMetrics metrics = new WAMMetrics();
+        WAMConnection[] players = new WAMConnection[config.getPlayers()];
+        for(int i = 0; i < players.length; i++) {
+            players[i] = new Absent();
+        }
+        WAMPlayer viewer = new WAMPlayer(socket,
+                new ConnectionConfig(offerBinary, SlowConsumerPolicy.COALESCE, 4096, ThreadMode.PLATFORM), metrics,
+                null, null);
+        viewer.connect(config.getRows(), config.getColumns(), players.length, as, config.getLayout());
+        players[as] = viewer;
+
+        MoleScheduler scheduler = new MoleScheduler();
+        scheduler.start();
+        WAMGame game = new WAMGame(match, players, config, null, scheduler, metrics);
+        game.begin();
+        long records = play(log, match, game, speed);
+        game.finish();
+        scheduler.stop();
+        try {
+            viewer.awaitClosed();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Replayed " + records + " records");
+    }
+
+    /**
+     * Feeds the records of a match to a game, each at its time.
+     * @param log the log
+     * @param match the number of the match
+     * @param game the game to feed
+     * @param speed how many times as fast as it was played, or 0 for as fast as it will go
+     * @return the number of records played
+     * @throws WAMException if the log can't be read
+     */
+    private static long play(ReplayLog log, int match, WAMGame game, double speed) throws WAMException {
+        MatchLog.Reader reader = new MatchLog.Reader(log, match);
+        long start = System.nanoTime();
+        long records = 0;
+        try {
+            while(reader.next()) {
+                if(speed > 0) {
+                    long wait = start + (long) (reader.nanos() / speed) - System.nanoTime();
+                    if(wait > 0) {
+                        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                    }
+                }
+                game.replayed(reader.kind(), reader.a(), reader.b());
+                records++;
+            }
+        } catch (IOException e) {
+            throw new WAMException("Failed to read match " + match, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return records;
+    }
+
+    /**
+     * Prints every match in a log.
+     * @param log the log
+     * @throws WAMException if the index can't be read
+     */
+    private static void list(ReplayLog log) throws WAMException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        System.out.printf("%6s  %-19s %10s  %s%n", "match", "started", "records", "settings");
+        for(int match = 0; match < log.getMatches(); match++) {
+            long records = log.getRecords(match);
+            System.out.printf("%6d  %-19s %10s  %s%n", match, format.format(new Date(log.getStartTime(match))),
+                    records < 0 ? "unfinished" : String.valueOf(records), log.getConfig(match));
+        }
+    }
+
+    /**
+     * Looks up a "--name=value" option given after the match and port.
+     * @param args the command line arguments
+     * @param name the name of the option
+     * @param otherwise the value to use if the option is not given
+     * @return the value of the option
+     */
+    private static String option(String[] args, String name, String otherwise) {
+        String prefix = "--" + name + "=";
+        for(int i = 3; i < args.length; i++) {
+            if(args[i].startsWith(prefix)) {
+                return args[i].substring(prefix.length());
+            }
+        }
+        return otherwise;
+    }
+
+    /**
+     * One of the match's other players, who isn't there to be told anything.
+     */
+    private static class Absent implements WAMConnection {
+        @Override public void MoleDown(int moleNumber) { }
+        @Override public void MoleUp(int moleNumber) { }
+        @Override public void getScore(int[] scores) { }
+        @Override public void gameWon() { }
+        @Override public void gameLost() { }
+        @Override public void gameTied() { }
+        @Override public void connect(int rows, int columns, int players, int playerNumber, WAMLayout layout) { }
+        @Override public void flush() { }
+        @Override public void setGame(WAMGame game) { }
+        @Override public void start() { }
+        @Override public void close() { }
+    }
+}
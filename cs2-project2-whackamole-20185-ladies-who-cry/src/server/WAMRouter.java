@@ -0,0 +1,624 @@
+package server;
+
+import common.WAMException;
+import common.WAMProtocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The front door of a cluster of {@link WAMServer}s: clients connect to the router, which picks a
+ * server for each of them and relays the connection to it, or redirects the client there.
+ *
+ * Servers started with --router report to the router's heartbeat port: a NODE line saying where
+ * clients reach them and what their matches are like, then a LOAD line every interval. Clients are
+ * sent to the server with the fewest players that has room for another match, counting those sent
+ * since its last report, except that once a server has been sent the first player of a match it is
+ * sent the rest, so players who arrive together play together. Adding capacity is starting another
+ * server with --router pointing here.
+ *
+ * In proxy mode every connection is carried through the router by a {@link Relay} on one of a few
+ * selector loops, so clients need know nothing about the cluster. In redirect mode the client is sent
+ * a REDIRECT and connects to the server itself, so the router is out of the way after one line.
+ *
+ * Servers that let players resume name themselves at the end of every token, after an @. While any
+ * server does, a relayed connection is listened to for as long as the servers hold new players for a
+ * RESUME before a server is picked for it: a player coming back sends its RESUME straight away and is
+ * relayed to the server its match is on, without being counted as a new player anywhere.
+ *
+ * Usage: java server.WAMRouter &lt;port&gt; &lt;heartbeat port&gt; [--route=proxy|redirect] [--loops=&lt;n&gt;]
+ * [--heartbeat=&lt;ms&gt;]
+ */
+public class WAMRouter implements Runnable {
+
+    /**
+     * From server, on the heartbeat port: introduces a server to the router, which answers with the
+     * same word and the number it has given the server.<br>
+     *     Arguments: the host and port clients reach it at, the players in each of its matches, the
+     *     most matches it runs at once, and optionally how long it waits for a RESUME, in milliseconds
+     */
+    public static final String NODE = "NODE";
+
+    /** Comes between the random part of a token and the host and port of the server it is for */
+    static final String HOME = "@";
+
+    /** The longest first line looked at for a RESUME */
+    private static final int FIRST_LINE = 256;
+
+    /**
+     * From server, on the heartbeat port, every interval after its NODE.<br>
+     *     Arguments: the matches running, the players connected, the players waiting for a match
+     */
+    public static final String LOAD = "LOAD";
+
+    /** How many intervals a server may go without reporting before the router gives up on it */
+    private static final int MISSED_REPORTS = 3;
+
+    /**
+     * A server in the cluster, as far as the router knows.
+     */
+    private static final class Node {
+
+        final int id;
+        final String host;
+        final int port;
+        final int playersPerMatch;
+        final int maxGames;
+
+        /** How long it waits for a RESUME, in milliseconds, or 0 if players can't resume */
+        final int resumeGrace;
+
+        /** What it last reported; guarded by the router */
+        int games;
+        int players;
+
+        /** The clients sent to it since it last reported; guarded by the router */
+        int sent;
+
+        /** The players of the match being filled on it that have been sent so far; guarded by the router */
+        int filling;
+
+        /** Whether it has stopped reporting; guarded by the router */
+        boolean gone;
+
+        Node(int id, String host, int port, int playersPerMatch, int maxGames, int resumeGrace) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.playersPerMatch = playersPerMatch;
+            this.maxGames = maxGames;
+            this.resumeGrace = resumeGrace;
+        }
+
+        /**
+         * @return whether it can start another match, as far as the router knows
+         */
+        boolean hasRoom() {
+            return games + (sent + playersPerMatch - 1) / playersPerMatch < maxGames;
+        }
+
+        @Override
+        public String toString() {
+            return "server " + id + " at " + host + ":" + port;
+        }
+    }
+
+    /** Where clients connect */
+    private final ServerSocketChannel acceptor;
+
+    /** Where servers report */
+    private final ServerSocket heartbeats;
+
+    /** The loops relays run on, or null in redirect mode */
+    private final SelectorLoop[] loops;
+
+    /** Ends the wait for a RESUME on new connections, or null in redirect mode */
+    private final ScheduledExecutorService timer;
+
+    /** The expected time between reports, in milliseconds */
+    private final int interval;
+
+    /** The servers reporting; guarded by this */
+    private final ArrayList<Node> nodes = new ArrayList<>();
+
+    /** The server a match is being filled on, or null; guarded by this */
+    private Node filling;
+
+    /** The number the next server is given; guarded by this */
+    private int nextId;
+
+    /**
+     * Opens the router's ports and, in proxy mode, starts its selector loops.
+     * @param port the port clients connect to
+     * @param heartbeatPort the port servers report to
+     * @param proxy whether connections are relayed rather than redirected
+     * @param loopCount the number of selector loops relaying connections
+     * @param interval the expected time between reports, in milliseconds
+     * @throws WAMException if a port can't be opened
+     */
+    public WAMRouter(int port, int heartbeatPort, boolean proxy, int loopCount, int interval) throws WAMException {
+        this.interval = interval;
+        try {
+            this.acceptor = ServerSocketChannel.open();
+            this.acceptor.bind(new InetSocketAddress(port), 1024);
+            this.heartbeats = new ServerSocket(heartbeatPort);
+            if(proxy) {
+                loops = new SelectorLoop[loopCount];
+                for(int i = 0; i < loopCount; i++) {
+                    loops[i] = new SelectorLoop(i);
+                    new Thread(loops[i], "relay-" + i).start();
+                }
+                timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "arrivals");
+                    t.setDaemon(true);
+                    return t;
+                });
+            } else {
+                loops = null;
+                timer = null;
+            }
+        } catch (IOException e) {
+            throw new WAMException(e);
+        }
+        Thread t = new Thread(this::listenForNodes, "heartbeats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Starts a router.
+     * @param args the client port and heartbeat port, then options
+     * @throws WAMException if a port can't be opened
+     */
+    public static void main(String[] args) throws WAMException {
+        if(args.length < 2) {
+            System.out.println("Usage: java WAMRouter <port> <heartbeat port> [options]");
+            System.out.println("Options:");
+            System.out.println("  --route=proxy|redirect  relay each connection, or send the client to its server");
+            System.out.println("  --loops=<n>             the number of selector loops relaying connections");
+            System.out.println("  --heartbeat=<ms>        the time servers report every, as given to them");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        int heartbeatPort = Integer.parseInt(args[1]);
+        boolean proxy = option(args, "route", "proxy").equals("proxy");
+        int loops = Integer.parseInt(option(args, "loops",
+                String.valueOf(Math.min(4, Runtime.getRuntime().availableProcessors()))));
+        int interval = Integer.parseInt(option(args, "heartbeat", "1000"));
+        WAMRouter router = new WAMRouter(port, heartbeatPort, proxy, loops, interval);
+        System.out.println("Router: port " + port + ", servers report to port " + heartbeatPort + ", "
+                + (proxy ? "relaying on " + loops + " selector loops" : "redirecting"));
+        new Thread(router, "router").start();
+    }
+
+    /**
+     * Looks up a "--name=value" option given after the ports.
+     * @param args the command line arguments
+     * @param name the name of the option
+     * @param otherwise the value if it isn't given
+     * @return the value
+     */
+    private static String option(String[] args, String name, String otherwise) {
+        String prefix = "--" + name + "=";
+        for(int i = 2; i < args.length; i++) {
+            if(args[i].startsWith(prefix)) {
+                return args[i].substring(prefix.length());
+            }
+        }
+        return otherwise;
+    }
+
+    /**
+     * Accepts clients and sends each to a server, until the router shuts down.
+     */
+    @Override
+    public void run() {
+        int next = 0;
+        try {
+            while(acceptor.isOpen()) {
+                SocketChannel client = acceptor.accept();
+                int grace = loops == null ? 0 : resumeGrace();
+                if(grace > 0) {
+                    // it may be a player coming back, which says so before it is sent anywhere
+                    try {
+                        new Arrival(client, loops[next], grace);
+                    } catch (IOException e) {
+                        client.close();
+                    }
+                    next = (next + 1) % loops.length;
+                    continue;
+                }
+                Node node = pick();
+                if(node == null) {
+                    refuse(client);
+                } else if(loops == null) {
+                    redirect(client, node);
+                } else {
+                    relay(client, node, loops[next], null);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } catch (IOException e) {
+            if(acceptor.isOpen()) {
+                System.err.println("Something has gone horribly wrong!");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Picks the server a client goes to and counts the client against it.
+     * @return the server, or null if there is none
+     */
+    synchronized Node pick() {
+        Node node = filling;
+        if(node == null || node.gone) {
+            node = null;
+            for(Node n: nodes) {
+                if(node == null || better(n, node)) {
+                    node = n;
+                }
+            }
+        }
+        if(node == null) {
+            return null;
+        }
+        node.sent++;
+        node.filling = (node.filling + 1) % node.playersPerMatch;
+        filling = node.filling > 0 ? node : null;
+        return node;
+    }
+
+    /**
+     * @return the longest any server waits for a RESUME, in milliseconds, or 0 if none lets players resume
+     */
+    private synchronized int resumeGrace() {
+        int grace = 0;
+        for(Node n: nodes) {
+            grace = Math.max(grace, n.resumeGrace);
+        }
+        return grace;
+    }
+
+    /**
+     * Finds the server a token was given by, without counting anything against it.
+     * @param token the token from a RESUME
+     * @return the server, or null if the token names none that is reporting
+     */
+    private synchronized Node owner(String token) {
+        int at = token.lastIndexOf(HOME);
+        int colon = token.lastIndexOf(':');
+        if(at < 0 || colon < at) {
+            return null;
+        }
+        String host = token.substring(at + HOME.length(), colon);
+        for(Node n: nodes) {
+            if(n.host.equals(host) && token.substring(colon + 1).equals(String.valueOf(n.port))) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param a a server
+     * @param b another server
+     * @return whether a new match is better started on a than on b: one with room before one without,
+     *         then the one with fewer players
+     */
+    private static boolean better(Node a, Node b) {
+        if(a.hasRoom() != b.hasRoom()) {
+            return a.hasRoom();
+        }
+        return a.players + a.sent < b.players + b.sent;
+    }
+
+    /**
+     * Carries a client's connection to its server.
+     * @param client the client
+     * @param node the server
+     * @param loop the loop that relays it
+     * @param first bytes already read from the client, to go to the server first, or null
+     */
+    private void relay(SocketChannel client, Node node, SelectorLoop loop, ByteBuffer first) {
+        // connected on the loop, so a server slow to answer doesn't hold up every client behind this one
+        Runnable unreachable = () -> {
+            System.err.println("Can't reach " + node);
+            refuse(client);
+        };
+        try {
+            new Relay(client, new InetSocketAddress(node.host, node.port), loop, unreachable, first);
+        } catch (IOException e) {
+            System.err.println("Can't reach " + node + ": " + e.getMessage());
+            refuse(client);
+        }
+    }
+
+    /**
+     * Sends a client to its server with a REDIRECT.
+     * @param client the client
+     * @param node the server
+     */
+    private void redirect(SocketChannel client, Node node) {
+        send(client, WAMProtocol.REDIRECT + " " + node.host + " " + node.port);
+    }
+
+    /**
+     * Tells a client there is no server for it.
+     * @param client the client
+     */
+    private void refuse(SocketChannel client) {
+        send(client, WAMProtocol.ERROR + " No server is available");
+    }
+
+    /**
+     * Sends a client one line and closes its connection.
+     * @param client the client
+     * @param line the line, without its line ending
+     */
+    private static void send(SocketChannel client, String line) {
+        try (SocketChannel c = client) {
+            ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            while(bytes.hasRemaining()) {
+                c.write(bytes);
+            }
+        } catch (IOException e) {
+            // the client has gone anyway
+        }
+    }
+
+    /**
+     * Accepts servers on the heartbeat port, each read on a thread of its own.
+     */
+    private void listenForNodes() {
+        while(!heartbeats.isClosed()) {
+            try {
+                Socket socket = heartbeats.accept();
+                Thread t = new Thread(() -> follow(socket), "heartbeat");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if(!heartbeats.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one server's reports until it stops sending them, then forgets the server.
+     * @param socket the server's heartbeat connection
+     */
+    private void follow(Socket socket) {
+        Node node = null;
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.US_ASCII));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.US_ASCII)) {
+            socket.setSoTimeout(MISSED_REPORTS * interval);
+            String[] hello = in.readLine().split(" ");
+            if(!hello[0].equals(NODE) || hello.length < 5 || hello.length > 6) {
+                return;
+            }
+            node = join(hello[1], Integer.parseInt(hello[2]), Integer.parseInt(hello[3]),
+                    Integer.parseInt(hello[4]), hello.length > 5 ? Integer.parseInt(hello[5]) : 0);
+            out.println(NODE + " " + node.id);
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] load = line.split(" ");
+                if(load[0].equals(LOAD) && load.length == 4) {
+                    report(node, Integer.parseInt(load[1]), Integer.parseInt(load[2]));
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // stopped reporting
+        } catch (IOException | RuntimeException e) {
+            // gone, or never spoke the protocol
+        }
+        if(node != null) {
+            leave(node);
+        }
+    }
+
+    /**
+     * Adds a server that has introduced itself.
+     * @param host the host clients reach it at
+     * @param port the port clients reach it at
+     * @param playersPerMatch the players in each of its matches
+     * @param maxGames the most matches it runs at once
+     * @param resumeGrace how long it waits for a RESUME, in milliseconds, or 0 if players can't resume
+     * @return the server
+     */
+    private synchronized Node join(String host, int port, int playersPerMatch, int maxGames, int resumeGrace) {
+        Node node = new Node(nextId++, host, port, Math.max(1, playersPerMatch), maxGames, resumeGrace);
+        nodes.add(node);
+        System.out.println("Added " + node + ", " + nodes.size() + " servers");
+        return node;
+    }
+
+    /**
+     * Takes a server's report.
+     * @param node the server
+     * @param games the matches it has running
+     * @param players the players it has connected
+     */
+    private synchronized void report(Node node, int games, int players) {
+        node.games = games;
+        node.players = players;
+        node.sent = 0;
+    }
+
+    /**
+     * Forgets a server that has stopped reporting. A match being filled on it is started again elsewhere.
+     * @param node the server
+     */
+    private synchronized void leave(Node node) {
+        node.gone = true;
+        nodes.remove(node);
+        System.out.println("Lost " + node + ", " + nodes.size() + " servers");
+    }
+
+    /**
+     * @return the number of servers reporting
+     */
+    public synchronized int getNodes() {
+        return nodes.size();
+    }
+
+    /**
+     * A relayed connection that hasn't been sent to a server yet, listened to on its loop for a RESUME
+     * until it sends a whole line or the wait is over, whichever comes first.
+     */
+    private final class Arrival implements LoopConnection {
+
+        private final SocketChannel channel;
+
+        /** The loop it is listened to on, and then relayed on */
+        private final SelectorLoop loop;
+
+        /** What the client has sent so far */
+        private final ByteBuffer in = ByteBuffer.allocate(FIRST_LINE);
+
+        /** The key of the channel, null until it is registered */
+        private SelectionKey key;
+
+        /** Whether it has been sent on or closed */
+        private boolean done;
+
+        /**
+         * Starts listening to a new connection.
+         * @param channel the client's channel
+         * @param loop the loop that serves it
+         * @param grace how long to wait for a RESUME, in milliseconds
+         * @throws IOException if the channel can't be made non-blocking
+         */
+        Arrival(SocketChannel channel, SelectorLoop loop, int grace) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            channel.configureBlocking(false);
+            loop.register(this);
+            timer.schedule(() -> loop.execute(this::sendOn), grace, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void registered(SelectionKey key) {
+            this.key = key;
+        }
+
+        /**
+         * Reads what the client has sent, and sends it on once there is a whole line.
+         */
+        @Override
+        public void readable() {
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            if(n < 0) {
+                closeNow();
+                return;
+            }
+            for(int i = 0; i < in.position(); i++) {
+                if(in.get(i) == '\n') {
+                    sendOn();
+                    return;
+                }
+            }
+            if(!in.hasRemaining()) {
+                sendOn();
+            }
+        }
+
+        @Override
+        public void drain() {
+            // nothing is written to the client until it has a server
+        }
+
+        /**
+         * Relays a RESUME to the server the token names, and anything else to the server picked for a
+         * new player.
+         */
+        private void sendOn() {
+            if(done) {
+                return;
+            }
+            done = true;
+            if(key != null && key.isValid()) {
+                key.interestOps(0);
+            }
+            String line = null;
+            for(int i = 0; i < in.position() && line == null; i++) {
+                if(in.get(i) == '\n') {
+                    line = new String(in.array(), 0, i, StandardCharsets.US_ASCII).trim();
+                }
+            }
+            Node node;
+            if(line != null && line.startsWith(WAMProtocol.RESUME + " ")) {
+                node = owner(line.substring(WAMProtocol.RESUME.length() + 1));
+                if(node == null) {
+                    send(channel, WAMProtocol.ERROR + " Can't resume");
+                    return;
+                }
+            } else {
+                node = pick();
+                if(node == null) {
+                    refuse(channel);
+                    return;
+                }
+            }
+            in.flip();
+            relay(channel, node, loop, in);
+        }
+
+        @Override
+        public void closeNow() {
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // squash
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients and reports. Connections being relayed carry on until they close.
+     */
+    public void shutDown() {
+        try {
+            acceptor.close();
+            heartbeats.close();
+        } catch (IOException e) {
+            // squash
+        }
+        if(loops != null) {
+            for(SelectorLoop loop: loops) {
+                loop.stop();
+            }
+            timer.shutdown();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The non-blocking front end of the {@link WAMServer}. Connections are accepted on one thread and
+ * spread round-robin over a small, fixed number of {@link SelectorLoop}s, so the thread count stays
+ * the same however many players connect. The server's spectator port has a front end of its own, whose
+ * connections are all spectators.
+ */
+public class WAMSelectorServer implements Runnable {
+
+    /**
+     * The connections the kernel may hold before they are accepted. The default of 50 makes clients
+     * that connect in a burst, such as thousands of spectators arriving for a match, wait on retries.
+     */
+    private static final int BACKLOG = 1024;
+
+    /** The channel clients connect to */
+    private final ServerSocketChannel acceptor;
+
+    /** The event loops connections are handed to */
+    private final SelectorLoop[] loops;
+
+    /** The server the connected players are given to */
+    private final WAMServer server;
+
+    /** Whether the connections are spectators rather than players */
+    private final boolean spectators;
+
+    /**
+     * Opens the server socket and starts the event loops.
+     * @param port the port to listen on
+     * @param loopCount how many event loops to run
+     * @param server the server the connected players are given to
+     * @param spectators whether the connections are spectators rather than players
+     * @throws IOException if the socket or the selectors can't be opened
+     */
+    public WAMSelectorServer(int port, int loopCount, WAMServer server, boolean spectators) throws IOException {
+        this.server = server;
+        this.spectators = spectators;
+        this.acceptor = ServerSocketChannel.open();
+        this.acceptor.bind(new InetSocketAddress(port), BACKLOG);
+        this.loops = new SelectorLoop[loopCount];
+        for(int i = 0; i < loopCount; i++) {
+            loops[i] = new SelectorLoop(i);
+            new Thread(loops[i], (spectators ? "spectator-" : "selector-") + i).start();
+        }
+    }
+
+    /**
+     * Accepts connections until the server shuts down.
+     */
+    @Override
+    public void run() {
+        int next = 0;
+        try {
+            while(acceptor.isOpen()) {
+                SocketChannel channel = acceptor.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectorLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                if(spectators) {
+                    server.spectatorConnected(channel, loop);
+                } else {
+                    server.playerConnected(channel, loop);
+                }
+            }
+        } catch (IOException e) {
+            if(acceptor.isOpen()) {
+                System.err.println("Something has gone horribly wrong!");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting and lets the loops finish once their connections have closed.
+     */
+    public void shutDown() {
+        try {
+            acceptor.close();
+        } catch (IOException e) {
+            // squash
+        }
+        for(SelectorLoop loop: loops) {
+            loop.stop();
+        }
+    }
+}
@@ -1,54 +1,61 @@
 package server;
 
 import common.WAMException;
+import common.WAMLayout;
 import common.WAMProtocol;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import javax.management.JMException;
 
 /**
  * A server for the Whack-A-Mole game. It sends game-related messages to clients connected to this server in order
  * to progress the Whack-A-Mole game.
+ *
+ * The server keeps accepting connections for as long as it runs and hands every one of them to its
+ * {@link WAMLobby}, which groups them into matches.
  */
 public class WAMServer implements WAMProtocol, Runnable{
 
     /** The server socket which waits for a client connect*/
     private ServerSocket server;
 
-    /** the port number */
-    private static int port;
+    /** The non-blocking front end, used instead of the server socket in nio mode */
+    private WAMSelectorServer selectorServer;
 
-    public WAMServer(int port) throws WAMException {
-        try {
-            server = new ServerSocket(port);
-        } catch (IOException e) {
-            throw new WAMException(e);
-        }
-    }
-
-    /** The number of rows*/
-    private static int ROW;
-
-    /** The number of columns */
-    private static int COL;
-
-    /** The number of players */
-    private static int num_player;
+    /** The front end of the spectator port, or null if there is none */
+    private WAMSelectorServer spectatorServer;
 
-    /** The game duration amount*/
-    private static int game_duration_second;
+    /** The lobby connections are handed to */
+    private final WAMLobby lobby;
 
-    /**The list of players*/
-    private WAMPlayer[] playerList;
+    /** The settings every connection is given */
+    private final ConnectionConfig connectionConfig;
 
     /**
-     * Closes the server.
+     * Creates a new server
+     * @param port the port number
+     * @param lobby the lobby connections are handed to
+     * @param nio whether players are served by selector loops rather than a thread each
+     * @param loops the number of selector loops in nio mode
+     * @param connectionConfig the settings every connection is given
+     * @throws WAMException if the server socket can't be opened
      */
-    public void shutDown() {
-        this.exit_moles();
-        for(WAMPlayer player:playerList) {
-            player.close();
+    public WAMServer(int port, WAMLobby lobby, boolean nio, int loops, ConnectionConfig connectionConfig)
+            throws WAMException {
+        this.lobby = lobby;
+        this.connectionConfig = connectionConfig;
+        try {
+            if(nio) {
+                selectorServer = new WAMSelectorServer(port, loops, this, false);
+            } else {
+                server = new ServerSocket(port);
+            }
+        } catch (IOException e) {
+            throw new WAMException(e);
         }
     }
 
@@ -58,77 +65,231 @@ public class WAMServer implements WAMProtocol, Runnable{
      */
     public static void main(String[] args) throws WAMException {
 
-        if (args.length != 5) {
-            System.out.println("Usage: java ConnectFourServer <port>");
+        if (args.length < 5) {
+            System.out.println("Usage: java WAMServer <port> <rows> <columns> <players> <seconds> [options]");
+            System.out.println("Options:");
+            System.out.println("  --moles=wheel|threads|ticks  drive the moles from one timer wheel, one thread each,");
+            System.out.println("                          or each game's seeded tick engine");
+            System.out.println("  --seed=<n>              the seed every game's moles come from in ticks mode");
+            System.out.println("  --io=blocking|nio       serve players with a thread each or with selector loops");
+            System.out.println("  --tolerance=<ms>        judge stamped whacks by when clicked, up to this long ago");
+            System.out.println("  --threads=platform|virtual  the kind of thread blocking players and mole threads get");
+            System.out.println("  --loops=<n>             the number of selector loops in nio mode");
+            System.out.println("  --max-games=<n>         the most matches that may run at once");
+            System.out.println("  --codec=binary|text     offer clients the binary framing, or only speak text");
+            System.out.println("  --queue=<n>             the most messages queued for a client before --slow applies");
+            System.out.println("  --slow=coalesce|drop|disconnect  what to do with a client that can't keep up");
+            System.out.println("  --whack-rate=<n>        the whacks a second a client may send, 0 for no limit;");
+            System.out.println("                          a client that floods on past it is disconnected");
+            System.out.println("  --whack-burst=<n>       the whacks a client may send at once after a pause");
+            System.out.println("  --metrics=<port>        serve Prometheus metrics on localhost at this port");
+            System.out.println("  --spectate=<port>       let spectators watch matches on this port");
+            System.out.println("  --record=<dir>          record every match to a replay log in this directory");
+            System.out.println("  --leaderboard=<file>    keep the leaderboard in this file across restarts");
+            System.out.println("  --snapshot=<seconds>    the time between snapshots of the leaderboard");
+            System.out.println("  --router=<host:port>    report to a WAMRouter's heartbeat port to join its cluster");
+            System.out.println("  --advertise=<host>      the host the router sends clients to this server at");
+            System.out.println("  --heartbeat=<ms>        the time between reports to the router");
+            System.out.println("  --layout=<file>|hex     put the holes where a layout file says, or in a hex grid of");
+            System.out.println("                          the rows and columns given");
+            System.out.println("  --resume=<ms>           let players that lose their connection pick their match back");
+            System.out.println("                          up, holding new connections this long for a RESUME first");
             System.exit(1);
         }
 
-        port = Integer.parseInt(args[0]);
-        ROW = Integer.parseInt(args[1]);
-        COL = Integer.parseInt(args[2]);
-        num_player = Integer.parseInt(args[3]);
-        game_duration_second = Integer.parseInt(args[4]);
-        WAMServer server = new WAMServer(port);
+        int port = Integer.parseInt(args[0]);
+        int rows = Integer.parseInt(args[1]);
+        int columns = Integer.parseInt(args[2]);
+        int players = Integer.parseInt(args[3]);
+        int seconds = Integer.parseInt(args[4]);
+        WAMGame.MoleMode moleMode = WAMGame.MoleMode.valueOf(option(args, "moles", "wheel").toUpperCase());
+        boolean nio = option(args, "io", "blocking").equals("nio");
+        ThreadMode threads = ThreadMode.valueOf(option(args, "threads", "platform").toUpperCase());
+        if(!threads.isSupported()) {
+            throw new WAMException("This JVM has no " + threads.name().toLowerCase() + " threads; "
+                    + "use Java 21 or newer, or --threads=platform");
+        }
+        int loops = Integer.parseInt(option(args, "loops",
+                String.valueOf(Math.min(4, Runtime.getRuntime().availableProcessors()))));
+        int maxGames = Integer.parseInt(option(args, "max-games", "500"));
+        boolean offerBinary = option(args, "codec", "binary").equals("binary");
+        int queue = Integer.parseInt(option(args, "queue", "4096"));
+        SlowConsumerPolicy slow = SlowConsumerPolicy.valueOf(option(args, "slow", "coalesce").toUpperCase());
+        int whackRate = Integer.parseInt(option(args, "whack-rate", String.valueOf(ConnectionConfig.DEFAULT_WHACK_RATE)));
+        int whackBurst = Integer.parseInt(option(args, "whack-burst", String.valueOf(whackRate)));
+        int metricsPort = Integer.parseInt(option(args, "metrics", "0"));
+        String record = option(args, "record", null);
+        int spectatePort = Integer.parseInt(option(args, "spectate", "0"));
+        String standings = option(args, "leaderboard", null);
+        int snapshot = Integer.parseInt(option(args, "snapshot", "60"));
+        int tolerance = Integer.parseInt(option(args, "tolerance", String.valueOf(GameConfig.DEFAULT_TOLERANCE)));
+        String router = option(args, "router", null);
+        String advertise = option(args, "advertise", "localhost");
+        int heartbeat = Integer.parseInt(option(args, "heartbeat", "1000"));
+        int resume = Integer.parseInt(option(args, "resume", "0"));
+        String layout = option(args, "layout", null);
+
+        long seed = Long.parseLong(option(args, "seed", String.valueOf(System.nanoTime())));
+        GameConfig config = new GameConfig(rows, columns, players, seconds, moleMode, threads, seed)
+                .withTolerance(tolerance);
+        if(layout != null) {
+            config = config.withLayout(layout.equals("hex") ? WAMLayout.hex(rows, columns)
+                    : WAMLayout.read(Paths.get(layout)));
+        }
+        System.out.println("Port number: " + port);
+        System.out.println("Matches: " + config);
+        System.out.println("Most matches at once: " + maxGames);
+        System.out.println("Players served by: " + (nio ? loops + " selector loops"
+                : "a " + threads.name().toLowerCase() + " thread each"));
+        ConnectionConfig connectionConfig = new ConnectionConfig(offerBinary, slow, queue, threads)
+                .withWhackLimit(whackRate, whackBurst);
+        System.out.println("Connections: " + connectionConfig);
+
+        WAMMetrics metrics = new WAMMetrics();
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            throw new WAMException("Failed to register the metrics", e);
+        }
+        if(metricsPort > 0) {
+            new WAMMetricsEndpoint(metricsPort, metrics);
+            System.out.println("Metrics: http://localhost:" + metricsPort + "/metrics");
+        }
+
+        ReplayLog replayLog = null;
+        if(record != null) {
+            replayLog = new ReplayLog(Paths.get(record));
+            System.out.println("Recording to: " + record + ", from match " + replayLog.getMatches());
+        }
+
+        Leaderboard leaderboard = new Leaderboard();
+        if(standings != null) {
+            leaderboard.snapshotTo(Paths.get(standings), snapshot);
+            System.out.println("Leaderboard: " + standings + ", " + leaderboard.getPlayers() + " players, snapshot every "
+                    + snapshot + "s");
+        }
+
+        WAMLobby lobby = new WAMLobby(config, maxGames, metrics, replayLog, leaderboard);
+        if(resume > 0) {
+            lobby.allowResume(resume);
+            System.out.println("Resuming: new connections wait " + resume + "ms for a RESUME");
+        }
+        WAMServer server = new WAMServer(port, lobby, nio, loops, connectionConfig);
+        if(spectatePort > 0) {
+            server.acceptSpectators(spectatePort, loops);
+            System.out.println("Spectators: port " + spectatePort + ", " + loops + " selector loops");
+        }
+        if(router != null) {
+            lobby.setHome(advertise, port);
+            new LoadReporter(router, advertise, port, lobby, heartbeat).start();
+            System.out.println("Router: " + router + ", reporting every " + heartbeat + "ms as " + advertise + ":" + port);
+        }
         new Thread(server).start();
     }
 
     /**
-     * Waits for clients to connect
+     * Starts letting spectators watch matches on a port of their own, served by selector loops of their
+     * own whichever way players are served.
+     * @param port the port
+     * @param loops the number of selector loops
+     * @throws WAMException if the port can't be opened
      */
-    @Override
-    public void run() {
+    public void acceptSpectators(int port, int loops) throws WAMException {
         try {
-            WAMPlayer[] players = new WAMPlayer[num_player];
-            Socket[] sockets = new Socket[num_player];
-            for(int i = 0; i < num_player; i++){
-                System.out.println("Waiting for player " + (i+1) + "...");
-                sockets[i] = server.accept();
-                players[i] = new WAMPlayer(sockets[i], i);
-                players[i].connect(ROW, COL, num_player, i);
-                System.out.println("Player " + (i+1) +" connected!");
-            }
-
-
-            this.playerList = players;
-            System.out.println(WAMProtocol.WELCOME);
-
-            System.out.println("\n");
-            System.out.println("Port number: " + port);
-            System.out.println("Number of row: " + ROW);
-            System.out.println("Number of columns: " + COL);
-            System.out.println("Number of players: " + num_player);
-            System.out.println("Game duration in seconds: " + game_duration_second);
+            spectatorServer = new WAMSelectorServer(port, loops, this, true);
+        } catch (IOException e) {
+            throw new WAMException(e);
+        }
+        Thread t = new Thread(spectatorServer, "spectator-acceptor");
+        t.setDaemon(true);
+        t.start();
+    }
 
-            System.out.println("Starting game!");
+    /**
+     * Looks up a "--name=value" option given after the required arguments.
+     * @param args the command line arguments
+     * @param name the name of the option
+     * @param otherwise the value to use if the option is not given
+     * @return the value of the option
+     */
+    static String option(String[] args, String name, String otherwise) {
+        String prefix = "--" + name + "=";
+        for(int i = 5; i < args.length; i++) {
+            if(args[i].startsWith(prefix)) {
+                return args[i].substring(prefix.length());
+            }
+        }
+        return otherwise;
+    }
 
-            WAMGame game = new WAMGame(players, COL, ROW, this, game_duration_second);
-            for(WAMPlayer player: players) {
-                player.setGame(game);
+    /**
+     * Waits for clients to connect, for as long as the server runs
+     */
+    @Override
+    public void run() {
+        System.out.println("Waiting for players...");
+        if(selectorServer != null) {
+            selectorServer.run();
+            return;
+        }
+        while(!server.isClosed()) {
+            Socket socket = null;
+            try {
+                socket = server.accept();
+                lobby.join(new WAMPlayer(socket, connectionConfig, lobby.getMetrics(), lobby.getLeaderboard(), lobby));
+            } catch (IOException e) {
+                System.err.println("Something has gone horribly wrong!");
+                e.printStackTrace();
+            } catch (WAMException | RuntimeException e) {
+                // one connection that can't be served must not stop the server taking the next
+                System.err.println("Failed to create player!");
+                e.printStackTrace();
+                try {
+                    if(socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException ioe) {
+                    // squash
+                }
             }
+        }
+    }
 
-            new Thread(game).start();
+    /**
+     * Called by the selector front end for each accepted connection in nio mode.
+     * @param channel the accepted channel
+     * @param loop the loop that will serve it
+     */
+    void playerConnected(SocketChannel channel, SelectorLoop loop) {
+        lobby.join(new NioPlayer(channel, loop, connectionConfig, lobby.getMetrics(), lobby.getLeaderboard(),
+                lobby));
+    }
 
-        } catch (IOException e) {
-            System.err.println("Something has gone horribly wrong!");
-            e.printStackTrace();
-        } catch (WAMException e) {
-            System.err.println("Failed to create players!");
-            e.printStackTrace();
-        }
+    /**
+     * Called by the spectator front end for each accepted connection.
+     * @param channel the accepted channel
+     * @param loop the loop that will serve it
+     */
+    void spectatorConnected(SocketChannel channel, SelectorLoop loop) {
+        new Spectator(channel, loop, lobby);
     }
 
     /**
-     * Removes the moles from the board once the game is finished.
+     * Stops accepting connections. Matches already running play on to the end.
      */
-    public void exit_moles() {
-        int mole_num = 0;
-        for (int i = 0; i < ROW; i++) {
-            for (int j = 0; j < COL; j++) {
-                for (WAMPlayer player : playerList) {
-                    player.MoleDown(mole_num);
-                }
-                mole_num++;
+    public void shutDown() {
+        try {
+            if(server != null) {
+                server.close();
             }
+        } catch (IOException e) {
+            // squash
+        }
+        if(selectorServer != null) {
+            selectorServer.shutDown();
+        }
+        if(spectatorServer != null) {
+            spectatorServer.shutDown();
         }
     }
-}
\ No newline at end of file
+}
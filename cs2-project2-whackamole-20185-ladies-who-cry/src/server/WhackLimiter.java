@@ -0,0 +1,88 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds one connection's whacks to a rate before they reach its game, so a scripted client can't flood
+ * the board and crowd out the players it is up against.
+ *
+ * The limit is a token bucket that fills at the rate and holds a burst, kept as the single time the
+ * bucket would next be full (the generic cell rate algorithm): a whack is let through if taking a token
+ * leaves that time no more than a burst's worth of whacks ahead of now, with one compare-and-set, and is
+ * refused otherwise without touching anything. A client that keeps sending after it has been refused,
+ * {@link #SHED_BURSTS} bursts' worth in a row, is not going to slow down, and the connection is shed.
+ */
+final class WhackLimiter {
+
+    /** What {@link #check} says about a whack */
+    static final int ALLOW = 0;
+    static final int REFUSE = 1;
+    static final int SHED = 2;
+
+    /** The whacks refused in a row, in bursts, that get a connection shed */
+    private static final int SHED_BURSTS = 2;
+
+    /** The nanoseconds a token takes to come back, or 0 if whacks aren't limited */
+    private final long interval;
+
+    /** How far ahead of now the bucket may be emptied, in nanoseconds: a burst's worth of tokens */
+    private final long limit;
+
+    /** The whacks refused in a row that get the connection shed */
+    private final int shedAfter;
+
+    /** The nanoTime the bucket will be full again if no more whacks come */
+    private final AtomicLong full;
+
+    /** The whacks refused since the last one let through */
+    private final AtomicInteger refused = new AtomicInteger();
+
+    /** Whether the connection has been shed, after which every whack is refused */
+    private final AtomicBoolean shed = new AtomicBoolean();
+
+    /**
+     * Creates a limiter with a full bucket.
+     * @param rate the whacks a second let through, or 0 for no limit
+     * @param burst the whacks let through at once after a pause, at least 1
+     */
+    WhackLimiter(int rate, int burst) {
+        this.interval = rate > 0 ? 1_000_000_000L / rate : 0;
+        this.limit = interval * Math.max(1, burst);
+        this.shedAfter = SHED_BURSTS * Math.max(1, burst);
+        this.full = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token for a whack if there is one.
+     * @param now the nanoTime the whack came at
+     * @return {@link #ALLOW} if the whack may go on to the game, {@link #REFUSE} if it is dropped, or
+     *         {@link #SHED} the one time it is dropped and the connection should be shed
+     */
+    int check(long now) {
+        if(interval == 0) {
+            return ALLOW;
+        }
+        if(shed.get()) {
+            return REFUSE;
+        }
+        while(true) {
+            long seen = full.get();
+            long next = Math.max(seen, now) + interval;
+            if(next - now > limit) {
+                break;
+            }
+            if(full.compareAndSet(seen, next)) {
+                if(refused.get() != 0) {
+                    refused.set(0);
+                }
+                return ALLOW;
+            }
+        }
+        if(refused.incrementAndGet() >= shedAfter && shed.compareAndSet(false, true)) {
+            return SHED;
+        }
+        return REFUSE;
+    }
+}